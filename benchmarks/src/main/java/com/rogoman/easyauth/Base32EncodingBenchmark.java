@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the BASE32 encoding used for the secret keys.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base32EncodingBenchmark {
+    private String encoded;
+    private byte[] decoded;
+    private byte[] buffer;
+
+    /**
+     * Prepares a 160-bit secret key in both representations.
+     */
+    @Setup
+    public void setup() {
+        decoded = new byte[20];
+        for (int i = 0; i < decoded.length; i++) {
+            decoded[i] = (byte) (i * 31 + 7);
+        }
+        encoded = Base32Encoding.toString(decoded);
+        buffer = new byte[decoded.length];
+    }
+
+    /**
+     * Decodes a BASE32 secret key.
+     *
+     * @return decoded bytes
+     */
+    @Benchmark
+    public byte[] toBytes() {
+        return Base32Encoding.toBytes(encoded);
+    }
+
+    /**
+     * Decodes a BASE32 secret key into a reused buffer.
+     *
+     * @return number of decoded bytes
+     */
+    @Benchmark
+    public int decodeIntoBuffer() {
+        return Base32Encoding.decode(encoded, buffer, 0);
+    }
+
+    /**
+     * Encodes a secret key as BASE32.
+     *
+     * @return encoded string
+     */
+    @Benchmark
+    public String toStringBenchmark() {
+        return Base32Encoding.toString(decoded);
+    }
+}
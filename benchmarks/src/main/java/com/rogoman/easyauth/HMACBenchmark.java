@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the HMAC digest computed for a single TOTP challenge.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HMACBenchmark {
+    private static final String ALGORITHM = "HmacSHA1";
+
+    private byte[] keyBytes;
+    private SecretKeySpec key;
+    private byte[] challenge;
+    private long counter;
+
+    /**
+     * Prepares the key and the challenge.
+     */
+    @Setup
+    public void setup() {
+        keyBytes = Base32Encoding.toBytes("JBSWY3DPEHPK3PXPJBSWY3DPEHPK3PXP");
+        key = new SecretKeySpec(keyBytes, ALGORITHM);
+        counter = 1415618880L / 30;
+        challenge = ByteBuffer.allocate(8).putLong(counter).array();
+    }
+
+    /**
+     * Computes the digest from raw key bytes, creating a new key for every call.
+     *
+     * @return digest
+     * @throws NoSuchAlgorithmException never thrown for HmacSHA1
+     * @throws InvalidKeyException      never thrown for a valid key
+     */
+    @Benchmark
+    public byte[] hmacDigestRawKey() throws NoSuchAlgorithmException, InvalidKeyException {
+        return HMAC.hmacDigest(challenge, keyBytes, ALGORITHM);
+    }
+
+    /**
+     * Computes the digest of a counter with an already initialized key.
+     *
+     * @return digest
+     * @throws NoSuchAlgorithmException never thrown for HmacSHA1
+     * @throws InvalidKeyException      never thrown for a valid key
+     */
+    @Benchmark
+    public byte[] hmacDigestPreparedKey() throws NoSuchAlgorithmException, InvalidKeyException {
+        return HMAC.hmacDigest(counter, key, ALGORITHM);
+    }
+}
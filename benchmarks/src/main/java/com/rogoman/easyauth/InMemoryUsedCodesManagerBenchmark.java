@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the InMemoryUsedCodesManager with a single thread and with all available processors.
+ * The manager is shared by all benchmark threads and cleans up codes older than a second, so the amount of
+ * stored codes stays bounded during the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InMemoryUsedCodesManagerBenchmark {
+    private static final int USERS = 1024;
+
+    private static final long INTERVAL = 1415618880L / 30;
+
+    private InMemoryUsedCodesManager manager;
+    private String[] users;
+
+    /**
+     * Per-thread position in the user table.
+     */
+    @State(Scope.Thread)
+    public static class ThreadPosition {
+        private int next;
+
+        /**
+         * Gets the index of the next user to use.
+         *
+         * @return user index
+         */
+        int next() {
+            next = (next + 1) & (USERS - 1);
+            return next;
+        }
+    }
+
+    /**
+     * Creates the manager and fills it with one used code for each user.
+     */
+    @Setup
+    public void setup() {
+        manager = new InMemoryUsedCodesManager(1, 1);
+        users = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = "user" + i;
+            manager.addCode(INTERVAL, "123456", users[i]);
+        }
+    }
+
+    /**
+     * Records a used code with a single thread.
+     *
+     * @param position thread position
+     */
+    @Benchmark
+    @Threads(1)
+    public void addCode(final ThreadPosition position) {
+        manager.addCode(INTERVAL, "654321", users[position.next()]);
+    }
+
+    /**
+     * Records a used code with all available processors.
+     *
+     * @param position thread position
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void addCodeContended(final ThreadPosition position) {
+        manager.addCode(INTERVAL, "654321", users[position.next()]);
+    }
+
+    /**
+     * Checks a code with a single thread.
+     *
+     * @param position thread position
+     * @return check result
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean isCodeUsed(final ThreadPosition position) {
+        return manager.isCodeUsed(INTERVAL, "123456", users[position.next()]);
+    }
+
+    /**
+     * Checks a code with all available processors.
+     *
+     * @param position thread position
+     * @return check result
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean isCodeUsedContended(final ThreadPosition position) {
+        return manager.isCodeUsed(INTERVAL, "123456", users[position.next()]);
+    }
+}
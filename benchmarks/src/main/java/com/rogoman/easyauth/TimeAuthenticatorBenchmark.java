@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.InvalidKeyException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the TimeAuthenticator code generation and verification. Verification uses a fixed point in time
+ * and a used codes manager that never rejects a code, so every invocation does the same amount of work.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeAuthenticatorBenchmark {
+    private static final long NOW = 1415618880L;
+
+    private static final String USER = "userIdentifier";
+
+    private TimeAuthenticator authenticator;
+    private TimeAuthenticator cachingAuthenticator;
+    private TimeAuthenticator internalHmacAuthenticator;
+    private String secret;
+    private PreparedSecret preparedSecret;
+    private int currentCode;
+    private int windowEdgeCode;
+    private int wrongCode;
+
+    /**
+     * Prepares the authenticator and the codes for each scenario.
+     *
+     * @throws AuthenticatorException never thrown for HmacSHA1
+     * @throws InvalidKeyException    never thrown for a valid key
+     */
+    @Setup
+    public void setup() throws AuthenticatorException, InvalidKeyException {
+        authenticator = new TimeAuthenticator(new SimpleUsedCodesManager());
+        cachingAuthenticator = TimeAuthenticator.builder().withWindowCodeCache(1024).build();
+        internalHmacAuthenticator = TimeAuthenticator.builder().withHmacEngine(HmacEngine.INTERNAL).build();
+        secret = "JBSWY3DPEHPK3PXP";
+        preparedSecret = new PreparedSecret(secret);
+        currentCode = authenticator.getCodeValue(preparedSecret, NOW);
+        windowEdgeCode = authenticator.getCodeValue(preparedSecret,
+                NOW + TimeAuthenticator.DEFAULT_CHECK_FORWARD_INTERVALS * TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+        wrongCode = (currentCode + 1) % 1000000;
+    }
+
+    /**
+     * Generates a code from a BASE32 secret.
+     *
+     * @return code
+     * @throws AuthenticatorException never thrown for HmacSHA1
+     * @throws InvalidKeyException    never thrown for a valid key
+     */
+    @Benchmark
+    public String getCode() throws AuthenticatorException, InvalidKeyException {
+        return authenticator.getCode(secret, NOW);
+    }
+
+    /**
+     * Generates a code from a prepared secret.
+     *
+     * @return code
+     * @throws AuthenticatorException never thrown for HmacSHA1
+     * @throws InvalidKeyException    never thrown for a valid key
+     */
+    @Benchmark
+    public String getCodePrepared() throws AuthenticatorException, InvalidKeyException {
+        return authenticator.getCode(preparedSecret, NOW);
+    }
+
+    /**
+     * Generates a code from a prepared secret with the internal HMAC-SHA1 engine.
+     *
+     * @return code
+     * @throws AuthenticatorException never thrown for HmacSHA1
+     * @throws InvalidKeyException    never thrown for a valid key
+     */
+    @Benchmark
+    public String getCodePreparedInternalHmac() throws AuthenticatorException, InvalidKeyException {
+        return internalHmacAuthenticator.getCode(preparedSecret, NOW);
+    }
+
+    /**
+     * Verifies a code of the current interval.
+     *
+     * @return verification result
+     */
+    @Benchmark
+    public boolean checkCodeHitCurrentInterval() {
+        return authenticator.checkCode(preparedSecret, currentCode, USER, NOW);
+    }
+
+    /**
+     * Verifies a code of the last interval in the accepted window.
+     *
+     * @return verification result
+     */
+    @Benchmark
+    public boolean checkCodeHitWindowEdge() {
+        return authenticator.checkCode(preparedSecret, windowEdgeCode, USER, NOW);
+    }
+
+    /**
+     * Verifies a code that does not match any interval in the accepted window.
+     *
+     * @return verification result
+     */
+    @Benchmark
+    public boolean checkCodeMiss() {
+        return authenticator.checkCode(preparedSecret, wrongCode, USER, NOW);
+    }
+
+    /**
+     * Verifies a code that does not match any interval in the accepted window with the internal HMAC-SHA1 engine.
+     *
+     * @return verification result
+     */
+    @Benchmark
+    public boolean checkCodeMissInternalHmac() {
+        return internalHmacAuthenticator.checkCode(preparedSecret, wrongCode, USER, NOW);
+    }
+
+    /**
+     * Verifies a code that does not match any interval in the accepted window with the window codes cached.
+     *
+     * @return verification result
+     */
+    @Benchmark
+    public boolean checkCodeMissCached() {
+        return cachingAuthenticator.checkCode(preparedSecret, wrongCode, USER, NOW);
+    }
+}
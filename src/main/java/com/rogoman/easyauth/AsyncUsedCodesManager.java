@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An interface of a used codes manager with non-blocking operations, e.g. one backed by a remote store.
+ * A used codes manager implementing this interface next to UsedCodesManager is called through these methods
+ * by the asynchronous verification of the TimeAuthenticator, so no thread is blocked while waiting for the store.
+ *
+ * @param <T> A type of user identifiers.
+ */
+public interface AsyncUsedCodesManager<T> {
+
+    /**
+     * Adds a challenge usage to the cache.
+     *
+     * @param timestamp Used timestamp
+     * @param code      Used code
+     * @param userId    The user identifier
+     * @return future completed when the usage is stored
+     */
+    CompletableFuture<Void> addCodeAsync(long timestamp, String code, T userId);
+
+    /**
+     * Checks if code was previously used.
+     *
+     * @param timestamp Used timestamp
+     * @param code      Used code
+     * @param userId    The user identifier
+     * @return future completed with true if the code has already been used for this user
+     */
+    CompletableFuture<Boolean> isCodeUsedAsync(long timestamp, String code, T userId);
+
+    /**
+     * Adds a challenge usage to the cache unless the code has already been used.
+     * The default implementation chains isCodeUsedAsync and addCodeAsync, so it is not atomic; implementations should
+     * override it with a single atomic operation of the store, e.g. a conditional insert.
+     *
+     * @param timestamp Used timestamp
+     * @param code      Used code
+     * @param userId    The user identifier
+     * @return future completed with true if the code has been marked as used by this call, false if it had already been used
+     */
+    default CompletableFuture<Boolean> markIfUnusedAsync(final long timestamp, final String code, final T userId) {
+        return isCodeUsedAsync(timestamp, code, userId).thenCompose(used -> {
+            if (used) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return addCodeAsync(timestamp, code, userId).thenApply(ignored -> true);
+        });
+    }
+}
@@ -16,38 +16,119 @@
 
 package com.rogoman.easyauth;
 
-import java.nio.ByteBuffer;
+import org.apache.commons.lang.StringUtils;
+
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-
-import org.apache.commons.lang.StringUtils;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A base class for all the possible implemented authenticators. Exposes a way to generate new secret keys as well as
- * an internal method for getting codes based on those keys.
+ * A base class for all the possible implemented authenticators. Exposes a way to generate new secret keys, to check codes
+ * as well as an internal method for getting codes based on those keys. Getting the current code is up to the authenticators
+ * whose codes depend only on the secret and the time, i.e. the TimeAuthenticator.
  */
 public abstract class Authenticator {
-    private static final String CRYPTO_ALGORITHM = "HmacSHA1";
+    /**
+     * Default number of digits of a code, compatible with Google Authenticator.
+     */
+    public static final int DEFAULT_CODE_DIGITS = 6;
 
-    private static final String RANDOM_NUMBER_GENERATOR_NAME = "SHA1PRNG";
+    /**
+     * A value returned by parseCode for malformed codes. Never equal to a valid code value.
+     */
+    protected static final int INVALID_CODE = -1;
 
-    private static final SecureRandom RANDOM;   // Is Thread-Safe
+    private static final int MIN_CODE_DIGITS = 6;
 
-    static {
-        SecureRandom random = null;
-        try {
-            random = SecureRandom.getInstance(RANDOM_NUMBER_GENERATOR_NAME);
-        } catch (final NoSuchAlgorithmException e) {
-            random = new SecureRandom();
-        } finally {
-            RANDOM = random;
+    private static final int MAX_CODE_DIGITS = 8;
+
+    /**
+     * Holds the default executor for the asynchronous operations, created on first use: a pool of one daemon thread per
+     * processor. Computing codes is CPU-bound, and long-lived platform threads keep their pooled Mac instances and HMAC
+     * buffers, which virtual threads, starting each task with empty thread-locals, would set up again for every check.
+     */
+    private static final class AsyncExecutorHolder {
+        private static final Executor EXECUTOR = createExecutor();
+
+        /**
+         * Private constructor to prevent from instantiating the class.
+         */
+        private AsyncExecutorHolder() {
         }
+
+        /**
+         * Creates the default executor.
+         *
+         * @return executor
+         */
+        private static Executor createExecutor() {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "easyauth-async-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private static final SecretGenerator KEY_GENERATOR = new SecretGenerator();
+
+    private final HmacEngine hmacEngine;
+    private final HmacAlgorithm hmacAlgorithm;
+    private final int codeDigits;
+    private final int codeModulus;
+
+    /**
+     * Creates a new instance of the Authenticator class computing 6-digit codes with the JCA HMAC-SHA1.
+     */
+    protected Authenticator() {
+        this(HmacEngine.JCA);
+    }
+
+    /**
+     * Creates a new instance of the Authenticator class computing 6-digit codes with HMAC-SHA1.
+     *
+     * @param hmacEngine HMAC implementation used for computing the codes
+     */
+    protected Authenticator(final HmacEngine hmacEngine) {
+        this(hmacEngine, HmacAlgorithm.SHA1, DEFAULT_CODE_DIGITS);
     }
 
-    private static final int KEY_LENGTH = 16;
+    /**
+     * Creates a new instance of the Authenticator class.
+     *
+     * @param hmacEngine    HMAC implementation used for computing the codes; the internal one supports only SHA1, other
+     *                      algorithms are always computed by the JCA
+     * @param hmacAlgorithm HMAC algorithm used for computing the codes
+     * @param codeDigits    number of digits of a code, 6 to 8
+     */
+    protected Authenticator(final HmacEngine hmacEngine, final HmacAlgorithm hmacAlgorithm, final int codeDigits) {
+        if (hmacEngine == null) {
+            throw new IllegalArgumentException("hmacEngine cannot be null");
+        }
+        if (hmacAlgorithm == null) {
+            throw new IllegalArgumentException("hmacAlgorithm cannot be null");
+        }
+        if (codeDigits < MIN_CODE_DIGITS || codeDigits > MAX_CODE_DIGITS) {
+            throw new IllegalArgumentException("codeDigits parameter has to be between " + MIN_CODE_DIGITS + " and " + MAX_CODE_DIGITS);
+        }
+        this.hmacEngine = hmacEngine;
+        this.hmacAlgorithm = hmacAlgorithm;
+        this.codeDigits = codeDigits;
 
-    private static final String AVAILABLE_KEY_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        int modulus = 1;
+        for (int i = 0; i < codeDigits; i++) {
+            modulus *= 10;
+        }
+        this.codeModulus = modulus;
+    }
 
     /**
      * Generates a new secret key so a new user can use it.
@@ -55,11 +136,18 @@ public abstract class Authenticator {
      * @return secret key
      */
     public static final String generateKey() {
-        final char[] keyChars = new char[KEY_LENGTH];
-        for (int i = 0; i < keyChars.length; i++) {
-            keyChars[i] = AVAILABLE_KEY_CHARS.charAt(randomInt(AVAILABLE_KEY_CHARS.length()));
-        }
-        return new String(keyChars);
+        return KEY_GENERATOR.generateKey();
+    }
+
+    /**
+     * Generates many new secret keys, e.g. when provisioning users in bulk. Use a SecretGenerator for other key lengths
+     * or for generating the keys in parallel.
+     *
+     * @param count number of keys
+     * @return secret keys
+     */
+    public static String[] generateKeys(final int count) {
+        return KEY_GENERATOR.generateKeys(count);
     }
 
     /**
@@ -69,8 +157,15 @@ public abstract class Authenticator {
      * @return generated code
      * @exception java.security.InvalidKeyException if the secret passed has an invalid format
      * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     * @exception java.lang.UnsupportedOperationException if the codes of the authenticator do not depend only on the secret
+     *            and the time, e.g. in the HotpAuthenticator
+     * @deprecated Only the codes of the TimeAuthenticator can be computed from the secret alone; call
+     *             TimeAuthenticator.getCode or HotpAuthenticator.getCode(String, long) instead.
      */
-    public abstract String getCode(final String secret) throws AuthenticatorException, InvalidKeyException;
+    @Deprecated
+    public String getCode(final String secret) throws AuthenticatorException, InvalidKeyException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot compute a code from the secret alone");
+    }
 
     /**
      * Checks if the provided code is valid for given secret key and user identifier.
@@ -82,6 +177,83 @@ public abstract class Authenticator {
      */
     public abstract boolean checkCode(final String secret, final String code, final String userIdentifier);
 
+    /**
+     * Checks if the provided code is valid for given prepared secret and user identifier.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    public abstract boolean checkCode(final PreparedSecret secret, final String code, final String userIdentifier);
+
+    /**
+     * Checks if the provided numeric code is valid for given prepared secret and user identifier.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code value
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    public abstract boolean checkCode(final PreparedSecret secret, final int code, final String userIdentifier);
+
+    /**
+     * Checks asynchronously if the provided code is valid for given secret key and user identifier using the default executor.
+     *
+     * @param secret         secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return future completed with true if the code is valid and should be accepted
+     */
+    public CompletableFuture<Boolean> checkCodeAsync(final String secret, final String code, final String userIdentifier) {
+        return checkCodeAsync(new PreparedSecret(secret), code, userIdentifier, getAsyncExecutor());
+    }
+
+    /**
+     * Checks asynchronously if the provided code is valid for given prepared secret and user identifier using the default executor.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return future completed with true if the code is valid and should be accepted
+     */
+    public CompletableFuture<Boolean> checkCodeAsync(final PreparedSecret secret, final String code, final String userIdentifier) {
+        return checkCodeAsync(secret, code, userIdentifier, getAsyncExecutor());
+    }
+
+    /**
+     * Checks asynchronously if the provided code is valid for given prepared secret and user identifier.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @param executor       executor used for verifying the code
+     * @return future completed with true if the code is valid and should be accepted
+     */
+    public CompletableFuture<Boolean> checkCodeAsync(final PreparedSecret secret, final String code, final String userIdentifier,
+                                                     final Executor executor) {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (StringUtils.isEmpty(code)) {
+            throw new IllegalArgumentException("code cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+
+        return CompletableFuture.supplyAsync(() -> checkCode(secret, code, userIdentifier), executor);
+    }
+
+    /**
+     * Gets the executor used by the asynchronous operations when no executor is passed.
+     *
+     * @return default executor
+     */
+    protected Executor getAsyncExecutor() {
+        return AsyncExecutorHolder.EXECUTOR;
+    }
+
     /**
      * Generates a verification code based on the passed secret and a challenge value.
      *
@@ -92,36 +264,128 @@ public abstract class Authenticator {
      * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
      */
     protected String getCodeInternal(final String secret, final long challengeValue) throws InvalidKeyException, AuthenticatorException {
-        long chlg = challengeValue;
-
-        byte[] challenge = ByteBuffer.allocate(8).putLong(challengeValue).array();
+        return getCodeInternal(new PreparedSecret(secret), challengeValue);
+    }
 
-        byte[] key = Base32Encoding.toBytes(secret);
-        for (int i = secret.length(); i < key.length; i++) {
-            key[i] = 0;
-        }
+    /**
+     * Generates a verification code based on the passed prepared secret and a challenge value.
+     *
+     * @param secret         passed prepared secret
+     * @param challengeValue passed challenge value
+     * @return generated code
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    protected String getCodeInternal(final PreparedSecret secret, final long challengeValue) throws InvalidKeyException, AuthenticatorException {
+        return formatCode(getCodeValueInternal(secret, challengeValue));
+    }
 
+    /**
+     * Generates a numeric verification code based on the passed prepared secret and a challenge value.
+     *
+     * @param secret         passed prepared secret
+     * @param challengeValue passed challenge value
+     * @return generated code value
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    protected int getCodeValueInternal(final PreparedSecret secret, final long challengeValue) throws InvalidKeyException, AuthenticatorException {
         byte[] hash;
         try {
-            hash = HMAC.hmacDigest(challenge, key, CRYPTO_ALGORITHM);
+            if (hmacEngine == HmacEngine.INTERNAL && hmacAlgorithm == HmacAlgorithm.SHA1) {
+                return HMAC.truncatedHmacSha1Digest(challengeValue, secret.getSha1PadStates()) % codeModulus;
+            }
+            hash = HMAC.hmacDigest(challengeValue, secret.getKeySpec(hmacAlgorithm), hmacAlgorithm.getMacName());
         } catch (final NoSuchAlgorithmException e) {
-            throw new AuthenticatorException("HmacSHA1 algorithm is not present in your JVM.", e);
+            throw new AuthenticatorException(hmacAlgorithm.getMacName() + " algorithm is not present in your JVM.", e);
         }
 
         int offset = hash[hash.length - 1] & 0xf;
 
-        long truncatedHash = 0;
-        for (int j = 0; j < 4; j++) {
-            truncatedHash <<= 8;
-            int absValue = (int) hash[offset + j] & 0xFF;
-            truncatedHash |= absValue;
+        int truncatedHash = (hash[offset] & 0x7F) << 24
+                | (hash[offset + 1] & 0xFF) << 16
+                | (hash[offset + 2] & 0xFF) << 8
+                | (hash[offset + 3] & 0xFF);
+
+        return truncatedHash % codeModulus;
+    }
+
+    /**
+     * Gets the HMAC algorithm used for computing the codes.
+     *
+     * @return HMAC algorithm
+     */
+    protected HmacAlgorithm getHmacAlgorithm() {
+        return hmacAlgorithm;
+    }
+
+    /**
+     * Gets the number of digits of a code.
+     *
+     * @return number of digits
+     */
+    protected int getCodeDigits() {
+        return codeDigits;
+    }
+
+    /**
+     * Formats a numeric code value as a zero-padded code string.
+     *
+     * @param codeValue code value
+     * @return code string
+     */
+    protected String formatCode(final int codeValue) {
+        char[] digits = new char[codeDigits];
+        int value = codeValue;
+        for (int i = codeDigits - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
         }
+        return new String(digits);
+    }
 
-        truncatedHash &= 0x7FFFFFFF;
-        truncatedHash %= 1000000;
+    /**
+     * Parses a code string to its numeric value. Codes of a wrong length or containing characters other than digits
+     * are rejected without computing any HMAC.
+     *
+     * @param code code string
+     * @return code value or INVALID_CODE if the code is malformed
+     */
+    protected int parseCode(final String code) {
+        if (code.length() != codeDigits) {
+            return INVALID_CODE;
+        }
 
-        String code = Long.toString(truncatedHash);
-        return StringUtils.leftPad(code, 6, '0');
+        int value = 0;
+        for (int i = 0; i < codeDigits; i++) {
+            int digit = code.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_CODE;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Checks if a numeric code value can be produced by this authenticator at all.
+     *
+     * @param codeValue code value
+     * @return true if the value is within the range of valid codes
+     */
+    protected boolean isValidCodeValue(final int codeValue) {
+        return codeValue >= 0 && codeValue < codeModulus;
+    }
+
+    /**
+     * Compares two numeric code values without branching on their content.
+     *
+     * @param a first value to compare
+     * @param b second value to compare
+     * @return comparison result
+     */
+    protected boolean intEquals(final int a, final int b) {
+        return (a ^ b) == 0;
     }
 
     /**
@@ -140,14 +404,4 @@ public abstract class Authenticator {
 
         return diff == 0;
     }
-
-    /**
-     * Generates a random integer value.
-     *
-     * @param max maximum allowed value
-     * @return random integer
-     */
-    protected static int randomInt(final int max) {
-        return RANDOM.nextInt(max);
-    }
 }
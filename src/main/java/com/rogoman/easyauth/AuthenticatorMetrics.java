@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of code generation and verification. Pass an instance to the TimeAuthenticator builder
+ * and to the InMemoryUsedCodesManager to have them record into it; without metrics nothing is measured at all.
+ * All the values are kept in striped LongAdder counters, so recording does not make concurrent threads contend, and
+ * can be read as a snapshot or through JMX once the instance is registered. Instances are thread-safe.
+ */
+public final class AuthenticatorMetrics implements AuthenticatorMetricsMXBean {
+
+    /**
+     * Domain of the JMX object names of registered metrics.
+     */
+    public static final String JMX_DOMAIN = "com.rogoman.easyauth";
+
+    /**
+     * Accepted codes are counted for the offsets up to this number of intervals back and forward; codes accepted further
+     * away are counted at the outermost offset.
+     */
+    public static final int MAX_TRACKED_OFFSET = 16;
+
+    private final LatencyHistogram generationLatency = new LatencyHistogram();
+    private final LatencyHistogram checkLatency = new LatencyHistogram();
+    private final LatencyHistogram cleanupDuration = new LatencyHistogram();
+    private final LongAdder acceptedCodes = new LongAdder();
+    private final LongAdder replayRejections = new LongAdder();
+    private final LongAdder checkHmacs = new LongAdder();
+    private final LongAdder usedCodes = new LongAdder();
+    private final LongAdder[] matchedOffsets = new LongAdder[2 * MAX_TRACKED_OFFSET + 1];
+
+    /**
+     * An immutable copy of the values of the metrics.
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram.Snapshot generationLatency;
+        private final LatencyHistogram.Snapshot checkLatency;
+        private final LatencyHistogram.Snapshot cleanupDuration;
+        private final long acceptedCodes;
+        private final long replayRejections;
+        private final long checkHmacs;
+        private final long usedCodes;
+        private final SortedMap<Integer, Long> matchedOffsets;
+
+        /**
+         * Creates a new instance of Snapshot.
+         *
+         * @param metrics metrics to copy
+         */
+        Snapshot(final AuthenticatorMetrics metrics) {
+            this.generationLatency = metrics.generationLatency.snapshot();
+            this.checkLatency = metrics.checkLatency.snapshot();
+            this.cleanupDuration = metrics.cleanupDuration.snapshot();
+            this.acceptedCodes = metrics.acceptedCodes.sum();
+            this.replayRejections = metrics.replayRejections.sum();
+            this.checkHmacs = metrics.checkHmacs.sum();
+            this.usedCodes = metrics.usedCodes.sum();
+
+            SortedMap<Integer, Long> offsets = new TreeMap<>();
+            for (int i = 0; i < metrics.matchedOffsets.length; i++) {
+                long count = metrics.matchedOffsets[i].sum();
+                if (count > 0) {
+                    offsets.put(i - MAX_TRACKED_OFFSET, count);
+                }
+            }
+            this.matchedOffsets = Collections.unmodifiableSortedMap(offsets);
+        }
+
+        /**
+         * Gets the durations of code generations.
+         *
+         * @return histogram snapshot
+         */
+        public LatencyHistogram.Snapshot getGenerationLatency() {
+            return generationLatency;
+        }
+
+        /**
+         * Gets the durations of code checks.
+         *
+         * @return histogram snapshot
+         */
+        public LatencyHistogram.Snapshot getCheckLatency() {
+            return checkLatency;
+        }
+
+        /**
+         * Gets the durations of cleanups of the used codes.
+         *
+         * @return histogram snapshot
+         */
+        public LatencyHistogram.Snapshot getCleanupDuration() {
+            return cleanupDuration;
+        }
+
+        /**
+         * Gets the number of accepted codes.
+         *
+         * @return count
+         */
+        public long getAcceptedCodes() {
+            return acceptedCodes;
+        }
+
+        /**
+         * Gets the number of rejected codes.
+         *
+         * @return count
+         */
+        public long getRejectedCodes() {
+            return Math.max(0, checkLatency.getCount() - acceptedCodes);
+        }
+
+        /**
+         * Gets the number of codes rejected because they had already been used.
+         *
+         * @return count
+         */
+        public long getReplayRejections() {
+            return replayRejections;
+        }
+
+        /**
+         * Gets the number of HMACs computed while checking codes.
+         *
+         * @return count
+         */
+        public long getCheckHmacs() {
+            return checkHmacs;
+        }
+
+        /**
+         * Gets the average number of HMACs computed per checked code.
+         *
+         * @return HMACs per check, 0 if no code has been checked
+         */
+        public double getHmacsPerCheck() {
+            return checkLatency.getCount() == 0 ? 0 : (double) checkHmacs / checkLatency.getCount();
+        }
+
+        /**
+         * Gets the number of used codes kept by the used codes managers.
+         *
+         * @return count
+         */
+        public long getUsedCodes() {
+            return usedCodes;
+        }
+
+        /**
+         * Gets the number of accepted codes by the offset of their interval from the current interval.
+         *
+         * @return accepted codes by offset, without offsets no code was accepted at
+         */
+        public SortedMap<Integer, Long> getMatchedOffsets() {
+            return matchedOffsets;
+        }
+    }
+
+    /**
+     * Creates a new instance of the AuthenticatorMetrics class.
+     */
+    public AuthenticatorMetrics() {
+        for (int i = 0; i < matchedOffsets.length; i++) {
+            matchedOffsets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Gets a copy of the current values.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server.
+     *
+     * @param name value of the name key of the object name, e.g. the name of the application
+     * @return object name the metrics are registered under
+     * @throws javax.management.JMException thrown when the metrics cannot be registered, e.g. the name is taken
+     */
+    public ObjectName register(final String name) throws JMException {
+        ObjectName objectName = objectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server.
+     *
+     * @param name name the metrics have been registered with
+     * @throws javax.management.JMException thrown when no metrics are registered with the name
+     */
+    public static void unregister(final String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    }
+
+    @Override
+    public long getGeneratedCodeCount() {
+        return generationLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getGenerationMeanNanos() {
+        return generationLatency.snapshot().getMeanNanos();
+    }
+
+    @Override
+    public long getGenerationP99Nanos() {
+        return generationLatency.snapshot().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getCheckedCodeCount() {
+        return checkLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getAcceptedCodeCount() {
+        return acceptedCodes.sum();
+    }
+
+    @Override
+    public long getReplayRejectionCount() {
+        return replayRejections.sum();
+    }
+
+    @Override
+    public long getCheckMeanNanos() {
+        return checkLatency.snapshot().getMeanNanos();
+    }
+
+    @Override
+    public long getCheckP50Nanos() {
+        return checkLatency.snapshot().getPercentileNanos(50);
+    }
+
+    @Override
+    public long getCheckP99Nanos() {
+        return checkLatency.snapshot().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getCheckMaxNanos() {
+        return checkLatency.snapshot().getMaxNanos();
+    }
+
+    @Override
+    public long getCheckHmacCount() {
+        return checkHmacs.sum();
+    }
+
+    @Override
+    public double getHmacsPerCheck() {
+        return snapshot().getHmacsPerCheck();
+    }
+
+    @Override
+    public SortedMap<Integer, Long> getMatchedOffsetCounts() {
+        return snapshot().getMatchedOffsets();
+    }
+
+    @Override
+    public long getUsedCodeCount() {
+        return usedCodes.sum();
+    }
+
+    @Override
+    public long getCleanupCount() {
+        return cleanupDuration.snapshot().getCount();
+    }
+
+    @Override
+    public long getCleanupMaxNanos() {
+        return cleanupDuration.snapshot().getMaxNanos();
+    }
+
+    /**
+     * Records the generation of a code.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    void recordGeneration(final long nanos) {
+        generationLatency.record(nanos);
+    }
+
+    /**
+     * Records the check of a code.
+     *
+     * @param nanos    duration in nanoseconds
+     * @param accepted true if the code has been accepted
+     */
+    void recordCheck(final long nanos, final boolean accepted) {
+        checkLatency.record(nanos);
+        if (accepted) {
+            acceptedCodes.increment();
+        }
+    }
+
+    /**
+     * Records the HMACs computed while checking a code.
+     *
+     * @param count number of HMACs
+     */
+    void recordCheckHmacs(final int count) {
+        if (count > 0) {
+            checkHmacs.add(count);
+        }
+    }
+
+    /**
+     * Records the offset of the interval of an accepted code from the current interval.
+     *
+     * @param offset offset in intervals
+     */
+    void recordMatchedOffset(final long offset) {
+        int index = (int) Math.max(-MAX_TRACKED_OFFSET, Math.min(MAX_TRACKED_OFFSET, offset)) + MAX_TRACKED_OFFSET;
+        matchedOffsets[index].increment();
+    }
+
+    /**
+     * Records the rejection of a code that had already been used.
+     */
+    void recordReplayRejection() {
+        replayRejections.increment();
+    }
+
+    /**
+     * Records a change of the number of kept used codes.
+     *
+     * @param delta number of added codes, negative for removed ones
+     */
+    void recordUsedCodes(final long delta) {
+        usedCodes.add(delta);
+    }
+
+    /**
+     * Records a cleanup of the used codes.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    void recordCleanup(final long nanos) {
+        cleanupDuration.record(nanos);
+    }
+
+    /**
+     * Creates the JMX object name of metrics.
+     *
+     * @param name value of the name key
+     * @return object name
+     * @throws javax.management.JMException thrown when the name is not a valid object name value
+     */
+    private static ObjectName objectName(final String name) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=AuthenticatorMetrics,name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.SortedMap;
+
+/**
+ * The JMX management interface of AuthenticatorMetrics. Durations are reported in nanoseconds; percentiles are
+ * estimates accurate to a factor of two.
+ */
+public interface AuthenticatorMetricsMXBean {
+
+    /**
+     * Gets the number of generated codes.
+     *
+     * @return count
+     */
+    long getGeneratedCodeCount();
+
+    /**
+     * Gets the average duration of a code generation.
+     *
+     * @return mean duration in nanoseconds
+     */
+    long getGenerationMeanNanos();
+
+    /**
+     * Gets the 99th percentile of the duration of a code generation.
+     *
+     * @return duration in nanoseconds
+     */
+    long getGenerationP99Nanos();
+
+    /**
+     * Gets the number of checked codes.
+     *
+     * @return count
+     */
+    long getCheckedCodeCount();
+
+    /**
+     * Gets the number of accepted codes.
+     *
+     * @return count
+     */
+    long getAcceptedCodeCount();
+
+    /**
+     * Gets the number of codes rejected because they had already been used.
+     *
+     * @return count
+     */
+    long getReplayRejectionCount();
+
+    /**
+     * Gets the average duration of a code check.
+     *
+     * @return mean duration in nanoseconds
+     */
+    long getCheckMeanNanos();
+
+    /**
+     * Gets the median duration of a code check.
+     *
+     * @return duration in nanoseconds
+     */
+    long getCheckP50Nanos();
+
+    /**
+     * Gets the 99th percentile of the duration of a code check.
+     *
+     * @return duration in nanoseconds
+     */
+    long getCheckP99Nanos();
+
+    /**
+     * Gets the longest duration of a code check.
+     *
+     * @return duration in nanoseconds
+     */
+    long getCheckMaxNanos();
+
+    /**
+     * Gets the number of HMACs computed while checking codes.
+     *
+     * @return count
+     */
+    long getCheckHmacCount();
+
+    /**
+     * Gets the average number of HMACs computed per checked code.
+     *
+     * @return HMACs per check
+     */
+    double getHmacsPerCheck();
+
+    /**
+     * Gets the number of accepted codes by the offset of their interval from the current interval.
+     *
+     * @return accepted codes by offset, without offsets no code was accepted at
+     */
+    SortedMap<Integer, Long> getMatchedOffsetCounts();
+
+    /**
+     * Gets the number of used codes kept by the used codes managers reporting to the metrics.
+     *
+     * @return count
+     */
+    long getUsedCodeCount();
+
+    /**
+     * Gets the number of cleanups of the used codes.
+     *
+     * @return count
+     */
+    long getCleanupCount();
+
+    /**
+     * Gets the longest duration of a cleanup of the used codes.
+     *
+     * @return duration in nanoseconds
+     */
+    long getCleanupMaxNanos();
+}
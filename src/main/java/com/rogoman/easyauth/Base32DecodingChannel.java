@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A channel of the bytes decoded from ASCII BASE32 text read from another channel, e.g. a file channel of an export with one
+ * BASE32 secret key per line. A line break ends a key, so unpadded keys of any length can be stored one per line; other
+ * whitespace is skipped. The text is read into a direct buffer allocated once per channel and decoded straight from it, so a
+ * file of any size is decoded in a single pass with constant memory and without copying the text. The buffers are cleared
+ * when the channel is closed. Instances are not thread-safe.
+ */
+public class Base32DecodingChannel implements ReadableByteChannel {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel source;
+    private final Base32StreamDecoder decoder = new Base32StreamDecoder();
+    private final ByteBuffer text;
+    private final byte[] bytes;
+    private int position;
+    private int limit;
+    private boolean endOfText;
+
+    /**
+     * Creates a new instance of the Base32DecodingChannel class with the default buffer size.
+     *
+     * @param source channel of the ASCII BASE32 text
+     */
+    public Base32DecodingChannel(final ReadableByteChannel source) {
+        this(source, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new instance of the Base32DecodingChannel class.
+     *
+     * @param source     channel of the ASCII BASE32 text
+     * @param bufferSize number of bytes read from the source at once
+     */
+    public Base32DecodingChannel(final ReadableByteChannel source, final int bufferSize) {
+        if (source == null) {
+            throw new IllegalArgumentException("source cannot be null");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize parameter has to be positive");
+        }
+
+        this.source = source;
+        this.text = ByteBuffer.allocateDirect(bufferSize);
+        this.bytes = new byte[Base32StreamDecoder.maxDecodedLength(bufferSize)];
+    }
+
+    /**
+     * Reads decoded bytes into the passed buffer. If the source is in non-blocking mode and has no text available,
+     * no bytes are read.
+     *
+     * @param dst buffer receiving the bytes
+     * @return number of bytes read or -1 at the end of the text
+     * @throws java.io.IOException thrown when the text cannot be read or contains a character that is not a BASE32 character
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+
+        while (position == limit) {
+            if (endOfText) {
+                return -1;
+            }
+            if (!fill()) {
+                return 0;
+            }
+        }
+
+        int count = Math.min(dst.remaining(), limit - position);
+        dst.put(bytes, position, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            text.clear();
+            while (text.hasRemaining()) {
+                text.put((byte) 0);
+            }
+            Arrays.fill(bytes, (byte) 0);
+            decoder.clear();
+            position = 0;
+            limit = 0;
+        }
+    }
+
+    /**
+     * Reads and decodes the next chunk of the text.
+     *
+     * @return false if the source had no text available
+     * @throws java.io.IOException thrown when the text cannot be read or contains a character that is not a BASE32 character
+     */
+    private boolean fill() throws IOException {
+        text.clear();
+        int read = source.read(text);
+        position = 0;
+        if (read < 0) {
+            endOfText = true;
+            limit = decoder.finish(bytes, 0);
+            return true;
+        }
+        if (read == 0) {
+            limit = 0;
+            return false;
+        }
+
+        text.flip();
+        limit = decoder.decode(text, bytes, 0);
+        return true;
+    }
+}
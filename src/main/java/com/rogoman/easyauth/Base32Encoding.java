@@ -16,13 +16,46 @@
 
 package com.rogoman.easyauth;
 
-import org.apache.commons.lang.StringUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Represents BASE32 encoding used by the Google Authenticator algorithm.
+ * Characters are translated with lookup tables and processed in blocks of 8 characters, i.e. 5 bytes. Besides the
+ * String conversions, the decode methods write into caller-supplied buffers without allocating anything and report
+ * invalid input with a return value instead of an exception.
  */
 final class Base32Encoding {
 
+    /**
+     * A value returned by the decode methods when the input contains a character that is not a BASE32 character.
+     */
+    static final int INVALID_INPUT = -1;
+
+    private static final char PADDING = '=';
+
+    private static final int BLOCK_CHARS = 8;
+
+    private static final int BLOCK_BYTES = 5;
+
+    private static final int BITS_PER_CHAR = 5;
+
+    private static final char[] ENCODE_TABLE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+    /**
+     * Values of the ASCII characters, -1 for characters outside of the alphabet. Lowercase letters are accepted as well.
+     */
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        for (int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = (byte) i;
+            DECODE_TABLE[Character.toLowerCase(ENCODE_TABLE[i])] = (byte) i;
+        }
+    }
+
     /**
      * A private constructor to prevent from instantiating this class.
      */
@@ -34,40 +67,17 @@ final class Base32Encoding {
      *
      * @param input BASE32 string input
      * @return byte array
+     * @throws java.lang.IllegalArgumentException thrown when the input is empty or contains a character that is not a BASE32 character
      */
-    static byte[] toBytes(final String input) {
-        if (StringUtils.isEmpty(input)) {
+    static byte[] toBytes(final CharSequence input) {
+        if (input == null || input.length() == 0) {
             throw new IllegalArgumentException("input");
         }
 
-        String cleanInput = input.replaceAll("[=]+$", ""); //remove padding characters
-        int byteCount = cleanInput.length() * 5 / 8; //this must be TRUNCATED
-        byte[] returnArray = new byte[byteCount];
-
-        byte curByte = 0, bitsRemaining = 8;
-        int mask, arrayIndex = 0;
-
-        for (char c : cleanInput.toCharArray()) {
-            int cValue = charToValue(c);
-
-            if (bitsRemaining > 5) {
-                mask = cValue << (bitsRemaining - 5);
-                curByte = (byte) (curByte | mask);
-                bitsRemaining -= 5;
-            } else {
-                mask = cValue >> (5 - bitsRemaining);
-                curByte = (byte) (curByte | mask);
-                returnArray[arrayIndex++] = curByte;
-                curByte = (byte) (cValue << (3 + bitsRemaining));
-                bitsRemaining += 3;
-            }
+        byte[] returnArray = new byte[decodedLength(input)];
+        if (decode(input, returnArray, 0) == INVALID_INPUT) {
+            throw new IllegalArgumentException("Character is not a Base32 character.");
         }
-
-        //if we didn't end with a full byte
-        if (arrayIndex != byteCount) {
-            returnArray[arrayIndex] = curByte;
-        }
-
         return returnArray;
     }
 
@@ -82,77 +92,376 @@ final class Base32Encoding {
             throw new IllegalArgumentException("input");
         }
 
-        int charCount = (int) Math.ceil(input.length / 5d) * 8;
-        char[] returnArray = new char[charCount];
+        return toString(input, 0, input.length);
+    }
+
+    /**
+     * Converts a part of a byte array to a BASE32 string.
+     *
+     * @param input  byte array
+     * @param offset index of the first byte to convert
+     * @param length number of bytes to convert
+     * @return BASE32 string
+     */
+    static String toString(final byte[] input, final int offset, final int length) {
+        if (input == null || length <= 0 || offset < 0 || offset > input.length - length) {
+            throw new IllegalArgumentException("input");
+        }
+
+        char[] returnArray = new char[encodedLength(length)];
+        encode(input, offset, length, returnArray, 0);
+        return new String(returnArray);
+    }
 
-        byte nextChar = 0, bitsRemaining = 5;
-        int arrayIndex = 0;
+    /**
+     * Gets the number of characters, including padding, of the BASE32 representation of a number of bytes.
+     *
+     * @param length number of bytes
+     * @return number of characters
+     */
+    static int encodedLength(final int length) {
+        return (length + BLOCK_BYTES - 1) / BLOCK_BYTES * BLOCK_CHARS;
+    }
 
-        for (byte b : input) {
-            nextChar = (byte) (nextChar | (b >> (8 - bitsRemaining)));
-            returnArray[arrayIndex++] = valueToChar(nextChar);
+    /**
+     * Encodes a part of a byte array as BASE32 characters, padded to a whole block.
+     *
+     * @param input        byte array
+     * @param inputOffset  index of the first byte to encode
+     * @param inputLength  number of bytes to encode
+     * @param output       array receiving the characters
+     * @param outputOffset index of the first character to write
+     * @return number of characters written, see encodedLength
+     */
+    static int encode(final byte[] input, final int inputOffset, final int inputLength, final char[] output, final int outputOffset) {
+        if (output.length - outputOffset < encodedLength(inputLength)) {
+            throw new IllegalArgumentException("output is too small");
+        }
 
-            if (bitsRemaining < 4) {
-                nextChar = (byte) ((b >> (3 - bitsRemaining)) & 31);
-                returnArray[arrayIndex++] = valueToChar(nextChar);
-                bitsRemaining += 5;
+        int in = inputOffset;
+        int out = outputOffset;
+        int end = inputOffset + inputLength;
+        while (in < end) {
+            int blockLength = Math.min(BLOCK_BYTES, end - in);
+            long bits = 0;
+            for (int i = 0; i < BLOCK_BYTES; i++) {
+                bits = bits << 8 | (i < blockLength ? input[in + i] & 0xFF : 0);
+            }
+            int chars = (blockLength * 8 + BITS_PER_CHAR - 1) / BITS_PER_CHAR;
+            for (int i = 0; i < BLOCK_CHARS; i++) {
+                output[out + i] = i < chars ? ENCODE_TABLE[(int) (bits >>> (35 - BITS_PER_CHAR * i)) & 31] : PADDING;
             }
+            in += blockLength;
+            out += BLOCK_CHARS;
+        }
+        return out - outputOffset;
+    }
 
-            bitsRemaining -= 3;
-            nextChar = (byte) ((b << bitsRemaining) & 31);
+    /**
+     * Gets the number of bytes represented by BASE32 characters. Trailing padding is ignored, as are the bits of an
+     * incomplete last byte.
+     *
+     * @param input BASE32 characters
+     * @return number of bytes
+     */
+    static int decodedLength(final CharSequence input) {
+        return byteCount(unpaddedLength(input));
+    }
+
+    /**
+     * Gets the number of bytes represented by BASE32 characters held in a part of an array.
+     *
+     * @param input  array holding BASE32 characters
+     * @param offset index of the first character
+     * @param length number of characters
+     * @return number of bytes
+     */
+    static int decodedLength(final char[] input, final int offset, final int length) {
+        return byteCount(unpaddedLength(input, offset, length));
+    }
+
+    /**
+     * Decodes BASE32 characters into a byte array.
+     *
+     * @param input        BASE32 characters, lowercase letters and trailing padding are accepted
+     * @param output       array receiving the bytes
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written or INVALID_INPUT if the input contains a character that is not a BASE32 character, in which
+     *         case the bytes already written are cleared
+     */
+    static int decode(final CharSequence input, final byte[] output, final int outputOffset) {
+        int length = unpaddedLength(input);
+        if (output.length - outputOffset < byteCount(length)) {
+            throw new IllegalArgumentException("output is too small");
         }
 
-        //if we didn't end with a full char
-        if (arrayIndex != charCount) {
-            returnArray[arrayIndex++] = valueToChar(nextChar);
-            while (arrayIndex != charCount) {
-                returnArray[arrayIndex++] = '='; //padding
+        int out = outputOffset;
+        int in = 0;
+        for (; in <= length - BLOCK_CHARS; in += BLOCK_CHARS) {
+            int v0 = valueOf(input.charAt(in));
+            int v1 = valueOf(input.charAt(in + 1));
+            int v2 = valueOf(input.charAt(in + 2));
+            int v3 = valueOf(input.charAt(in + 3));
+            int v4 = valueOf(input.charAt(in + 4));
+            int v5 = valueOf(input.charAt(in + 5));
+            int v6 = valueOf(input.charAt(in + 6));
+            int v7 = valueOf(input.charAt(in + 7));
+            if ((v0 | v1 | v2 | v3 | v4 | v5 | v6 | v7) < 0) {
+                return invalidInput(output, outputOffset, out);
+            }
+            putFullBlock(v0, v1, v2, v3, v4, v5, v6, v7, output, out);
+            out += BLOCK_BYTES;
+        }
+        if (in < length) {
+            long bits = 0;
+            int invalid = 0;
+            for (int i = in; i < length; i++) {
+                int value = valueOf(input.charAt(i));
+                invalid |= value;
+                bits = bits << BITS_PER_CHAR | value & 31;
             }
+            if (invalid < 0) {
+                return invalidInput(output, outputOffset, out);
+            }
+            out += putBlock(bits, length - in, output, out);
         }
+        return out - outputOffset;
+    }
 
-        return new String(returnArray);
+    /**
+     * Decodes BASE32 characters held in a part of an array into a byte array.
+     *
+     * @param input        array holding BASE32 characters, lowercase letters and trailing padding are accepted
+     * @param inputOffset  index of the first character
+     * @param inputLength  number of characters
+     * @param output       array receiving the bytes
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written or INVALID_INPUT if the input contains a character that is not a BASE32 character, in which
+     *         case the bytes already written are cleared
+     */
+    static int decode(final char[] input, final int inputOffset, final int inputLength, final byte[] output, final int outputOffset) {
+        int length = unpaddedLength(input, inputOffset, inputLength);
+        if (output.length - outputOffset < byteCount(length)) {
+            throw new IllegalArgumentException("output is too small");
+        }
+
+        int out = outputOffset;
+        int end = inputOffset + length;
+        int in = inputOffset;
+        for (; in <= end - BLOCK_CHARS; in += BLOCK_CHARS) {
+            int v0 = valueOf(input[in]);
+            int v1 = valueOf(input[in + 1]);
+            int v2 = valueOf(input[in + 2]);
+            int v3 = valueOf(input[in + 3]);
+            int v4 = valueOf(input[in + 4]);
+            int v5 = valueOf(input[in + 5]);
+            int v6 = valueOf(input[in + 6]);
+            int v7 = valueOf(input[in + 7]);
+            if ((v0 | v1 | v2 | v3 | v4 | v5 | v6 | v7) < 0) {
+                return invalidInput(output, outputOffset, out);
+            }
+            putFullBlock(v0, v1, v2, v3, v4, v5, v6, v7, output, out);
+            out += BLOCK_BYTES;
+        }
+        if (in < end) {
+            long bits = 0;
+            int invalid = 0;
+            for (int i = in; i < end; i++) {
+                int value = valueOf(input[i]);
+                invalid |= value;
+                bits = bits << BITS_PER_CHAR | value & 31;
+            }
+            if (invalid < 0) {
+                return invalidInput(output, outputOffset, out);
+            }
+            out += putBlock(bits, end - in, output, out);
+        }
+        return out - outputOffset;
     }
 
     /**
-     * Converts a single character to a represented BASE32 value.
+     * Decodes BASE32 characters into a buffer, starting at its position. The position is advanced past the written bytes
+     * unless the input is invalid, in which case the bytes already written are cleared.
      *
-     * @param c character to convert
-     * @return represented value
+     * @param input  BASE32 characters, lowercase letters and trailing padding are accepted
+     * @param output buffer receiving the bytes
+     * @return number of bytes written or INVALID_INPUT if the input contains a character that is not a BASE32 character
      */
-    private static int charToValue(final char c) {
-        int value = (int) c;
+    static int decode(final CharSequence input, final ByteBuffer output) {
+        if (output.hasArray()) {
+            int written = decode(input, output.array(), output.arrayOffset() + output.position());
+            if (written != INVALID_INPUT) {
+                output.position(output.position() + written);
+            }
+            return written;
+        }
+
+        int length = unpaddedLength(input);
+        if (output.remaining() < byteCount(length)) {
+            throw new IllegalArgumentException("output is too small");
+        }
+
+        int position = output.position();
+        for (int in = 0; in < length; in += BLOCK_CHARS) {
+            int blockLength = Math.min(BLOCK_CHARS, length - in);
+            long bits = 0;
+            int invalid = 0;
+            for (int i = 0; i < blockLength; i++) {
+                int value = valueOf(input.charAt(in + i));
+                invalid |= value;
+                bits = bits << BITS_PER_CHAR | value & 31;
+            }
+            if (invalid < 0) {
+                // the bytes of the blocks already decoded are overwritten, so no part of a secret is left behind
+                for (int i = position; i < output.position(); i++) {
+                    output.put(i, (byte) 0);
+                }
+                output.position(position);
+                return INVALID_INPUT;
+            }
+            int bitCount = blockLength * BITS_PER_CHAR;
+            for (int i = 0; i < bitCount / 8; i++) {
+                output.put((byte) (bits >>> (bitCount - 8 * (i + 1))));
+            }
+        }
+        return output.position() - position;
+    }
 
-        //65-90 == uppercase letters
-        if (value < 91 && value > 64) {
-            return value - 65;
+    /**
+     * Decodes a block of 8 ASCII BASE32 characters held in a buffer, e.g. a direct buffer filled by a channel.
+     *
+     * @param input        buffer holding ASCII characters
+     * @param index        index of the first character of the block
+     * @param output       array receiving the 5 bytes
+     * @param outputOffset index of the first byte to write
+     * @return true if the block has been decoded, false if it holds a character that is not a BASE32 character, e.g. padding or
+     *         whitespace, in which case nothing is written
+     */
+    static boolean decodeBlock(final ByteBuffer input, final int index, final byte[] output, final int outputOffset) {
+        long chars = input.getLong(index);
+        if (input.order() == ByteOrder.LITTLE_ENDIAN) {
+            chars = Long.reverseBytes(chars);
         }
-        //50-55 == numbers 2-7
-        if (value < 56 && value > 49) {
-            return value - 24;
+        int v0 = valueOf((char) (chars >>> 56));
+        int v1 = valueOf((char) (chars >>> 48 & 0xFF));
+        int v2 = valueOf((char) (chars >>> 40 & 0xFF));
+        int v3 = valueOf((char) (chars >>> 32 & 0xFF));
+        int v4 = valueOf((char) (chars >>> 24 & 0xFF));
+        int v5 = valueOf((char) (chars >>> 16 & 0xFF));
+        int v6 = valueOf((char) (chars >>> 8 & 0xFF));
+        int v7 = valueOf((char) (chars & 0xFF));
+        if ((v0 | v1 | v2 | v3 | v4 | v5 | v6 | v7) < 0) {
+            return false;
         }
-        //97-122 == lowercase letters
-        if (value < 123 && value > 96) {
-            return value - 97;
+        putFullBlock(v0, v1, v2, v3, v4, v5, v6, v7, output, outputOffset);
+        return true;
+    }
+
+    /**
+     * Clears the bytes decoded before an invalid character was found, so no part of a secret is left in the output.
+     *
+     * @param output array receiving the bytes
+     * @param from   index of the first written byte
+     * @param to     index after the last written byte
+     * @return INVALID_INPUT
+     */
+    private static int invalidInput(final byte[] output, final int from, final int to) {
+        Arrays.fill(output, from, to, (byte) 0);
+        return INVALID_INPUT;
+    }
+
+    /**
+     * Writes the 5 bytes of a block of 8 characters.
+     *
+     * @param v0     value of the 1st character
+     * @param v1     value of the 2nd character
+     * @param v2     value of the 3rd character
+     * @param v3     value of the 4th character
+     * @param v4     value of the 5th character
+     * @param v5     value of the 6th character
+     * @param v6     value of the 7th character
+     * @param v7     value of the 8th character
+     * @param output array receiving the bytes
+     * @param offset index of the first byte to write
+     */
+    private static void putFullBlock(final int v0, final int v1, final int v2, final int v3, final int v4, final int v5, final int v6,
+                                     final int v7, final byte[] output, final int offset) {
+        output[offset] = (byte) (v0 << 3 | v1 >> 2);
+        output[offset + 1] = (byte) (v1 << 6 | v2 << 1 | v3 >> 4);
+        output[offset + 2] = (byte) (v3 << 4 | v4 >> 1);
+        output[offset + 3] = (byte) (v4 << 7 | v5 << 2 | v6 >> 3);
+        output[offset + 4] = (byte) (v6 << 5 | v7);
+    }
+
+    /**
+     * Writes the bytes of a decoded block. Bits of an incomplete last byte are dropped.
+     *
+     * @param bits        decoded block, right-aligned
+     * @param blockLength number of characters in the block
+     * @param output      array receiving the bytes
+     * @param offset      index of the first byte to write
+     * @return number of bytes written
+     */
+    private static int putBlock(final long bits, final int blockLength, final byte[] output, final int offset) {
+        int bitCount = blockLength * BITS_PER_CHAR;
+        int byteCount = bitCount / 8;
+        for (int i = 0; i < byteCount; i++) {
+            output[offset + i] = (byte) (bits >>> (bitCount - 8 * (i + 1)));
         }
+        return byteCount;
+    }
 
-        throw new IllegalArgumentException("Character is not a Base32 character.");
+    /**
+     * Gets the value of a single BASE32 character without branching on the character.
+     *
+     * @param c character to convert
+     * @return represented value or a negative number for characters outside of the alphabet
+     */
+    private static int valueOf(final char c) {
+        return DECODE_TABLE[c & 0x7F] | (0x7F - c) >> 31;
+    }
+
+    /**
+     * Gets the number of bytes represented by a number of unpadded characters.
+     *
+     * @param chars number of characters
+     * @return number of bytes
+     */
+    private static int byteCount(final int chars) {
+        return (int) ((long) chars * BITS_PER_CHAR / 8);
     }
 
     /**
-     * Converts a single byte value to a BASE32 representation.
+     * Gets the number of characters without the trailing padding.
      *
-     * @param b single byte
-     * @return BASE32 representation
+     * @param input BASE32 characters
+     * @return number of characters
      */
-    private static char valueToChar(final byte b) {
-        if (b < 26) {
-            return (char) (b + 65);
+    private static int unpaddedLength(final CharSequence input) {
+        int length = input.length();
+        while (length > 0 && input.charAt(length - 1) == PADDING) {
+            length--;
         }
+        return length;
+    }
 
-        if (b < 32) {
-            return (char) (b + 24);
+    /**
+     * Gets the number of characters held in a part of an array without the trailing padding.
+     *
+     * @param input  array holding BASE32 characters
+     * @param offset index of the first character
+     * @param length number of characters
+     * @return number of characters
+     */
+    private static int unpaddedLength(final char[] input, final int offset, final int length) {
+        if (offset < 0 || length < 0 || offset > input.length - length) {
+            throw new IllegalArgumentException("input");
         }
 
-        throw new IllegalArgumentException("Byte is not a value Base32 value.");
+        int unpadded = length;
+        while (unpadded > 0 && input[offset + unpadded - 1] == PADDING) {
+            unpadded--;
+        }
+        return unpadded;
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A channel encoding the written bytes as ASCII BASE32 text written to another channel. The text can be broken into lines,
+ * e.g. a line of 32 characters holds one 20-byte secret key. The last block is padded when the channel is closed.
+ * The text is written from a direct buffer allocated once per channel, so any amount of data is encoded with constant memory
+ * and without extra copies in the file channel. The target is expected to be in blocking mode. Instances are not thread-safe.
+ */
+public class Base32EncodingChannel implements WritableByteChannel {
+    private static final int DEFAULT_BUFFER_SIZE = 40 * 1024;
+
+    private final WritableByteChannel target;
+    private final Base32StreamEncoder encoder;
+    private final byte[] bytes;
+    private final char[] chars;
+    private final ByteBuffer text;
+    private boolean closed;
+
+    /**
+     * Creates a new instance of the Base32EncodingChannel class writing a single line.
+     *
+     * @param target channel receiving the ASCII BASE32 text
+     */
+    public Base32EncodingChannel(final WritableByteChannel target) {
+        this(target, 0);
+    }
+
+    /**
+     * Creates a new instance of the Base32EncodingChannel class.
+     *
+     * @param target     channel receiving the ASCII BASE32 text
+     * @param lineLength number of characters in a line, a multiple of 8, or 0 to write a single line without a separator
+     */
+    public Base32EncodingChannel(final WritableByteChannel target, final int lineLength) {
+        if (target == null) {
+            throw new IllegalArgumentException("target cannot be null");
+        }
+
+        this.target = target;
+        this.encoder = new Base32StreamEncoder(lineLength);
+        this.bytes = new byte[DEFAULT_BUFFER_SIZE];
+        this.chars = new char[Base32StreamEncoder.maxEncodedLength(DEFAULT_BUFFER_SIZE)];
+        this.text = ByteBuffer.allocateDirect(chars.length);
+    }
+
+    /**
+     * Encodes all the remaining bytes of the passed buffer. The bytes that do not fill a whole block are kept until
+     * more bytes are written or the channel is closed.
+     *
+     * @param src buffer holding the bytes
+     * @return number of bytes consumed
+     * @throws java.io.IOException thrown when the text cannot be written
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        int consumed = src.remaining();
+        while (src.hasRemaining()) {
+            int count = Math.min(src.remaining(), bytes.length);
+            src.get(bytes, 0, count);
+            writeText(encoder.encode(bytes, 0, count, chars, 0));
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && target.isOpen();
+    }
+
+    /**
+     * Writes the padded last block, closes the target channel and clears the buffers.
+     *
+     * @throws java.io.IOException thrown when the text cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeText(encoder.finish(chars, 0));
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+            Arrays.fill(chars, '\0');
+            text.clear();
+            while (text.hasRemaining()) {
+                text.put((byte) 0);
+            }
+            target.close();
+        }
+    }
+
+    /**
+     * Writes the encoded characters to the target channel.
+     *
+     * @param length number of encoded characters
+     * @throws java.io.IOException thrown when the text cannot be written
+     */
+    private void writeText(final int length) throws IOException {
+        text.clear();
+        for (int i = 0; i < length; i++) {
+            text.put((byte) chars[i]);
+        }
+        text.flip();
+        while (text.hasRemaining()) {
+            target.write(text);
+        }
+    }
+}
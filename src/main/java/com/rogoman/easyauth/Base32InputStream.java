@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * An input stream of the bytes decoded from BASE32 text read from a reader, e.g. a file with one BASE32 secret key per line.
+ * A line break ends a key, so unpadded keys of any length can be stored one per line; other whitespace is skipped. The text
+ * is decoded in chunks through fixed-size buffers, so a file of any size is decoded in a single pass with constant memory.
+ * The buffers are cleared when the stream is closed.
+ */
+public class Base32InputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final Base32StreamDecoder decoder = new Base32StreamDecoder();
+    private final char[] chars;
+    private final byte[] bytes;
+    private int position;
+    private int limit;
+    private boolean endOfText;
+
+    /**
+     * Creates a new instance of the Base32InputStream class with the default buffer size.
+     *
+     * @param reader reader of the BASE32 text
+     */
+    public Base32InputStream(final Reader reader) {
+        this(reader, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new instance of the Base32InputStream class.
+     *
+     * @param reader     reader of the BASE32 text
+     * @param bufferSize number of characters read from the reader at once
+     */
+    public Base32InputStream(final Reader reader, final int bufferSize) {
+        if (reader == null) {
+            throw new IllegalArgumentException("reader cannot be null");
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize parameter has to be positive");
+        }
+
+        this.reader = reader;
+        this.chars = new char[bufferSize];
+        this.bytes = new byte[Base32StreamDecoder.maxDecodedLength(bufferSize)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return bytes[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+
+        int count = Math.min(len, limit - position);
+        System.arraycopy(bytes, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } finally {
+            Arrays.fill(chars, '\0');
+            Arrays.fill(bytes, (byte) 0);
+            decoder.clear();
+            position = 0;
+            limit = 0;
+        }
+    }
+
+    /**
+     * Decodes the next chunk of the text unless there are decoded bytes left.
+     *
+     * @return false if the end of the text has been reached
+     * @throws java.io.IOException thrown when the text cannot be read or contains a character that is not a BASE32 character
+     */
+    private boolean fill() throws IOException {
+        while (position == limit) {
+            if (endOfText) {
+                return false;
+            }
+            position = 0;
+            int read = reader.read(chars);
+            if (read < 0) {
+                endOfText = true;
+                limit = decoder.finish(bytes, 0);
+            } else {
+                limit = decoder.decode(chars, 0, read, bytes, 0);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * An output stream encoding the written bytes as BASE32 text written to a writer. The text can be broken into lines,
+ * e.g. a line of 16 characters holds one 10-byte secret key. The last block is padded when the stream is closed.
+ * The bytes are encoded in chunks through fixed-size buffers, so any amount of data is encoded with constant memory.
+ */
+public class Base32OutputStream extends OutputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Writer writer;
+    private final Base32StreamEncoder encoder;
+    private final byte[] single = new byte[1];
+    private final char[] chars;
+    private final int chunkSize;
+    private boolean closed;
+
+    /**
+     * Creates a new instance of the Base32OutputStream class writing a single line.
+     *
+     * @param writer writer of the BASE32 text
+     */
+    public Base32OutputStream(final Writer writer) {
+        this(writer, 0);
+    }
+
+    /**
+     * Creates a new instance of the Base32OutputStream class.
+     *
+     * @param writer     writer of the BASE32 text
+     * @param lineLength number of characters in a line, a multiple of 8, or 0 to write a single line without a separator
+     */
+    public Base32OutputStream(final Writer writer, final int lineLength) {
+        if (writer == null) {
+            throw new IllegalArgumentException("writer cannot be null");
+        }
+
+        this.writer = writer;
+        this.encoder = new Base32StreamEncoder(lineLength);
+        this.chunkSize = DEFAULT_BUFFER_SIZE;
+        this.chars = new char[Base32StreamEncoder.maxEncodedLength(chunkSize)];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        for (int chunk = off; chunk < off + len; chunk += chunkSize) {
+            int count = encoder.encode(b, chunk, Math.min(chunkSize, off + len - chunk), chars, 0);
+            writer.write(chars, 0, count);
+        }
+    }
+
+    /**
+     * Flushes the writer. The bytes that do not fill a whole block are kept until more bytes are written or the stream
+     * is closed.
+     *
+     * @throws java.io.IOException thrown when the writer cannot be flushed
+     */
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Writes the padded last block, closes the writer and clears the buffers.
+     *
+     * @throws java.io.IOException thrown when the text cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.write(chars, 0, encoder.finish(chars, 0));
+        } finally {
+            Arrays.fill(chars, '\0');
+            single[0] = 0;
+            writer.close();
+        }
+    }
+}
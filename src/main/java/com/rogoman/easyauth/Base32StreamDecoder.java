@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The state of a BASE32 decoding of a stream of characters. Characters that do not fill a whole block of 8 characters
+ * are kept until the next call, so the stream can be decoded in chunks of any size. A line break ends a key: the characters
+ * of an incomplete block before it are decoded as an unpadded last block, so keys of any length can be stored one per line.
+ * Other whitespace is skipped. Padding may end any block, so padded keys may also follow each other on a line.
+ * Instances are not thread-safe.
+ */
+final class Base32StreamDecoder {
+
+    private static final int BLOCK_BYTES = 5;
+
+    private static final int BLOCK_CHARS = 8;
+
+    private final char[] pending = new char[BLOCK_CHARS];
+    private int pendingLength;
+
+    /**
+     * Gets the maximum number of bytes written by decoding a number of characters. The characters kept from the previous
+     * call may complete a block, so the bound covers one more block than the characters themselves.
+     *
+     * @param length number of characters
+     * @return maximum number of bytes
+     */
+    static int maxDecodedLength(final int length) {
+        return (length / BLOCK_CHARS + 2) * BLOCK_BYTES;
+    }
+
+    /**
+     * Decodes the next characters of the stream.
+     *
+     * @param input        array holding BASE32 characters
+     * @param inputOffset  index of the first character
+     * @param inputLength  number of characters
+     * @param output       array receiving the bytes, see maxDecodedLength
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written
+     * @throws java.io.IOException thrown when the stream contains a character that is not a BASE32 character
+     */
+    int decode(final char[] input, final int inputOffset, final int inputLength, final byte[] output, final int outputOffset)
+            throws IOException {
+        int out = outputOffset;
+        int end = inputOffset + inputLength;
+        for (int in = inputOffset; in < end; in++) {
+            out += accept(input[in], output, out);
+        }
+        return out - outputOffset;
+    }
+
+    /**
+     * Decodes the next ASCII characters of the stream held in a buffer, from its position to its limit. The buffer is read
+     * in place, so a direct buffer filled by a channel is decoded without copying the text. The position is moved to the limit.
+     *
+     * @param input        buffer holding ASCII BASE32 characters
+     * @param output       array receiving the bytes, see maxDecodedLength
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written
+     * @throws java.io.IOException thrown when the stream contains a character that is not a BASE32 character
+     */
+    int decode(final ByteBuffer input, final byte[] output, final int outputOffset) throws IOException {
+        int out = outputOffset;
+        int end = input.limit();
+        int in = input.position();
+        while (in < end) {
+            // whole blocks at the start of a block are decoded in place; whitespace, padding or an invalid character
+            // is left to the character by character path
+            if (pendingLength == 0 && end - in >= BLOCK_CHARS && Base32Encoding.decodeBlock(input, in, output, out)) {
+                out += BLOCK_BYTES;
+                in += BLOCK_CHARS;
+            } else {
+                out += accept((char) (input.get(in) & 0xFF), output, out);
+                in++;
+            }
+        }
+        input.position(end);
+        return out - outputOffset;
+    }
+
+    /**
+     * Decodes the characters kept from the previous calls as the last, possibly unpadded, block.
+     *
+     * @param output       array receiving the bytes, at least 5 bytes long
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written
+     * @throws java.io.IOException thrown when the block contains a character that is not a BASE32 character
+     */
+    int finish(final byte[] output, final int outputOffset) throws IOException {
+        int length = pendingLength;
+        pendingLength = 0;
+        return length > 0 ? decodeBlock(length, output, outputOffset) : 0;
+    }
+
+    /**
+     * Clears the characters kept from the previous calls, e.g. when the stream is closed before its end.
+     */
+    void clear() {
+        Arrays.fill(pending, '\0');
+        pendingLength = 0;
+    }
+
+    /**
+     * Adds a character of the stream, decoding the block it completes.
+     *
+     * @param c            character
+     * @param output       array receiving the bytes
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written
+     * @throws java.io.IOException thrown when the block contains a character that is not a BASE32 character
+     */
+    private int accept(final char c, final byte[] output, final int outputOffset) throws IOException {
+        if (c == '\n' || c == '\r') {
+            return finish(output, outputOffset);
+        }
+        if (c <= ' ') {
+            return 0;
+        }
+
+        pending[pendingLength++] = c;
+        if (pendingLength < BLOCK_CHARS) {
+            return 0;
+        }
+        pendingLength = 0;
+        return decodeBlock(BLOCK_CHARS, output, outputOffset);
+    }
+
+    /**
+     * Decodes the pending characters and clears them.
+     *
+     * @param length       number of pending characters
+     * @param output       array receiving the bytes
+     * @param outputOffset index of the first byte to write
+     * @return number of bytes written
+     * @throws java.io.IOException thrown when the block contains a character that is not a BASE32 character
+     */
+    private int decodeBlock(final int length, final byte[] output, final int outputOffset) throws IOException {
+        int written = Base32Encoding.decode(pending, 0, length, output, outputOffset);
+        Arrays.fill(pending, 0, length, '\0');
+        if (written == Base32Encoding.INVALID_INPUT) {
+            throw new IOException("Character is not a Base32 character.");
+        }
+        return written;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.Arrays;
+
+/**
+ * The state of a BASE32 encoding of a stream of bytes. Bytes that do not fill a whole block of 5 bytes are kept until
+ * the next call, so the stream can be encoded in chunks of any size. The output can be broken into lines, e.g. so that
+ * each line holds a single secret key. Instances are not thread-safe.
+ */
+final class Base32StreamEncoder {
+
+    private static final int BLOCK_BYTES = 5;
+
+    private static final int BLOCK_CHARS = 8;
+
+    private static final char LINE_SEPARATOR = '\n';
+
+    private final byte[] pending = new byte[BLOCK_BYTES];
+    private final int blocksPerLine;
+    private int pendingLength;
+    private int lineBlocks;
+
+    /**
+     * Creates a new instance of Base32StreamEncoder.
+     *
+     * @param lineLength number of characters in a line, a multiple of 8, or 0 to write a single line without a separator
+     */
+    Base32StreamEncoder(final int lineLength) {
+        if (lineLength < 0 || lineLength % BLOCK_CHARS != 0) {
+            throw new IllegalArgumentException("lineLength parameter has to be a non-negative multiple of " + BLOCK_CHARS);
+        }
+        this.blocksPerLine = lineLength / BLOCK_CHARS;
+    }
+
+    /**
+     * Gets the maximum number of characters written by encoding a number of bytes or by finishing the stream,
+     * whatever number of bytes is kept from the previous calls.
+     *
+     * @param length number of bytes
+     * @return maximum number of characters
+     */
+    static int maxEncodedLength(final int length) {
+        int blocks = length / BLOCK_BYTES + 1;
+        return blocks * (BLOCK_CHARS + 1);
+    }
+
+    /**
+     * Encodes the next bytes of the stream.
+     *
+     * @param input        byte array
+     * @param inputOffset  index of the first byte to encode
+     * @param inputLength  number of bytes to encode
+     * @param output       array receiving the characters, see maxEncodedLength
+     * @param outputOffset index of the first character to write
+     * @return number of characters written
+     */
+    int encode(final byte[] input, final int inputOffset, final int inputLength, final char[] output, final int outputOffset) {
+        int in = inputOffset;
+        int end = inputOffset + inputLength;
+        int out = outputOffset;
+
+        if (pendingLength > 0) {
+            int count = Math.min(BLOCK_BYTES - pendingLength, end - in);
+            System.arraycopy(input, in, pending, pendingLength, count);
+            pendingLength += count;
+            in += count;
+            if (pendingLength < BLOCK_BYTES) {
+                return 0;
+            }
+            out += putBlocks(pending, 0, 1, output, out);
+            pendingLength = 0;
+        }
+
+        while (end - in >= BLOCK_BYTES) {
+            int blocks = (end - in) / BLOCK_BYTES;
+            if (blocksPerLine > 0) {
+                blocks = Math.min(blocks, blocksPerLine - lineBlocks);
+            }
+            out += putBlocks(input, in, blocks, output, out);
+            in += blocks * BLOCK_BYTES;
+        }
+
+        System.arraycopy(input, in, pending, 0, end - in);
+        pendingLength = end - in;
+        return out - outputOffset;
+    }
+
+    /**
+     * Encodes the bytes kept from the previous calls as a padded block and ends the last line.
+     *
+     * @param output       array receiving the characters, at least 9 characters long
+     * @param outputOffset index of the first character to write
+     * @return number of characters written
+     */
+    int finish(final char[] output, final int outputOffset) {
+        int out = outputOffset;
+        if (pendingLength > 0) {
+            out += Base32Encoding.encode(pending, 0, pendingLength, output, out);
+            Arrays.fill(pending, (byte) 0);
+            pendingLength = 0;
+            lineBlocks++;
+        }
+        if (blocksPerLine > 0 && lineBlocks > 0) {
+            output[out++] = LINE_SEPARATOR;
+            lineBlocks = 0;
+        }
+        return out - outputOffset;
+    }
+
+    /**
+     * Encodes whole blocks, ending the line when it is full.
+     *
+     * @param input        byte array
+     * @param inputOffset  index of the first byte to encode
+     * @param blocks       number of blocks, not exceeding the rest of the line
+     * @param output       array receiving the characters
+     * @param outputOffset index of the first character to write
+     * @return number of characters written
+     */
+    private int putBlocks(final byte[] input, final int inputOffset, final int blocks, final char[] output, final int outputOffset) {
+        int out = outputOffset + Base32Encoding.encode(input, inputOffset, blocks * BLOCK_BYTES, output, outputOffset);
+        if (blocksPerLine > 0) {
+            lineBlocks += blocks;
+            if (lineBlocks == blocksPerLine) {
+                output[out++] = LINE_SEPARATOR;
+                lineBlocks = 0;
+            }
+        }
+        return out - outputOffset;
+    }
+}
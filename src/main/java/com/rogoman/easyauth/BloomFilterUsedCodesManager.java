@@ -0,0 +1,482 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A used codes manager that puts an in-memory Bloom filter in front of a slower one, e.g. backed by a database.
+ * Every interval (the timestamp passed by the TimeAuthenticator) gets its own filter of the codes used in it; the filters
+ * of the most recent intervals are kept in a ring and the oldest one is replaced when a new interval starts. A code the
+ * filter has never seen is known to be unused, so both isCodeUsed and markIfUnused consult the backing manager only on a
+ * possible hit. When markIfUnused sets the bits of a code the filter has never seen, the atomic update of the filter word
+ * decides the caller that accepts the code, and the code is only stored with addCode, without a lookup in the backing manager.
+ * The filters are sized for the configured false positive rate taking into account that each code keeps its bits in a
+ * single 64-bit word.
+ * <p>
+ * The answers are only correct if all the codes stored by the backing manager pass through this instance, so do not share the
+ * backing store with other processes. Codes used before the manager was created are unknown to it, so for the first
+ * retainedIntervals intervals after creation, and for intervals older than the ones kept in the ring, all the calls go
+ * straight to the backing manager. Keep retainedIntervals at least as large as the window of intervals accepted by the
+ * authenticator.
+ *
+ * @param <T> A type of user identifiers.
+ */
+public class BloomFilterUsedCodesManager<T> implements UsedCodesManager<T> {
+
+    /**
+     * Filter of the codes used in a single interval. All the bits of a code are set in a single 64-bit word (a blocked
+     * Bloom filter), so a code is added with one atomic update, and the thread that sets the last missing bit of a code
+     * is the only one that can see the code as new. Each word also counts the codes whose bits have been set in it but which
+     * are still being stored in the backing manager; a check that finds the bits of its code set waits for them, so it
+     * does not ask the backing manager before the code that set the bits is there.
+     */
+    private static final class IntervalFilter {
+        private final long interval;
+        private final AtomicLongArray words;
+        private final AtomicIntegerArray pendingStores;
+
+        /**
+         * Creates a new instance of IntervalFilter.
+         *
+         * @param interval  interval of the codes
+         * @param wordCount number of 64-bit words, a power of two
+         */
+        IntervalFilter(final long interval, final int wordCount) {
+            this.interval = interval;
+            this.words = new AtomicLongArray(wordCount);
+            this.pendingStores = new AtomicIntegerArray(wordCount);
+        }
+    }
+
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final int MAX_HASH_FUNCTIONS = 10;
+
+    private static final int BITS_PER_HASH_FUNCTION = 6;
+
+    private static final int MAX_WORDS = 1 << 24;
+
+    private final UsedCodesManager<T> backingManager;
+    private final AtomicReferenceArray<IntervalFilter> filters;
+    private final int wordCount;
+    private final int hashFunctions;
+    private final double expectedFalsePositiveRate;
+    private final long firstTrustedInterval;
+    private final long intervalLength;
+
+    private final LongAdder definiteMisses = new LongAdder();
+    private final LongAdder possibleHits = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+
+    /**
+     * Constructs a new BloomFilterUsedCodesManager keeping the filters of the intervals accepted by the TimeAuthenticator
+     * with its default settings.
+     *
+     * @param backingManager           manager storing the used codes
+     * @param expectedCodesPerInterval expected number of codes used within a single interval
+     * @param falsePositiveRate        acceptable rate of unused codes for which the backing manager is consulted
+     */
+    public BloomFilterUsedCodesManager(final UsedCodesManager<T> backingManager, final int expectedCodesPerInterval,
+                                       final double falsePositiveRate) {
+        this(backingManager, expectedCodesPerInterval, falsePositiveRate,
+                TimeAuthenticator.DEFAULT_CHECK_BACK_INTERVALS + TimeAuthenticator.DEFAULT_CHECK_FORWARD_INTERVALS + 1,
+                TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+    }
+
+    /**
+     * Constructs a new BloomFilterUsedCodesManager.
+     *
+     * @param backingManager           manager storing the used codes
+     * @param expectedCodesPerInterval expected number of codes used within a single interval
+     * @param falsePositiveRate        acceptable rate of unused codes for which the backing manager is consulted
+     * @param retainedIntervals        number of the most recent intervals whose filters are kept
+     * @param intervalSeconds          interval length in seconds used by the authenticator
+     */
+    public BloomFilterUsedCodesManager(final UsedCodesManager<T> backingManager, final int expectedCodesPerInterval,
+                                       final double falsePositiveRate, final int retainedIntervals, final int intervalSeconds) {
+        if (backingManager == null) {
+            throw new IllegalArgumentException("backingManager cannot be null");
+        }
+        if (expectedCodesPerInterval <= 0) {
+            throw new IllegalArgumentException("expectedCodesPerInterval parameter has to be positive");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("falsePositiveRate parameter has to be between 0 and 1");
+        }
+        if (retainedIntervals <= 0) {
+            throw new IllegalArgumentException("retainedIntervals parameter has to be positive");
+        }
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("intervalSeconds parameter has to be positive");
+        }
+
+        // start from the standard Bloom filter size, m = -n ln(p) / ln(2)^2 bits, and grow it until the blocked filter,
+        // whose words fill unevenly, reaches the rate
+        double bits = -expectedCodesPerInterval * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long words = Math.max(1, (long) Math.ceil(bits / Long.SIZE));
+        int filterWords = words > MAX_WORDS ? MAX_WORDS << 1 : Math.max(1, Integer.highestOneBit((int) words - 1) << 1);
+        int functions = bestHashFunctions(expectedCodesPerInterval, filterWords);
+        while (filterWords <= MAX_WORDS && blockedFalsePositiveRate(expectedCodesPerInterval, filterWords, functions) > falsePositiveRate) {
+            filterWords <<= 1;
+            functions = bestHashFunctions(expectedCodesPerInterval, filterWords);
+        }
+        if (filterWords > MAX_WORDS) {
+            throw new IllegalArgumentException("expectedCodesPerInterval parameter is too large for the falsePositiveRate");
+        }
+
+        this.backingManager = backingManager;
+        this.filters = new AtomicReferenceArray<>(retainedIntervals);
+        this.wordCount = filterWords;
+        this.hashFunctions = functions;
+        this.expectedFalsePositiveRate = blockedFalsePositiveRate(expectedCodesPerInterval, filterWords, functions);
+        this.intervalLength = (long) intervalSeconds * MILLISECONDS_IN_SECOND;
+        this.firstTrustedInterval = Math.floorDiv(System.currentTimeMillis(), intervalLength) + retainedIntervals;
+    }
+
+    /**
+     * Checks that the authenticator uses the interval length the manager has been created with and passes it on to the
+     * backing manager.
+     *
+     * @param intervalSeconds interval length in seconds used by the authenticator
+     * @throws java.lang.IllegalArgumentException thrown when the manager has been created for another interval length
+     */
+    @Override
+    public void bindIntervalSeconds(final int intervalSeconds) {
+        if ((long) intervalSeconds * MILLISECONDS_IN_SECOND != intervalLength) {
+            throw new IllegalArgumentException("The used codes manager has been created for " + intervalLength / MILLISECONDS_IN_SECOND
+                    + "-second intervals");
+        }
+        backingManager.bindIntervalSeconds(intervalSeconds);
+    }
+
+    @Override
+    public void addCode(final long timestamp, final String code, final T userId) {
+        IntervalFilter filter = getOrCreateFilter(timestamp);
+        if (filter == null) {
+            backingManager.addCode(timestamp, code, userId);
+        } else {
+            addAndStore(filter, hash(timestamp, code, userId), timestamp, code, userId);
+        }
+    }
+
+    @Override
+    public boolean isCodeUsed(final long timestamp, final String code, final T userId) {
+        if (!isTrusted(timestamp)) {
+            bypasses.increment();
+            return backingManager.isCodeUsed(timestamp, code, userId);
+        }
+
+        long hash = hash(timestamp, code, userId);
+        IntervalFilter filter = filters.get(slotOf(timestamp));
+        if (filter != null && filter.interval > timestamp) {
+            // the filter of this interval has already been replaced
+            bypasses.increment();
+            return backingManager.isCodeUsed(timestamp, code, userId);
+        }
+        if (filter == null || filter.interval < timestamp || !mightContain(filter, hash)) {
+            // no code of this interval has been added yet or the filter has never seen this one
+            definiteMisses.increment();
+            return false;
+        }
+
+        awaitPendingStores(filter, hash);
+        possibleHits.increment();
+        boolean used = backingManager.isCodeUsed(timestamp, code, userId);
+        if (!used) {
+            falsePositives.increment();
+        }
+        return used;
+    }
+
+    @Override
+    public boolean markIfUnused(final long timestamp, final String code, final T userId) {
+        IntervalFilter filter = isTrusted(timestamp) ? getOrCreateFilter(timestamp) : null;
+        if (filter == null) {
+            bypasses.increment();
+            return backingManager.markIfUnused(timestamp, code, userId);
+        }
+
+        long hash = hash(timestamp, code, userId);
+        if (addAndStore(filter, hash, timestamp, code, userId)) {
+            definiteMisses.increment();
+            return true;
+        }
+
+        awaitPendingStores(filter, hash);
+        possibleHits.increment();
+        boolean marked = backingManager.markIfUnused(timestamp, code, userId);
+        if (marked) {
+            falsePositives.increment();
+        }
+        return marked;
+    }
+
+    /**
+     * Gets the number of checks answered by the filter alone, without consulting the backing manager.
+     *
+     * @return definite miss count
+     */
+    public long getDefiniteMissCount() {
+        return definiteMisses.sum();
+    }
+
+    /**
+     * Gets the number of checks for which the filter reported a possible hit and the backing manager was consulted.
+     *
+     * @return possible hit count
+     */
+    public long getPossibleHitCount() {
+        return possibleHits.sum();
+    }
+
+    /**
+     * Gets the number of possible hits that turned out to be unused codes.
+     *
+     * @return false positive count
+     */
+    public long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * Gets the number of checks passed straight to the backing manager because the filter of the interval was not available.
+     *
+     * @return bypass count
+     */
+    public long getBypassCount() {
+        return bypasses.sum();
+    }
+
+    /**
+     * Gets the expected rate of unused codes reported as possible hits once the expected number of codes of an interval
+     * has been added. It is not higher than the rate passed to the constructor.
+     *
+     * @return expected false positive rate
+     */
+    public double getExpectedFalsePositiveRate() {
+        return expectedFalsePositiveRate;
+    }
+
+    /**
+     * Computes the false positive rate of a Bloom filter keeping all the bits of a code in one 64-bit word. The number of
+     * codes in a word follows the Poisson distribution, and a word holding i codes answers like a standard Bloom filter of
+     * 64 bits holding i codes.
+     *
+     * @param codes         number of added codes
+     * @param wordCount     number of words
+     * @param hashFunctions number of bits set per code
+     * @return false positive rate
+     */
+    static double blockedFalsePositiveRate(final long codes, final int wordCount, final int hashFunctions) {
+        double codesPerWord = (double) codes / wordCount;
+        double missingBitProbability = Math.log(1 - 1.0 / Long.SIZE) * hashFunctions;
+        long lastCount = (long) (codesPerWord + 12 * Math.sqrt(codesPerWord) + 20);
+        double logProbability = -codesPerWord;
+        double rate = 0;
+        for (long i = 0; i <= lastCount; i++) {
+            if (i > 0) {
+                logProbability += Math.log(codesPerWord) - Math.log(i);
+            }
+            rate += Math.exp(logProbability) * Math.pow(1 - Math.exp(missingBitProbability * i), hashFunctions);
+        }
+        return rate;
+    }
+
+    /**
+     * Finds the number of bits set per code giving the lowest false positive rate for a filter size.
+     *
+     * @param codes     number of added codes
+     * @param wordCount number of words
+     * @return number of hash functions
+     */
+    private static int bestHashFunctions(final long codes, final int wordCount) {
+        int best = 1;
+        for (int k = 2; k <= MAX_HASH_FUNCTIONS; k++) {
+            if (blockedFalsePositiveRate(codes, wordCount, k) < blockedFalsePositiveRate(codes, wordCount, best)) {
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gets the filter of an interval, replacing the filter of an older interval in the ring if needed.
+     *
+     * @param timestamp interval
+     * @return filter of the interval or null if the interval is older than the ones kept in the ring
+     */
+    private IntervalFilter getOrCreateFilter(final long timestamp) {
+        int slot = slotOf(timestamp);
+        while (true) {
+            IntervalFilter filter = filters.get(slot);
+            if (filter != null && filter.interval >= timestamp) {
+                return filter.interval == timestamp ? filter : null;
+            }
+            IntervalFilter newFilter = new IntervalFilter(timestamp, wordCount);
+            if (filters.compareAndSet(slot, filter, newFilter)) {
+                return newFilter;
+            }
+        }
+    }
+
+    /**
+     * Checks if the filters of an interval can be trusted, i.e. the codes of the interval could not have been used
+     * before this manager was created.
+     *
+     * @param timestamp interval
+     * @return true if the filter can be trusted
+     */
+    private boolean isTrusted(final long timestamp) {
+        return timestamp >= firstTrustedInterval;
+    }
+
+    /**
+     * Gets the ring slot of an interval.
+     *
+     * @param timestamp interval
+     * @return slot index
+     */
+    private int slotOf(final long timestamp) {
+        return (int) Math.floorMod(timestamp, (long) filters.length());
+    }
+
+    /**
+     * Sets the bits of a code in a filter.
+     *
+     * @param filter filter
+     * @param hash   hash of the code
+     * @return true if this call added the code, false if all its bits had already been set
+     */
+    private boolean add(final IntervalFilter filter, final long hash) {
+        int index = wordIndex(hash);
+        long mask = bitMask(hash);
+        while (true) {
+            long word = filter.words.get(index);
+            if ((word & mask) == mask) {
+                return false;
+            }
+            if (filter.words.compareAndSet(index, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sets the bits of a code in a filter and, if this call set the last missing bit, stores the code in the backing manager.
+     * The store is counted as pending in the word of the code until the backing manager returns.
+     *
+     * @param filter    filter
+     * @param hash      hash of the code
+     * @param timestamp interval
+     * @param code      code
+     * @param userId    user identifier
+     * @return true if the code has been stored, false if all its bits had already been set
+     */
+    private boolean addAndStore(final IntervalFilter filter, final long hash, final long timestamp, final String code, final T userId) {
+        int index = wordIndex(hash);
+        // counted before the bits are set, so whoever sees the bits also sees the pending store
+        filter.pendingStores.incrementAndGet(index);
+        try {
+            if (!add(filter, hash)) {
+                return false;
+            }
+            backingManager.addCode(timestamp, code, userId);
+            return true;
+        } finally {
+            filter.pendingStores.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * Waits until the codes sharing the word of a code have been stored in the backing manager.
+     *
+     * @param filter filter
+     * @param hash   hash of the code
+     */
+    private void awaitPendingStores(final IntervalFilter filter, final long hash) {
+        int index = wordIndex(hash);
+        while (filter.pendingStores.get(index) > 0) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Checks if all the bits of a code are set in a filter.
+     *
+     * @param filter filter
+     * @param hash   hash of the code
+     * @return true if the code might have been added
+     */
+    private boolean mightContain(final IntervalFilter filter, final long hash) {
+        long mask = bitMask(hash);
+        return (filter.words.get(wordIndex(hash)) & mask) == mask;
+    }
+
+    /**
+     * Gets the index of the word holding the bits of a code.
+     *
+     * @param hash hash of the code
+     * @return word index
+     */
+    private int wordIndex(final long hash) {
+        return (int) (hash >>> 32) & (wordCount - 1);
+    }
+
+    /**
+     * Gets the bits of a code within its word.
+     *
+     * @param hash hash of the code
+     * @return bit mask
+     */
+    private long bitMask(final long hash) {
+        long bits = Hashing.mix(hash);
+        long mask = 0;
+        for (int i = 0; i < hashFunctions; i++) {
+            mask |= 1L << (bits & (Long.SIZE - 1));
+            bits >>>= BITS_PER_HASH_FUNCTION;
+        }
+        return mask;
+    }
+
+    /**
+     * Computes a 64-bit hash of a used code.
+     *
+     * @param timestamp interval
+     * @param code      code
+     * @param userId    user identifier
+     * @return hash
+     */
+    private static long hash(final long timestamp, final String code, final Object userId) {
+        if (StringUtils.isEmpty(code)) {
+            throw new IllegalArgumentException("code is empty");
+        }
+
+        long hash = Hashing.mix(timestamp);
+        for (int i = 0; i < code.length(); i++) {
+            hash = (hash ^ code.charAt(i)) * Hashing.FNV_PRIME;
+        }
+        hash ^= (userId != null ? userId.hashCode() : 0) & 0xFFFFFFFFL;
+        return Hashing.mix(hash);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single daemon thread shared by all the used codes managers for their periodic cleanup.
+ */
+final class CleanupScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(CleanupScheduler.class.getName());
+
+    /**
+     * Holds the scheduler, created on first use.
+     */
+    private static final class SchedulerHolder {
+        private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+
+        /**
+         * Private constructor to prevent from instantiating the class.
+         */
+        private SchedulerHolder() {
+        }
+
+        /**
+         * Creates the scheduler.
+         *
+         * @return scheduler
+         */
+        private static ScheduledThreadPoolExecutor createScheduler() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "easyauth-cleanup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    /**
+     * Private constructor to prevent from instantiating the class.
+     */
+    private CleanupScheduler() {
+    }
+
+    /**
+     * Schedules a periodic cleanup task. Cancel the returned future to stop it. An exception thrown by a run is logged and
+     * the task runs again after the period; the executor would otherwise stop scheduling it without any notice.
+     *
+     * @param task         cleanup task
+     * @param periodMillis period between the runs in milliseconds
+     * @return future of the scheduled task
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, final long periodMillis) {
+        return SchedulerHolder.SCHEDULER.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Cleanup of used codes failed, it is retried on the next run", e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A single entry of a batch code verification: the secret, the code to verify and the user who used it.
+ */
+public final class CodeCheckRequest {
+    private final PreparedSecret secret;
+    private final String code;
+    private final String userIdentifier;
+
+    /**
+     * Creates a new instance of the CodeCheckRequest class.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     */
+    public CodeCheckRequest(final PreparedSecret secret, final String code, final String userIdentifier) {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (StringUtils.isEmpty(code)) {
+            throw new IllegalArgumentException("code cannot be null");
+        }
+
+        this.secret = secret;
+        this.code = code;
+        this.userIdentifier = userIdentifier;
+    }
+
+    /**
+     * Creates a new instance of the CodeCheckRequest class.
+     *
+     * @param secret         secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     */
+    public CodeCheckRequest(final String secret, final String code, final String userIdentifier) {
+        this(new PreparedSecret(secret), code, userIdentifier);
+    }
+
+    public PreparedSecret getSecret() {
+        return secret;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getUserIdentifier() {
+        return userIdentifier;
+    }
+}
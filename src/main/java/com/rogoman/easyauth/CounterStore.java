@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+/**
+ * An interface of a store of the HOTP counters of users. The stored value is the counter of the next code expected from
+ * the user's token. The HotpAuthenticator advances it with compareAndSetCounter, so an implementation shared by many
+ * authenticators accepts every code at most once.
+ */
+public interface CounterStore {
+
+    /**
+     * Gets the counter of the next code expected from a user's token.
+     *
+     * @param userIdentifier The user identifier
+     * @return counter value, 0 for users that have not used any code yet
+     */
+    long getCounter(String userIdentifier);
+
+    /**
+     * Atomically sets the counter of a user if it still has the expected value.
+     *
+     * @param userIdentifier The user identifier
+     * @param expected       counter value read by getCounter
+     * @param counter        new counter value
+     * @return true if the counter has been set, false if it has been changed in the meantime
+     */
+    boolean compareAndSetCounter(String userIdentifier, long expected, long counter);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+/**
+ * An interface of a store of the clock drift of users' devices, i.e. the offset in intervals between the current interval
+ * and the interval of the last code accepted for a user. The TimeAuthenticator checks the intervals around the stored drift
+ * first, so a device whose clock is consistently off needs a single HMAC computation per verification.
+ */
+public interface DriftStore {
+
+    /**
+     * The value returned for users whose drift is not known yet.
+     */
+    int UNKNOWN_DRIFT = Integer.MIN_VALUE;
+
+    /**
+     * Gets the drift of a user's device.
+     *
+     * @param userIdentifier The user identifier
+     * @return drift in intervals or UNKNOWN_DRIFT
+     */
+    int getDrift(String userIdentifier);
+
+    /**
+     * Stores the drift of a user's device.
+     *
+     * @param userIdentifier The user identifier
+     * @param drift          drift in intervals
+     */
+    void setDrift(String userIdentifier, int drift);
+}
@@ -20,6 +20,7 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 
 import org.apache.commons.lang.StringUtils;
@@ -88,12 +89,89 @@ final class HMAC {
             throw new IllegalArgumentException("algo is empty");
         }
 
-        SecretKeySpec key = new SecretKeySpec(secretKey, algorithm);
-        Mac mac = Mac.getInstance(algorithm);
-        mac.init(key);
+        return hmacDigest(msg, new SecretKeySpec(secretKey, algorithm), algorithm);
+    }
+
+    /**
+     * Calculates the HMAC digest value using an already initialized key. The Mac instance is taken from the per-thread
+     * MacPool, so passing the same key object repeatedly avoids the provider lookup and the key setup.
+     *
+     * @param msg       Message
+     * @param key       Key to be used in the hashing process
+     * @param algorithm HMAC algorithm to be used
+     * @return HMAC digest
+     * @throws java.security.NoSuchAlgorithmException thrown when the passed digest algorithm name cannot be recognized
+     * @throws java.security.InvalidKeyException      thrown when the passed secret key value is invalid according to the digest algorithm
+     */
+    static byte[] hmacDigest(final byte[] msg, final Key key, final String algorithm) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (msg == null) {
+            throw new IllegalArgumentException("msg is empty");
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("key is empty");
+        }
+        if (StringUtils.isEmpty(algorithm)) {
+            throw new IllegalArgumentException("algo is empty");
+        }
+
+        Mac mac = MacPool.acquire(algorithm, key);
         return mac.doFinal(msg);
     }
 
+    /**
+     * Calculates the HMAC digest of a counter value encoded as an 8-byte big-endian message.
+     * The counter bytes are fed directly into the pooled Mac, so no message array is allocated.
+     *
+     * @param counter   Counter value used as the message
+     * @param key       Key to be used in the hashing process
+     * @param algorithm HMAC algorithm to be used
+     * @return HMAC digest
+     * @throws java.security.NoSuchAlgorithmException thrown when the passed digest algorithm name cannot be recognized
+     * @throws java.security.InvalidKeyException      thrown when the passed secret key value is invalid according to the digest algorithm
+     */
+    static byte[] hmacDigest(final long counter, final Key key, final String algorithm) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (key == null) {
+            throw new IllegalArgumentException("key is empty");
+        }
+        if (StringUtils.isEmpty(algorithm)) {
+            throw new IllegalArgumentException("algo is empty");
+        }
+
+        Mac mac = MacPool.acquire(algorithm, key);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (counter >>> shift));
+        }
+        return mac.doFinal();
+    }
+
+    /**
+     * Calculates the HMAC-SHA1 digest of a counter value encoded as an 8-byte big-endian message with the built-in
+     * implementation, starting from the precomputed pad states of the key.
+     *
+     * @param counter   Counter value used as the message
+     * @param padStates SHA-1 states after the inner and the outer key pad, see PreparedSecret.getSha1PadStates
+     * @return HMAC digest
+     */
+    static byte[] hmacSha1Digest(final long counter, final int[] padStates) {
+        if (padStates == null || padStates.length != Sha1Hmac.PAD_STATES_LENGTH) {
+            throw new IllegalArgumentException("padStates are invalid");
+        }
+
+        return Sha1Hmac.fullDigest(padStates, counter);
+    }
+
+    /**
+     * Calculates the HMAC-SHA1 digest of a counter value with the built-in implementation and applies the dynamic truncation
+     * of RFC 4226. Nothing is allocated.
+     *
+     * @param counter   Counter value used as the message
+     * @param padStates SHA-1 states after the inner and the outer key pad, see PreparedSecret.getSha1PadStates
+     * @return 31-bit truncated digest
+     */
+    static int truncatedHmacSha1Digest(final long counter, final int[] padStates) {
+        return Sha1Hmac.truncatedDigest(padStates, counter);
+    }
+
     /**
      * Converts a byte array to a hex string.
      *
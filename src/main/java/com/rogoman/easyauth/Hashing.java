@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+/**
+ * Hash functions shared by the hash tables and filters of the package.
+ */
+final class Hashing {
+
+    /**
+     * Multiplier of the 64-bit FNV-1a hash.
+     */
+    static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Private constructor to prevent from instantiating the class.
+     */
+    private Hashing() {
+    }
+
+    /**
+     * Finalizes a hash value (MurmurHash3 fmix64).
+     *
+     * @param value value to mix
+     * @return mixed value
+     */
+    static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+/**
+ * HMAC algorithms that can be used for computing the codes, as allowed by RFC 6238.
+ * Google Authenticator and most tokens support only SHA1.
+ */
+public enum HmacAlgorithm {
+
+    /**
+     * HMAC-SHA1, the default of RFC 4226 and RFC 6238.
+     */
+    SHA1("HmacSHA1"),
+
+    /**
+     * HMAC-SHA256.
+     */
+    SHA256("HmacSHA256"),
+
+    /**
+     * HMAC-SHA512.
+     */
+    SHA512("HmacSHA512");
+
+    private final String macName;
+
+    /**
+     * Creates a new instance of HmacAlgorithm.
+     *
+     * @param macName JCA name of the HMAC algorithm
+     */
+    HmacAlgorithm(final String macName) {
+        this.macName = macName;
+    }
+
+    /**
+     * Gets the JCA name of the HMAC algorithm.
+     *
+     * @return Mac algorithm name
+     */
+    public String getMacName() {
+        return macName;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+/**
+ * Implementations of HMAC used for computing the codes.
+ */
+public enum HmacEngine {
+
+    /**
+     * The HMAC provided by the Java Cryptography Architecture, through the per-thread MacPool.
+     */
+    JCA,
+
+    /**
+     * The built-in HMAC-SHA1 implementation computing a code with half of the SHA-1 compressions of a generic HMAC and no allocations.
+     * It is faster than the JCA unless the JVM computes SHA-1 with dedicated CPU instructions, where it only saves the garbage.
+     * Algorithms other than SHA1 are always computed by the JCA.
+     */
+    INTERNAL
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.security.InvalidKeyException;
+
+/**
+ * Counter-based authenticator implementing RFC 4226 (HOTP), e.g. for hardware tokens generating a code on each button press.
+ * The counter of the next code expected from each user's token is kept in a CounterStore. A code is accepted if it matches
+ * one of the counters within the look-ahead window, and the stored counter is then moved past it, so every code is accepted
+ * at most once without a used codes manager. Tokens that got too far ahead can be resynchronized with two consecutive codes.
+ */
+public class HotpAuthenticator extends Authenticator {
+
+    /**
+     * Default number of counters after the expected one whose codes are accepted, e.g. after button presses that
+     * did not end in a login.
+     */
+    public static final int DEFAULT_LOOK_AHEAD_WINDOW = 10;
+
+    /**
+     * Default number of counters after the expected one searched by resynchronization.
+     */
+    public static final int DEFAULT_RESYNC_WINDOW = 100;
+
+    private static final long NO_MATCH = -1;
+
+    private final CounterStore counterStore;
+    private final int lookAheadWindow;
+    private final int resyncWindow;
+
+    /**
+     * Creates a new instance of the HotpAuthenticator class.
+     *
+     * @param counterStore    store of the counters of users
+     * @param lookAheadWindow number of counters after the expected one whose codes are accepted
+     * @param resyncWindow    number of counters after the expected one searched by resynchronization
+     * @param hmacEngine      HMAC implementation used for computing the codes
+     * @param hmacAlgorithm   HMAC algorithm used for computing the codes
+     * @param codeDigits      number of digits of a code, 6 to 8
+     */
+    public HotpAuthenticator(final CounterStore counterStore, final int lookAheadWindow, final int resyncWindow,
+                             final HmacEngine hmacEngine, final HmacAlgorithm hmacAlgorithm, final int codeDigits) {
+        super(hmacEngine, hmacAlgorithm, codeDigits);
+        if (counterStore == null) {
+            throw new IllegalArgumentException("counterStore cannot be null");
+        }
+        if (lookAheadWindow < 0) {
+            throw new IllegalArgumentException("lookAheadWindow parameter cannot be negative");
+        }
+        if (resyncWindow < lookAheadWindow) {
+            throw new IllegalArgumentException("resyncWindow parameter cannot be smaller than lookAheadWindow");
+        }
+
+        this.counterStore = counterStore;
+        this.lookAheadWindow = lookAheadWindow;
+        this.resyncWindow = resyncWindow;
+    }
+
+    /**
+     * Creates a new instance of the HotpAuthenticator class computing 6-digit codes with HMAC-SHA1.
+     *
+     * @param counterStore    store of the counters of users
+     * @param lookAheadWindow number of counters after the expected one whose codes are accepted
+     * @param resyncWindow    number of counters after the expected one searched by resynchronization
+     * @param hmacEngine      HMAC implementation used for computing the codes
+     */
+    public HotpAuthenticator(final CounterStore counterStore, final int lookAheadWindow, final int resyncWindow,
+                             final HmacEngine hmacEngine) {
+        this(counterStore, lookAheadWindow, resyncWindow, hmacEngine, HmacAlgorithm.SHA1, DEFAULT_CODE_DIGITS);
+    }
+
+    /**
+     * Creates a new instance of the HotpAuthenticator class computing the codes with the JCA HMAC.
+     *
+     * @param counterStore    store of the counters of users
+     * @param lookAheadWindow number of counters after the expected one whose codes are accepted
+     */
+    public HotpAuthenticator(final CounterStore counterStore, final int lookAheadWindow) {
+        this(counterStore, lookAheadWindow, Math.max(lookAheadWindow, DEFAULT_RESYNC_WINDOW), HmacEngine.JCA);
+    }
+
+    /**
+     * Creates a new instance of the HotpAuthenticator class with the default look-ahead window.
+     *
+     * @param counterStore store of the counters of users
+     */
+    public HotpAuthenticator(final CounterStore counterStore) {
+        this(counterStore, DEFAULT_LOOK_AHEAD_WINDOW);
+    }
+
+    /**
+     * Creates a new instance of the HotpAuthenticator class.
+     * The created authenticator keeps the counters in an InMemoryCounterStore and uses the default look-ahead window.
+     */
+    public HotpAuthenticator() {
+        this(new InMemoryCounterStore());
+    }
+
+    /**
+     * Gets the code of a counter.
+     *
+     * @param secret  secret used for generating the code
+     * @param counter counter value
+     * @return generated code
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public String getCode(final String secret, final long counter) throws AuthenticatorException, InvalidKeyException {
+        return getCode(new PreparedSecret(secret), counter);
+    }
+
+    /**
+     * Gets the code of a counter.
+     *
+     * @param secret  prepared secret used for generating the code
+     * @param counter counter value
+     * @return generated code
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public String getCode(final PreparedSecret secret, final long counter) throws AuthenticatorException, InvalidKeyException {
+        return formatCode(getCodeValue(secret, counter));
+    }
+
+    /**
+     * Gets the code of a counter as a number.
+     *
+     * @param secret  prepared secret used for generating the code
+     * @param counter counter value
+     * @return generated code value
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public int getCodeValue(final PreparedSecret secret, final long counter) throws AuthenticatorException, InvalidKeyException {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (counter < 0) {
+            throw new IllegalArgumentException("counter parameter cannot be negative");
+        }
+        return getCodeValueInternal(secret, counter);
+    }
+
+    /**
+     * Checks if the provided code is valid for given secret key and user identifier, advancing the user's counter if it is.
+     *
+     * @param secret         secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    @Override
+    public boolean checkCode(final String secret, final String code, final String userIdentifier) {
+        return checkCode(new PreparedSecret(secret), code, userIdentifier);
+    }
+
+    /**
+     * Checks if the provided code is valid for given prepared secret and user identifier, advancing the user's counter if it is.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    @Override
+    public boolean checkCode(final PreparedSecret secret, final String code, final String userIdentifier) {
+        if (StringUtils.isEmpty(code)) {
+            throw new IllegalArgumentException("code cannot be null");
+        }
+
+        return checkCode(secret, parseCode(code), userIdentifier);
+    }
+
+    /**
+     * Checks if the provided numeric code is valid for given prepared secret and user identifier, advancing the user's counter
+     * if it is. The codes of the expected counter and the look-ahead window are checked in order; the stored counter is moved
+     * past the matching one with a compare-and-set, and the search is repeated if another check has moved it in the meantime.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code value
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    @Override
+    public boolean checkCode(final PreparedSecret secret, final int code, final String userIdentifier) {
+        validateArguments(secret, userIdentifier);
+        if (!isValidCodeValue(code)) {
+            return false;
+        }
+
+        try {
+            while (true) {
+                long counter = counterStore.getCounter(userIdentifier);
+                long matchedCounter = findMatchingCounter(secret, code, counter, counter + lookAheadWindow);
+                if (matchedCounter == NO_MATCH) {
+                    return false;
+                }
+                if (counterStore.compareAndSetCounter(userIdentifier, counter, matchedCounter + 1)) {
+                    return true;
+                }
+            }
+        } catch (final AuthenticatorException | InvalidKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resynchronizes the counter of a user whose token got beyond the look-ahead window, e.g. after many button presses.
+     * The user enters two consecutive codes, which are searched for within the resynchronization window.
+     *
+     * @param secret         prepared secret used for generating the codes
+     * @param firstCode      first code
+     * @param secondCode     code generated by the token right after the first one
+     * @param userIdentifier user identifier
+     * @return true if the codes matched and the counter has been moved past them
+     */
+    public boolean resync(final PreparedSecret secret, final String firstCode, final String secondCode, final String userIdentifier) {
+        if (StringUtils.isEmpty(firstCode) || StringUtils.isEmpty(secondCode)) {
+            throw new IllegalArgumentException("code cannot be null");
+        }
+
+        return resync(secret, parseCode(firstCode), parseCode(secondCode), userIdentifier);
+    }
+
+    /**
+     * Resynchronizes the counter of a user whose token got beyond the look-ahead window, e.g. after many button presses.
+     * The user enters two consecutive codes, which are searched for within the resynchronization window.
+     *
+     * @param secret         prepared secret used for generating the codes
+     * @param firstCode      first code value
+     * @param secondCode     value of the code generated by the token right after the first one
+     * @param userIdentifier user identifier
+     * @return true if the codes matched and the counter has been moved past them
+     */
+    public boolean resync(final PreparedSecret secret, final int firstCode, final int secondCode, final String userIdentifier) {
+        validateArguments(secret, userIdentifier);
+        if (!isValidCodeValue(firstCode) || !isValidCodeValue(secondCode)) {
+            return false;
+        }
+
+        try {
+            while (true) {
+                long counter = counterStore.getCounter(userIdentifier);
+                long lastCounter = counter + resyncWindow;
+                long matchedCounter = findMatchingCounter(secret, firstCode, counter, lastCounter);
+                while (matchedCounter != NO_MATCH && !intEquals(getCodeValueInternal(secret, matchedCounter + 1), secondCode)) {
+                    matchedCounter = matchedCounter < lastCounter ? findMatchingCounter(secret, firstCode, matchedCounter + 1, lastCounter)
+                            : NO_MATCH;
+                }
+                if (matchedCounter == NO_MATCH) {
+                    return false;
+                }
+                if (counterStore.compareAndSetCounter(userIdentifier, counter, matchedCounter + 2)) {
+                    return true;
+                }
+            }
+        } catch (final AuthenticatorException | InvalidKeyException e) {
+            return false;
+        }
+    }
+
+    protected CounterStore getCounterStore() {
+        return counterStore;
+    }
+
+    protected int getLookAheadWindow() {
+        return lookAheadWindow;
+    }
+
+    protected int getResyncWindow() {
+        return resyncWindow;
+    }
+
+    /**
+     * Finds the first counter within the passed range for which the secret produces the passed code.
+     *
+     * @param secret       prepared secret used for generating the code
+     * @param code         code value to look for
+     * @param firstCounter first counter to check
+     * @param lastCounter  last counter to check
+     * @return matching counter or NO_MATCH if the code does not match any counter
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private long findMatchingCounter(final PreparedSecret secret, final int code, final long firstCounter, final long lastCounter)
+            throws AuthenticatorException, InvalidKeyException {
+        for (long counter = firstCounter; counter <= lastCounter; counter++) {
+            if (intEquals(getCodeValueInternal(secret, counter), code)) {
+                return counter;
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Validates the arguments of a check or resynchronization.
+     *
+     * @param secret         prepared secret
+     * @param userIdentifier user identifier
+     */
+    private static void validateArguments(final PreparedSecret secret, final String userIdentifier) {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (userIdentifier == null) {
+            throw new IllegalArgumentException("userIdentifier cannot be null");
+        }
+    }
+}
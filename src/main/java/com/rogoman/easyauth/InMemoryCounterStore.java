@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter store keeping the HOTP counters of users in memory.
+ * Each user has a single AtomicLong holding the primitive counter, so advancing a counter is one compare-and-set that does
+ * not allocate anything.
+ */
+public class InMemoryCounterStore implements CounterStore {
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public long getCounter(final String userIdentifier) {
+        AtomicLong counter = counters.get(userIdentifier);
+        return counter != null ? counter.get() : 0;
+    }
+
+    @Override
+    public boolean compareAndSetCounter(final String userIdentifier, final long expected, final long counter) {
+        AtomicLong current = counters.get(userIdentifier);
+        if (current == null) {
+            if (expected != 0) {
+                return false;
+            }
+            current = counters.putIfAbsent(userIdentifier, new AtomicLong(counter));
+            if (current == null) {
+                return true;
+            }
+        }
+        return current.compareAndSet(expected, counter);
+    }
+
+    /**
+     * Gets the number of users whose counter is stored.
+     *
+     * @return number of users
+     */
+    public int size() {
+        return counters.size();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A drift store keeping the drift of users' devices in memory.
+ * Drifts are small numbers, so the stored values are the cached Integer instances and storing a drift does not allocate
+ * anything but the map entry of a new user.
+ */
+public class InMemoryDriftStore implements DriftStore {
+    private final ConcurrentMap<String, Integer> drifts = new ConcurrentHashMap<>();
+
+    @Override
+    public int getDrift(final String userIdentifier) {
+        Integer drift = drifts.get(userIdentifier);
+        return drift != null ? drift : UNKNOWN_DRIFT;
+    }
+
+    @Override
+    public void setDrift(final String userIdentifier, final int drift) {
+        drifts.put(userIdentifier, drift);
+    }
+
+    /**
+     * Gets the number of users whose drift is stored.
+     *
+     * @return number of users
+     */
+    public int size() {
+        return drifts.size();
+    }
+}
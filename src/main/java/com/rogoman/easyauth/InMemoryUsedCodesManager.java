@@ -18,74 +18,43 @@ package com.rogoman.easyauth;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.util.Date;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.LinkedList;
+import java.time.Clock;
+import java.util.Map;
 import java.util.Set;
-import java.util.HashSet;
-import java.util.Calendar;
-import java.util.TimerTask;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * A manager of used codes that keeps the used ones in memory.
- * The used codes are kept for a configurable time.
+ * The used codes are grouped in buckets by the interval (the timestamp passed by the TimeAuthenticator). A whole bucket is
+ * dropped at once when its interval ended longer than the cleanup age ago, so set the cleanup age to at least the number of
+ * intervals the authenticator checks back multiplied by the interval length. A manager created without an interval length
+ * takes it from the TimeAuthenticator it is passed to.
+ * The buckets are concurrent collections, so adding and checking codes does not take any lock and the periodic cleanup
+ * never blocks them. The cleanup runs on a daemon thread shared by all the instances; close the manager to stop it.
  */
-public class InMemoryUsedCodesManager implements UsedCodesManager<String> {
+public class InMemoryUsedCodesManager implements UsedCodesManager<String>, AutoCloseable {
     private static class UsedCode {
-        private Date useDate;
-        private long timestamp;
-        private String code;
-        private String userId;
+        private final String code;
+        private final String userId;
 
         /**
          * Creates a new instance of UsedCode.
          *
-         * @param timestamp timestamp of the code usage
-         * @param code      code
-         * @param userId    user identifier
+         * @param code   code
+         * @param userId user identifier
          */
-        public UsedCode(final long timestamp, final String code, final String userId) {
+        public UsedCode(final String code, final String userId) {
             if (StringUtils.isEmpty(code)) {
                 throw new IllegalArgumentException("code is empty");
             }
 
-            this.useDate = new Date();
-            this.timestamp = timestamp;
             this.code = code;
             this.userId = userId;
         }
 
-        public Date getUseDate() {
-            return useDate;
-        }
-
-        public long getTimestamp() {
-            return timestamp;
-        }
-
-        public void setTimestamp(final long timestamp) {
-            this.timestamp = timestamp;
-        }
-
-        public String getCode() {
-            return code;
-        }
-
-        public void setCode(final String code) {
-            this.code = code;
-        }
-
-        public String getUserId() {
-            return userId;
-        }
-
-        public void setUserId(final String userId) {
-            this.userId = userId;
-        }
-
         @Override
         public boolean equals(final Object o) {
             if (this == o) {
@@ -97,9 +66,6 @@ public class InMemoryUsedCodesManager implements UsedCodesManager<String> {
 
             UsedCode usedCode = (UsedCode) o;
 
-            if (timestamp != usedCode.timestamp) {
-                return false;
-            }
             if (!code.equals(usedCode.code)) {
                 return false;
             }
@@ -112,8 +78,7 @@ public class InMemoryUsedCodesManager implements UsedCodesManager<String> {
 
         @Override
         public int hashCode() {
-            int result = (int) (timestamp ^ (timestamp >>> 32));
-            result = 31 * result + code.hashCode();
+            int result = code.hashCode();
             result = 31 * result + (userId != null ? userId.hashCode() : 0);
             return result;
         }
@@ -121,9 +86,7 @@ public class InMemoryUsedCodesManager implements UsedCodesManager<String> {
         @Override
         public String toString() {
             return "UsedCode{"
-                    + "timestamp="
-                    + timestamp
-                    + ", code='"
+                    + "code='"
                     + code
                     + '\''
                     + '}';
@@ -132,86 +95,187 @@ public class InMemoryUsedCodesManager implements UsedCodesManager<String> {
 
     private static final int MILLISECONDS_IN_SECOND = 1000;
 
-    private static final long CLEANUP_PERIOD_IN_MILLISECONDS = 60 * MILLISECONDS_IN_SECOND;
+    private static final long CLEANUP_PERIOD_IN_SECONDS = 60;
 
-    private static final int CLEAN_OLDER_THAN_IN_MILLISECONDS = 5 * 60 * MILLISECONDS_IN_SECOND;
+    private static final int CLEAN_OLDER_THAN_IN_SECONDS = 5 * 60;
 
-    private final Queue<UsedCode> codeQueue = new LinkedList<>();
-    private final Set<UsedCode> codeSet = new HashSet<>();
-    private final Lock syncLock = new ReentrantLock(true);
-    private final Timer timer = new Timer();
-    private long cleanupTime;
-    private int cleanupAge;
+    private final ConcurrentNavigableMap<Long, Set<UsedCode>> buckets = new ConcurrentSkipListMap<>();
+    private final long cleanupAge;
+    private final Clock clock;
+    private final ScheduledFuture<?> cleanupTask;
+    private final AuthenticatorMetrics metrics;
+    private volatile long intervalLength;
+    private boolean intervalBound;
 
     /**
-     * Constructs a new InMemoryUsedCodesManager using default values for the cleanup time and cleanup age.
+     * Constructs a new InMemoryUsedCodesManager using default values for the cleanup time and cleanup age. The interval length
+     * is taken from the TimeAuthenticator the manager is passed to.
      */
     public InMemoryUsedCodesManager() {
-        this(CLEANUP_PERIOD_IN_MILLISECONDS, CLEAN_OLDER_THAN_IN_MILLISECONDS);
+        this(CLEANUP_PERIOD_IN_SECONDS, CLEAN_OLDER_THAN_IN_SECONDS);
     }
 
     /**
-     * Constructs a new InMemoryUsedCodesManager using provided values for the cleanup time and cleanup age.
+     * Constructs a new InMemoryUsedCodesManager using provided values for the cleanup time and cleanup age. The interval length
+     * is taken from the TimeAuthenticator the manager is passed to; until then the default interval length is assumed.
      *
      * @param cleanupTimeInSeconds cleanup time in seconds
      * @param cleanupAgeInSeconds  cleanup age in seconds
      */
     public InMemoryUsedCodesManager(final long cleanupTimeInSeconds, final int cleanupAgeInSeconds) {
-        this.cleanupTime = cleanupTimeInSeconds * MILLISECONDS_IN_SECOND;
-        this.cleanupAge = cleanupAgeInSeconds * MILLISECONDS_IN_SECOND;
-        setupQueueCleanup();
+        this(cleanupTimeInSeconds, cleanupAgeInSeconds, TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS, false, null,
+                Clock.systemUTC());
+    }
+
+    /**
+     * Constructs a new InMemoryUsedCodesManager using provided values for the cleanup time, cleanup age and interval length.
+     * Codes of an interval are kept until the cleanup age passes after the interval ends.
+     *
+     * @param cleanupTimeInSeconds cleanup time in seconds
+     * @param cleanupAgeInSeconds  cleanup age in seconds
+     * @param intervalSeconds      interval length in seconds used by the authenticator
+     */
+    public InMemoryUsedCodesManager(final long cleanupTimeInSeconds, final int cleanupAgeInSeconds, final int intervalSeconds) {
+        this(cleanupTimeInSeconds, cleanupAgeInSeconds, intervalSeconds, null);
+    }
+
+    /**
+     * Constructs a new InMemoryUsedCodesManager recording the number of kept codes and the cleanup durations into metrics.
+     *
+     * @param cleanupTimeInSeconds cleanup time in seconds
+     * @param cleanupAgeInSeconds  cleanup age in seconds
+     * @param intervalSeconds      interval length in seconds used by the authenticator
+     * @param metrics              metrics to record into, null disables the recording
+     */
+    public InMemoryUsedCodesManager(final long cleanupTimeInSeconds, final int cleanupAgeInSeconds, final int intervalSeconds,
+                                    final AuthenticatorMetrics metrics) {
+        this(cleanupTimeInSeconds, cleanupAgeInSeconds, intervalSeconds, true, metrics, Clock.systemUTC());
+    }
+
+    /**
+     * Constructs a new InMemoryUsedCodesManager.
+     *
+     * @param cleanupTimeInSeconds cleanup time in seconds
+     * @param cleanupAgeInSeconds  cleanup age in seconds
+     * @param intervalSeconds      interval length in seconds used by the authenticator
+     * @param intervalBound        true if the interval length has been set explicitly and cannot be changed by an authenticator
+     * @param metrics              metrics to record into, null disables the recording
+     * @param clock                clock used for finding the expired intervals
+     */
+    InMemoryUsedCodesManager(final long cleanupTimeInSeconds, final int cleanupAgeInSeconds, final int intervalSeconds,
+                             final boolean intervalBound, final AuthenticatorMetrics metrics, final Clock clock) {
+        if (cleanupTimeInSeconds <= 0) {
+            throw new IllegalArgumentException("cleanupTimeInSeconds parameter has to be positive");
+        }
+        if (cleanupAgeInSeconds < 0) {
+            throw new IllegalArgumentException("cleanupAgeInSeconds parameter cannot be negative");
+        }
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("intervalSeconds parameter has to be positive");
+        }
+
+        this.intervalLength = (long) intervalSeconds * MILLISECONDS_IN_SECOND;
+        this.intervalBound = intervalBound;
+        this.cleanupAge = (long) cleanupAgeInSeconds * MILLISECONDS_IN_SECOND;
+        this.metrics = metrics;
+        this.clock = clock;
+        this.cleanupTask = CleanupScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        }, cleanupTimeInSeconds * MILLISECONDS_IN_SECOND);
     }
 
     @Override
     public void addCode(final long timestamp, final String code, final String userId) {
-        UsedCode usedCode = new UsedCode(timestamp, code, userId);
-        try {
-            syncLock.lock();
-            this.codeQueue.add(usedCode);
-            this.codeSet.add(usedCode);
-        } finally {
-            syncLock.unlock();
-        }
+        markIfUnused(timestamp, code, userId);
     }
 
     @Override
     public boolean isCodeUsed(final long timestamp, final String code, final String userId) {
-        UsedCode usedCode = new UsedCode(timestamp, code, userId);
-        try {
-            syncLock.lock();
-            return this.codeSet.contains(usedCode);
-        } finally {
-            syncLock.unlock();
+        UsedCode usedCode = new UsedCode(code, userId);
+        Set<UsedCode> bucket = buckets.get(timestamp);
+        return bucket != null && bucket.contains(usedCode);
+    }
+
+    @Override
+    public boolean markIfUnused(final long timestamp, final String code, final String userId) {
+        boolean added = getOrCreateBucket(timestamp).add(new UsedCode(code, userId));
+        if (added && metrics != null) {
+            metrics.recordUsedCodes(1);
         }
+        return added;
     }
 
     /**
-     * Cleans up the data structures of old entries.
+     * Takes the interval length of the authenticator, unless the manager has been created with an interval length or has
+     * already been passed to an authenticator.
+     *
+     * @param intervalSeconds interval length in seconds used by the authenticator
+     * @throws java.lang.IllegalArgumentException thrown when the manager is used with another interval length
      */
-    private void queueCleanup() {
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.MILLISECOND, -this.cleanupAge);
-        Date timeToClean = cal.getTime();
-        try {
-            syncLock.lock();
-            while (!codeQueue.isEmpty() && codeQueue.peek().getUseDate().before(timeToClean)) {
-                UsedCode usedCode = codeQueue.remove();
-                codeSet.remove(usedCode);
-            }
-        } finally {
-            syncLock.unlock();
+    @Override
+    public synchronized void bindIntervalSeconds(final int intervalSeconds) {
+        long length = (long) intervalSeconds * MILLISECONDS_IN_SECOND;
+        if (intervalBound && length != intervalLength) {
+            throw new IllegalArgumentException("The used codes manager keeps codes of " + intervalLength / MILLISECONDS_IN_SECOND
+                    + "-second intervals");
         }
+        intervalLength = length;
+        intervalBound = true;
     }
 
     /**
-     * Sets up the background thread to clean up the data structures periodically.
+     * Stops the periodic cleanup and releases all the stored codes.
      */
-    private void setupQueueCleanup() {
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                queueCleanup();
+    @Override
+    public void close() {
+        cleanupTask.cancel(false);
+        dropBuckets(Long.MAX_VALUE);
+    }
+
+    /**
+     * Gets the bucket of an interval, creating it if needed.
+     *
+     * @param timestamp interval
+     * @return bucket of the used codes
+     */
+    private Set<UsedCode> getOrCreateBucket(final long timestamp) {
+        Set<UsedCode> bucket = buckets.get(timestamp);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(timestamp, interval -> ConcurrentHashMap.newKeySet());
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the buckets of all the intervals that ended longer than the cleanup age ago.
+     */
+    void cleanup() {
+        long firstLiveInterval = Math.floorDiv(clock.millis() - cleanupAge, intervalLength);
+        if (metrics == null) {
+            buckets.headMap(firstLiveInterval).clear();
+            return;
+        }
+
+        long start = System.nanoTime();
+        dropBuckets(firstLiveInterval);
+        metrics.recordCleanup(System.nanoTime() - start);
+    }
+
+    /**
+     * Drops the buckets of the intervals before the passed one, one at a time, so the number of dropped codes can be recorded.
+     *
+     * @param firstLiveInterval first interval whose bucket is kept
+     */
+    private void dropBuckets(final long firstLiveInterval) {
+        Map.Entry<Long, Set<UsedCode>> bucket = buckets.firstEntry();
+        while (bucket != null && bucket.getKey() < firstLiveInterval) {
+            if (buckets.remove(bucket.getKey(), bucket.getValue()) && metrics != null) {
+                metrics.recordUsedCodes(-bucket.getValue().size());
             }
-        }, cleanupTime, cleanupTime);
+            bucket = buckets.firstEntry();
+        }
     }
 }
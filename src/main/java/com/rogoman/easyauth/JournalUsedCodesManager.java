@@ -0,0 +1,503 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A manager of used codes that survives restarts of the process by writing the used codes to a journal on disk.
+ * The journal is a directory with one memory-mapped segment file per interval (the timestamp passed by the TimeAuthenticator).
+ * The codes are looked up in an OffHeapUsedCodesManager index, which is rebuilt on startup by scanning the segments of the
+ * intervals that are still kept. Segments are deleted once their interval ended longer than the cleanup age ago. A segment
+ * starts with room for the share of the capacity expected in a single interval and grows when more codes are used in it,
+ * so the journal takes about as much disk space as the codes kept.
+ * <p>
+ * The segments are written through the page cache, so the used codes survive a crash or a restart of the process, but not
+ * of the operating system. The journal directory can be used by a single manager at a time; it is locked until the manager is
+ * closed, so during a rolling deploy the new process has to open it after the old one closed it.
+ */
+public class JournalUsedCodesManager implements UsedCodesManager<String>, AutoCloseable {
+
+    /**
+     * A journal segment holding the codes used in a single interval.
+     */
+    private static final class Segment {
+        private final Path file;
+        private final AtomicInteger size;
+        private volatile MappedByteBuffer buffer;
+
+        /**
+         * Creates a new instance of Segment.
+         *
+         * @param file   segment file
+         * @param buffer mapped segment file
+         * @param size   number of records already written
+         */
+        Segment(final Path file, final MappedByteBuffer buffer, final int size) {
+            this.file = file;
+            this.buffer = buffer;
+            this.size = new AtomicInteger(size);
+        }
+    }
+
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final int DEFAULT_CLEANUP_AGE_IN_SECONDS = 5 * 60;
+
+    private static final int MIN_SEGMENT_RECORDS = 256;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final String LOCK_FILE = "journal.lock";
+
+    private static final int MAGIC = 0x45414a31;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_SIZE = 16;
+
+    private static final int INTERVAL_HEADER_OFFSET = 8;
+
+    private static final int USER_OFFSET = 0;
+
+    private static final int CHECK_OFFSET = 8;
+
+    private static final int CODE_OFFSET = 12;
+
+    private final Path directory;
+    private final int capacity;
+    private final int initialSegmentRecords;
+    private final long intervalLength;
+    private final long cleanupAge;
+    private final OffHeapUsedCodesManager index;
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ScheduledFuture<?> cleanupTask;
+
+    /**
+     * Constructs a new JournalUsedCodesManager with the default cleanup age and interval length.
+     *
+     * @param directory journal directory, created if it does not exist
+     * @param capacity  maximum number of used codes kept at the same time
+     * @throws java.io.IOException thrown when the journal cannot be opened or recovered
+     */
+    public JournalUsedCodesManager(final Path directory, final int capacity) throws IOException {
+        this(directory, capacity, DEFAULT_CLEANUP_AGE_IN_SECONDS, TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+    }
+
+    /**
+     * Constructs a new JournalUsedCodesManager and recovers the codes of the intervals that are still kept.
+     *
+     * @param directory           journal directory, created if it does not exist
+     * @param capacity            maximum number of used codes kept at the same time
+     * @param cleanupAgeInSeconds cleanup age in seconds
+     * @param intervalSeconds     interval length in seconds used by the authenticator
+     * @throws java.io.IOException thrown when the journal cannot be opened or recovered
+     */
+    public JournalUsedCodesManager(final Path directory, final int capacity, final int cleanupAgeInSeconds, final int intervalSeconds)
+            throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+
+        this.index = new OffHeapUsedCodesManager(capacity, cleanupAgeInSeconds, intervalSeconds);
+        this.directory = directory;
+        this.capacity = capacity;
+        this.intervalLength = (long) intervalSeconds * MILLISECONDS_IN_SECOND;
+        this.cleanupAge = (long) cleanupAgeInSeconds * MILLISECONDS_IN_SECOND;
+        // the codes kept are spread over the intervals of the cleanup age and the window ahead of the current interval
+        long keptIntervals = cleanupAge / intervalLength + TimeAuthenticator.DEFAULT_CHECK_FORWARD_INTERVALS + 1;
+        this.initialSegmentRecords = (int) Math.min(capacity, Math.max(MIN_SEGMENT_RECORDS, capacity / keptIntervals));
+
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = lockChannel.tryLock();
+        } catch (final OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            lockChannel.close();
+            index.close();
+            throw new IllegalStateException("Journal directory " + directory + " is used by another manager");
+        }
+        this.lock = fileLock;
+
+        try {
+            recover();
+        } catch (final IOException | RuntimeException e) {
+            closeLock();
+            index.close();
+            throw e;
+        }
+
+        this.cleanupTask = CleanupScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        }, intervalLength);
+    }
+
+    /**
+     * Checks that the authenticator uses the interval length the manager has been created with.
+     *
+     * @param intervalSeconds interval length in seconds used by the authenticator
+     * @throws java.lang.IllegalArgumentException thrown when the manager has been created for another interval length
+     */
+    @Override
+    public void bindIntervalSeconds(final int intervalSeconds) {
+        if ((long) intervalSeconds * MILLISECONDS_IN_SECOND != intervalLength) {
+            throw new IllegalArgumentException("The used codes manager has been created for " + intervalLength / MILLISECONDS_IN_SECOND
+                    + "-second intervals");
+        }
+    }
+
+    /**
+     * Adds a code to the used codes, writing it to the journal.
+     *
+     * @param timestamp timestamp
+     * @param code      used code
+     * @param userId    user identifier
+     * @throws java.lang.IllegalStateException thrown when the journal segment is full
+     * @throws java.io.UncheckedIOException    thrown when the journal segment cannot be created or grown
+     */
+    @Override
+    public void addCode(final long timestamp, final String code, final String userId) {
+        insert(timestamp, PackedCodeTable.packCode(code), PackedCodeTable.hashUser(userId));
+    }
+
+    @Override
+    public boolean isCodeUsed(final long timestamp, final String code, final String userId) {
+        return index.isCodeUsed(timestamp, code, userId);
+    }
+
+    /**
+     * Marks a code as used unless it has been used already. A code that cannot be written to the journal is not accepted,
+     * so every accepted code survives a restart.
+     *
+     * @param timestamp timestamp
+     * @param code      code
+     * @param userId    user identifier
+     * @return true if the code has been marked as used by this call
+     */
+    @Override
+    public boolean markIfUnused(final long timestamp, final String code, final String userId) {
+        try {
+            return insert(timestamp, PackedCodeTable.packCode(code), PackedCodeTable.hashUser(userId));
+        } catch (final IllegalStateException | UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops the periodic cleanup and releases the journal directory. The segment files are kept for the next manager.
+     */
+    @Override
+    public void close() {
+        cleanupTask.cancel(false);
+        segments.clear();
+        index.close();
+        try {
+            closeLock();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes the segments of all the intervals that ended longer than the cleanup age ago.
+     */
+    void cleanup() {
+        Iterator<Segment> expired = segments.headMap(firstLiveInterval()).values().iterator();
+        while (expired.hasNext()) {
+            try {
+                Files.deleteIfExists(expired.next().file);
+            } catch (final IOException e) {
+                // the segment is deleted on the next cleanup or startup
+                continue;
+            }
+            expired.remove();
+        }
+    }
+
+    /**
+     * Gets the number of segments currently kept.
+     *
+     * @return number of segments
+     */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of records the segment of an interval has room for.
+     *
+     * @param timestamp interval
+     * @return number of records or 0 if the segment does not exist
+     */
+    int getSegmentCapacity(final long timestamp) {
+        Segment segment = segments.get(timestamp);
+        return segment != null ? recordsOf(segment.buffer) : 0;
+    }
+
+    /**
+     * Adds a packed code to the index and appends it to the journal. The index decides which of the concurrent callers
+     * uses the code; if the append fails, the code is removed from the index again, so it is never marked as used without
+     * being written to the journal.
+     *
+     * @param timestamp  interval
+     * @param packedCode code packed by PackedCodeTable.packCode
+     * @param userHash   user identifier hashed by PackedCodeTable.hashUser
+     * @return true if the code has been added by this call
+     * @throws java.lang.IllegalStateException thrown when the journal segment is full
+     * @throws java.io.UncheckedIOException    thrown when the journal segment cannot be created or grown
+     */
+    private boolean insert(final long timestamp, final int packedCode, final long userHash) {
+        if (index.insert(timestamp, packedCode, userHash) != PackedCodeTable.INSERTED) {
+            return false;
+        }
+
+        try {
+            append(timestamp, packedCode, userHash);
+        } catch (final IllegalStateException | UncheckedIOException e) {
+            index.remove(timestamp, packedCode, userHash);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Appends a packed code to the segment of its interval, growing the segment if needed.
+     *
+     * @param timestamp  interval
+     * @param packedCode code packed by PackedCodeTable.packCode
+     * @param userHash   user identifier hashed by PackedCodeTable.hashUser
+     * @throws java.lang.IllegalStateException thrown when the journal segment is full
+     * @throws java.io.UncheckedIOException    thrown when the journal segment cannot be created or grown
+     */
+    private void append(final long timestamp, final int packedCode, final long userHash) {
+        Segment segment = getOrCreateSegment(timestamp);
+        int record = segment.size.getAndIncrement();
+        if (record >= capacity) {
+            throw new IllegalStateException("Journal segment is full, increase its capacity");
+        }
+
+        // a record below the size of an older mapping can still be written through it, as all the mappings share the file
+        MappedByteBuffer buffer = segment.buffer;
+        if (record >= recordsOf(buffer)) {
+            buffer = grow(segment, record);
+        }
+        int offset = HEADER_SIZE + record * RECORD_SIZE;
+        buffer.putLong(offset + USER_OFFSET, userHash);
+        buffer.putInt(offset + CHECK_OFFSET, check(packedCode, userHash));
+        buffer.putInt(offset + CODE_OFFSET, packedCode);
+    }
+
+    /**
+     * Doubles the size of a segment file, up to the capacity, until it has room for the passed record.
+     *
+     * @param segment segment
+     * @param record  index of the record to write
+     * @return mapping of the segment file with room for the record
+     * @throws java.io.UncheckedIOException thrown when the segment file cannot be grown
+     */
+    private MappedByteBuffer grow(final Segment segment, final int record) {
+        synchronized (segment) {
+            int records = recordsOf(segment.buffer);
+            if (record < records) {
+                return segment.buffer;
+            }
+
+            while (records <= record) {
+                records = (int) Math.min(capacity, 2L * records);
+            }
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) records * RECORD_SIZE);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return segment.buffer;
+        }
+    }
+
+    /**
+     * Deletes the expired segments and loads the codes of the live ones into the index. The segments are loaded in parallel.
+     *
+     * @throws java.io.IOException thrown when a segment cannot be read
+     */
+    private void recover() throws IOException {
+        long firstLiveInterval = firstLiveInterval();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long interval;
+                try {
+                    interval = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                } catch (final NumberFormatException e) {
+                    continue;
+                }
+
+                if (interval < firstLiveInterval) {
+                    Files.delete(file);
+                } else {
+                    segments.put(interval, openSegment(file, interval));
+                }
+            }
+        }
+
+        segments.entrySet().parallelStream().forEach(entry -> load(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Loads the codes of a segment into the index, skipping the records left empty or torn by a crash.
+     *
+     * @param interval interval of the segment
+     * @param segment  segment
+     */
+    private void load(final long interval, final Segment segment) {
+        for (int record = 0; record < segment.size.get(); record++) {
+            int offset = HEADER_SIZE + record * RECORD_SIZE;
+            int packedCode = segment.buffer.getInt(offset + CODE_OFFSET);
+            long userHash = segment.buffer.getLong(offset + USER_OFFSET);
+            if (packedCode != 0 && segment.buffer.getInt(offset + CHECK_OFFSET) == check(packedCode, userHash)) {
+                index.insert(interval, packedCode, userHash);
+            }
+        }
+    }
+
+    /**
+     * Gets the segment of an interval, creating it if needed.
+     *
+     * @param timestamp interval
+     * @return segment
+     */
+    private Segment getOrCreateSegment(final long timestamp) {
+        Segment segment = segments.get(timestamp);
+        if (segment != null) {
+            return segment;
+        }
+
+        return segments.computeIfAbsent(timestamp, interval -> {
+            try {
+                return openSegment(directory.resolve(interval + SEGMENT_SUFFIX), interval);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Maps a segment file, creating it if it does not exist, and finds the number of records written to it.
+     *
+     * @param file     segment file
+     * @param interval interval of the segment
+     * @return segment
+     * @throws java.io.IOException thrown when the file cannot be mapped or belongs to another interval
+     */
+    private Segment openSegment(final Path file, final long interval) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), HEADER_SIZE + (long) initialSegmentRecords * RECORD_SIZE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        if (buffer.getInt(0) == 0) {
+            buffer.putLong(INTERVAL_HEADER_OFFSET, interval);
+            buffer.putInt(0, MAGIC);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getLong(INTERVAL_HEADER_OFFSET) != interval) {
+            throw new IOException("File " + file + " is not a journal segment of interval " + interval);
+        }
+
+        // the slots are reserved before they are written, so a crash can leave empty slots between written records;
+        // the whole segment is scanned for the last written one and the empty or torn ones are skipped by their check value
+        int size = recordsOf(buffer);
+        while (size > 0 && !isWritten(buffer, HEADER_SIZE + (size - 1) * RECORD_SIZE)) {
+            size--;
+        }
+        return new Segment(file, buffer, size);
+    }
+
+    /**
+     * Gets the number of records a mapping of a segment file has room for.
+     *
+     * @param buffer mapped segment file
+     * @return number of records
+     */
+    private static int recordsOf(final MappedByteBuffer buffer) {
+        return (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * Checks if anything has been written to a record, including a record torn by a crash.
+     *
+     * @param buffer mapped segment file
+     * @param offset offset of the record
+     * @return true if the record is not empty
+     */
+    private static boolean isWritten(final MappedByteBuffer buffer, final int offset) {
+        return buffer.getLong(offset + USER_OFFSET) != 0 || buffer.getLong(offset + CHECK_OFFSET) != 0;
+    }
+
+    /**
+     * Releases the lock of the journal directory.
+     *
+     * @throws java.io.IOException thrown when the lock file cannot be closed
+     */
+    private void closeLock() throws IOException {
+        if (lock.isValid()) {
+            lock.release();
+        }
+        lockChannel.close();
+    }
+
+    /**
+     * Gets the first interval whose codes are still kept.
+     *
+     * @return first live interval
+     */
+    private long firstLiveInterval() {
+        return Math.floorDiv(System.currentTimeMillis() - cleanupAge, intervalLength);
+    }
+
+    /**
+     * Computes the check value of a record, used to skip records torn by a crash.
+     *
+     * @param packedCode packed code
+     * @param userHash   user hash
+     * @return check value
+     */
+    private static int check(final int packedCode, final long userHash) {
+        return packedCode ^ (int) userHash ^ (int) (userHash >>> 32) ^ MAGIC;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with power-of-two buckets.
+ * A duration is recorded by incrementing the striped counter of its bucket, so concurrent threads don't contend on a
+ * shared variable. Percentiles are estimated by the upper bound of the bucket they fall into, i.e. they are accurate to
+ * a factor of two, which is enough to tell microseconds from milliseconds.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * An immutable copy of the values of a histogram.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] bucketCounts;
+
+        /**
+         * Creates a new instance of Snapshot.
+         *
+         * @param count        number of recorded durations
+         * @param totalNanos   sum of the recorded durations
+         * @param maxNanos     longest recorded duration
+         * @param bucketCounts number of durations recorded in each bucket
+         */
+        Snapshot(final long count, final long totalNanos, final long maxNanos, final long[] bucketCounts) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.bucketCounts = bucketCounts;
+        }
+
+        /**
+         * Gets the number of recorded durations.
+         *
+         * @return count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the sum of the recorded durations.
+         *
+         * @return total duration in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Gets the longest recorded duration.
+         *
+         * @return maximum duration in nanoseconds, 0 if nothing has been recorded
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Gets the average recorded duration.
+         *
+         * @return mean duration in nanoseconds, 0 if nothing has been recorded
+         */
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Estimates a percentile of the recorded durations.
+         *
+         * @param percentile percentile, between 0 and 100
+         * @return upper bound of the bucket holding the percentile in nanoseconds, 0 if nothing has been recorded
+         */
+        public long getPercentileNanos(final double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile parameter has to be between 0 and 100");
+            }
+
+            long total = 0;
+            for (long bucketCount : bucketCounts) {
+                total += bucketCount;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+                seen += bucketCounts[bucket];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(bucket), maxNanos);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Creates a new instance of the LatencyHistogram class.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos duration in nanoseconds; negative values are recorded as 0
+     */
+    public void record(final long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[bucketOf(value)].increment();
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Gets a copy of the current values. Durations recorded while the copy is taken may be only partly included.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        long[] bucketCounts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketCounts[i] = buckets[i].sum();
+        }
+        return new Snapshot(count.sum(), total.sum(), max.get(), bucketCounts);
+    }
+
+    /**
+     * Gets the bucket of a duration: bucket k holds the durations from 2^(k-1) to 2^k - 1 nanoseconds.
+     *
+     * @param nanos non-negative duration in nanoseconds
+     * @return bucket index
+     */
+    static int bucketOf(final long nanos) {
+        return Long.SIZE - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Gets the longest duration held by a bucket.
+     *
+     * @param bucket bucket index
+     * @return upper bound in nanoseconds
+     */
+    static long upperBound(final int bucket) {
+        return bucket == Long.SIZE ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
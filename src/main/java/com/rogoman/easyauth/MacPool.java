@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import javax.crypto.Mac;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A per-thread pool of Mac instances used by the HMAC computations.
+ * Each thread looks up the JCA provider once per algorithm and then reuses its Mac instance. The Mac is re-initialized
+ * only when a different key is passed, so subsequent digests computed with the same key skip the key setup as well.
+ * Hit and miss counters are exposed so the pool efficiency can be verified.
+ */
+public final class MacPool {
+
+    /**
+     * A pooled Mac instance together with the key it was last initialized with.
+     */
+    private static final class PooledMac {
+        private final Mac mac;
+        private Key key;
+
+        /**
+         * Creates a new instance of PooledMac.
+         *
+         * @param mac uninitialized Mac instance
+         */
+        PooledMac(final Mac mac) {
+            this.mac = mac;
+        }
+    }
+
+    private static final LongAdder HITS = new LongAdder();
+
+    private static final LongAdder MISSES = new LongAdder();
+
+    private static final ThreadLocal<Map<String, PooledMac>> POOL = new ThreadLocal<Map<String, PooledMac>>() {
+        @Override
+        protected Map<String, PooledMac> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * Private constructor to prevent from instantiating the class.
+     */
+    private MacPool() {
+    }
+
+    /**
+     * Gets the number of times a Mac instance was reused from the pool.
+     *
+     * @return pool hit count
+     */
+    public static long getHitCount() {
+        return HITS.sum();
+    }
+
+    /**
+     * Gets the number of times a new Mac instance had to be created, i.e. the number of provider lookups.
+     *
+     * @return pool miss count
+     */
+    public static long getMissCount() {
+        return MISSES.sum();
+    }
+
+    /**
+     * Gets a Mac instance for the current thread, initialized with the passed key and ready for computing a digest.
+     * The returned instance must not be shared with other threads.
+     *
+     * @param algorithm HMAC algorithm to be used
+     * @param key       Key to be used in the hashing process
+     * @return initialized Mac instance
+     * @throws java.security.NoSuchAlgorithmException thrown when the passed digest algorithm name cannot be recognized
+     * @throws java.security.InvalidKeyException      thrown when the passed secret key value is invalid according to the digest algorithm
+     */
+    static Mac acquire(final String algorithm, final Key key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Map<String, PooledMac> macs = POOL.get();
+        PooledMac pooled = macs.get(algorithm);
+        if (pooled == null) {
+            MISSES.increment();
+            pooled = new PooledMac(Mac.getInstance(algorithm));
+            macs.put(algorithm, pooled);
+        } else {
+            HITS.increment();
+        }
+
+        if (pooled.key != key) {
+            pooled.key = null;
+            pooled.mac.init(key);
+            pooled.key = key;
+        }
+        return pooled.mac;
+    }
+}
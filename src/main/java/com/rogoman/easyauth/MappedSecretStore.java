@@ -0,0 +1,744 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A store of the secret keys of users kept in a memory-mapped file instead of the Java heap.
+ * Every secret takes one fixed-width slot holding the UTF-8 bytes of the user identifier and the raw (decoded) key bytes.
+ * The slots form an open-addressing hash table split into stripes, each mapped separately and guarded by its own
+ * read-write lock, so lookups of different users don't contend and the file can be larger than a single mapping.
+ * Secrets are added, replaced and removed in place; removed slots are filled by shifting the following entries back,
+ * like in the PackedCodeTable. The hash is seeded with a random value stored in the file, so user identifiers cannot be
+ * chosen to collide. The file is locked for the lifetime of the store and cannot be opened by another store at the same time.
+ * <p>
+ * The prepared secrets of recently looked up users are kept in a small LRU cache, one per stripe, so hot users skip the key
+ * setup; only these secrets are held on the Java heap. Every secret returned by getSecret is leased to the caller until it is
+ * passed to releaseSecret, as TimeAuthenticator.checkCode does. Evicted, replaced and removed secrets are destroyed as soon as
+ * their last lease is released, like in the SecretVault.
+ */
+public class MappedSecretStore implements SecretStore, AutoCloseable {
+
+    /**
+     * Default maximum length of a user identifier in UTF-8 bytes.
+     */
+    public static final int DEFAULT_MAX_USER_ID_BYTES = 64;
+
+    /**
+     * Default maximum length of a secret key in bytes; the 160-bit keys recommended by RFC 4226 fit in.
+     */
+    public static final int DEFAULT_MAX_KEY_BYTES = 20;
+
+    /**
+     * Default maximum number of prepared secrets kept in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static final int MAGIC = 0x45415332;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int STRIPES_OFFSET = 4;
+
+    private static final int SLOTS_PER_STRIPE_OFFSET = 8;
+
+    private static final int MAX_USER_ID_BYTES_OFFSET = 12;
+
+    private static final int MAX_KEY_BYTES_OFFSET = 16;
+
+    private static final int SEED_OFFSET = 24;
+
+    /**
+     * Every stripe starts with the number of secrets it holds.
+     */
+    private static final int STRIPE_HEADER_SIZE = 8;
+
+    /**
+     * Every slot starts with the length of the user identifier, 0 for free slots, and the length of the key.
+     */
+    private static final int SLOT_HEADER_SIZE = 2;
+
+    private static final int MAX_FIELD_BYTES = 255;
+
+    /**
+     * The table is sized for this average load; a single stripe may get fuller, up to the maximum load.
+     */
+    private static final int TARGET_LOAD_PERCENT = 75;
+
+    private static final int MAX_LOAD_PERCENT = 90;
+
+    private static final int MAX_STRIPES = 64;
+
+    private static final int MIN_SLOTS = 16;
+
+    /**
+     * Smaller tables are not striped, as the number of secrets per stripe would vary too much.
+     */
+    private static final int MIN_SLOTS_PER_STRIPE = 1024;
+
+    /**
+     * A stripe of the cache: an access-ordered map of the prepared secrets of the users stored in a stripe of the table.
+     * The stripe has to be locked while it is used.
+     */
+    private static final class CacheStripe {
+        private final Map<String, PreparedSecret> secrets = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+
+        /**
+         * Creates a new instance of CacheStripe.
+         *
+         * @param maxSize maximum number of secrets in the stripe
+         */
+        CacheStripe(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Adds a prepared secret and evicts the least recently used secret over the maximum size.
+         *
+         * @param userIdentifier The user identifier
+         * @param secret         prepared secret
+         */
+        void put(final String userIdentifier, final PreparedSecret secret) {
+            remove(userIdentifier);
+            secrets.put(userIdentifier, secret);
+
+            Iterator<PreparedSecret> eldest = secrets.values().iterator();
+            while (secrets.size() > maxSize && eldest.hasNext()) {
+                PreparedSecret evicted = eldest.next();
+                eldest.remove();
+                evicted.retire();
+            }
+        }
+
+        /**
+         * Removes the prepared secret of a user.
+         *
+         * @param userIdentifier The user identifier
+         */
+        void remove(final String userIdentifier) {
+            PreparedSecret removed = secrets.remove(userIdentifier);
+            if (removed != null) {
+                removed.retire();
+            }
+        }
+
+        /**
+         * Removes all the prepared secrets.
+         */
+        void clear() {
+            for (PreparedSecret secret : secrets.values()) {
+                secret.retire();
+            }
+            secrets.clear();
+        }
+    }
+
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final MappedByteBuffer[] stripes;
+    private final ReadWriteLock[] locks;
+    private final CacheStripe[] cache;
+    private final int slotMask;
+    private final int maxLoad;
+    private final int maxUserIdBytes;
+    private final int maxKeyBytes;
+    private final int slotSize;
+    private final long seed;
+
+    /**
+     * Constructs a new MappedSecretStore for user identifiers and keys of the default maximum lengths.
+     *
+     * @param file     file holding the secrets, created if it does not exist
+     * @param capacity maximum number of secrets
+     * @throws java.io.IOException thrown when the file cannot be mapped, is used by another store or was created with a different geometry
+     */
+    public MappedSecretStore(final Path file, final int capacity) throws IOException {
+        this(file, capacity, DEFAULT_MAX_USER_ID_BYTES, DEFAULT_MAX_KEY_BYTES);
+    }
+
+    /**
+     * Constructs a new MappedSecretStore.
+     *
+     * @param file           file holding the secrets, created if it does not exist
+     * @param capacity       maximum number of secrets
+     * @param maxUserIdBytes maximum length of a user identifier in UTF-8 bytes
+     * @param maxKeyBytes    maximum length of a secret key in bytes
+     * @throws java.io.IOException thrown when the file cannot be mapped, is used by another store or was created with a different geometry
+     */
+    public MappedSecretStore(final Path file, final int capacity, final int maxUserIdBytes, final int maxKeyBytes) throws IOException {
+        this(file, capacity, maxUserIdBytes, maxKeyBytes, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Constructs a new MappedSecretStore.
+     *
+     * @param file           file holding the secrets, created if it does not exist
+     * @param capacity       maximum number of secrets
+     * @param maxUserIdBytes maximum length of a user identifier in UTF-8 bytes
+     * @param maxKeyBytes    maximum length of a secret key in bytes
+     * @param cacheSize      maximum number of prepared secrets kept in the cache, 0 to prepare the secret on every lookup
+     * @throws java.io.IOException thrown when the file cannot be mapped, is used by another store or was created with a different geometry
+     */
+    public MappedSecretStore(final Path file, final int capacity, final int maxUserIdBytes, final int maxKeyBytes, final int cacheSize)
+            throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity parameter has to be positive");
+        }
+        if (maxUserIdBytes <= 0 || maxUserIdBytes > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException("maxUserIdBytes parameter has to be between 1 and " + MAX_FIELD_BYTES);
+        }
+        if (maxKeyBytes <= 0 || maxKeyBytes > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException("maxKeyBytes parameter has to be between 1 and " + MAX_FIELD_BYTES);
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cacheSize parameter cannot be negative");
+        }
+
+        this.maxUserIdBytes = maxUserIdBytes;
+        this.maxKeyBytes = maxKeyBytes;
+        this.slotSize = SLOT_HEADER_SIZE + maxUserIdBytes + maxKeyBytes;
+
+        long minSlots = (long) capacity * 100 / TARGET_LOAD_PERCENT + 1;
+        long slots = Math.max((long) MIN_SLOTS, Long.highestOneBit(minSlots) << 1);
+        int stripeCount = (int) Math.max(1, Math.min(MAX_STRIPES, slots / MIN_SLOTS_PER_STRIPE));
+        long slotsPerStripe = slots / stripeCount;
+        long stripeSize = STRIPE_HEADER_SIZE + slotsPerStripe * slotSize;
+        if (stripeSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity parameter is too large");
+        }
+        this.slotMask = (int) slotsPerStripe - 1;
+        this.maxLoad = (int) (slotsPerStripe * MAX_LOAD_PERCENT / 100);
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.fileLock = lockFile(file);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            this.seed = initializeHeader(header, file, stripeCount, (int) slotsPerStripe);
+
+            this.stripes = new MappedByteBuffer[stripeCount];
+            this.locks = new ReadWriteLock[stripeCount];
+            this.cache = new CacheStripe[stripeCount];
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * stripeSize, stripeSize);
+                stripes[i].order(ByteOrder.nativeOrder());
+                locks[i] = new ReentrantReadWriteLock();
+                cache[i] = new CacheStripe((cacheSize + stripeCount - 1) / stripeCount);
+            }
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the secret key of a user from the cache or reads the key bytes directly from the mapped file. The secret is
+     * leased to the caller until it is passed to releaseSecret.
+     *
+     * @param userIdentifier The user identifier
+     * @return prepared secret or null if the store has no secret for the user
+     */
+    @Override
+    public PreparedSecret getSecret(final String userIdentifier) {
+        byte[] userId = encodeUserId(userIdentifier);
+        long hash = hash(userId, 0, userId.length);
+        int stripe = stripeOf(hash);
+        ByteBuffer buffer = stripes[stripe];
+        CacheStripe cacheStripe = cache[stripe];
+
+        synchronized (cacheStripe) {
+            PreparedSecret cached = cacheStripe.secrets.get(userIdentifier);
+            if (cached != null) {
+                cached.lease();
+                return cached;
+            }
+        }
+
+        // the secret is cached under the read lock, so it cannot be cached after put or remove have dropped it
+        locks[stripe].readLock().lock();
+        try {
+            int slot = find(buffer, hash, userId);
+            if (slot < 0) {
+                return null;
+            }
+
+            int position = slotPosition(slot);
+            byte[] key = new byte[buffer.get(position + 1) & 0xFF];
+            for (int i = 0, keyPosition = position + SLOT_HEADER_SIZE + maxUserIdBytes; i < key.length; i++) {
+                key[i] = buffer.get(keyPosition + i);
+            }
+            PreparedSecret secret = new PreparedSecret(key);
+            Arrays.fill(key, (byte) 0);
+
+            secret.lease();
+            synchronized (cacheStripe) {
+                if (cacheStripe.maxSize > 0) {
+                    cacheStripe.put(userIdentifier, secret);
+                } else {
+                    // not cached, so it is destroyed once the caller releases it
+                    secret.retire();
+                }
+            }
+            return secret;
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the lease on a secret returned by getSecret. A secret that has been evicted, replaced or removed in the meantime,
+     * or has not been cached at all, is destroyed once its last lease is returned.
+     *
+     * @param secret secret returned by getSecret
+     */
+    @Override
+    public void releaseSecret(final PreparedSecret secret) {
+        if (secret != null) {
+            secret.releaseLease();
+        }
+    }
+
+    /**
+     * Stores the BASE32 encoded secret key of a user, replacing the current one.
+     *
+     * @param userIdentifier The user identifier
+     * @param secret         BASE32 encoded secret key
+     * @return true if the user had no secret yet, false if the secret has been replaced
+     */
+    public boolean put(final String userIdentifier, final String secret) {
+        if (StringUtils.isEmpty(secret)) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+
+        byte[] key = Base32Encoding.toBytes(secret);
+        try {
+            return put(userIdentifier, key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Stores the raw secret key bytes of a user, replacing the current key.
+     *
+     * @param userIdentifier The user identifier
+     * @param key            raw secret key bytes
+     * @return true if the user had no secret yet, false if the secret has been replaced
+     */
+    public boolean put(final String userIdentifier, final byte[] key) {
+        if (key == null || key.length == 0 || key.length > maxKeyBytes) {
+            throw new IllegalArgumentException("key has to consist of 1 to " + maxKeyBytes + " bytes");
+        }
+
+        byte[] userId = encodeUserId(userIdentifier);
+        long hash = hash(userId, 0, userId.length);
+        int stripe = stripeOf(hash);
+        ByteBuffer buffer = stripes[stripe];
+
+        locks[stripe].writeLock().lock();
+        try {
+            int slot = find(buffer, hash, userId);
+            boolean added = slot < 0;
+            if (added) {
+                int count = buffer.getInt(0);
+                if (count >= maxLoad) {
+                    throw new IllegalStateException("Secret store is full, increase its capacity");
+                }
+                slot = -slot - 1;
+                buffer.putInt(0, count + 1);
+            }
+
+            int position = slotPosition(slot);
+            int keyPosition = position + SLOT_HEADER_SIZE + maxUserIdBytes;
+            for (int i = 0; i < maxKeyBytes; i++) {
+                buffer.put(keyPosition + i, i < key.length ? key[i] : 0);
+            }
+            for (int i = 0; i < userId.length; i++) {
+                buffer.put(position + SLOT_HEADER_SIZE + i, userId[i]);
+            }
+            buffer.put(position + 1, (byte) key.length);
+            buffer.put(position, (byte) userId.length);
+            uncache(stripe, userIdentifier);
+            return added;
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the secret key of a user. The key bytes are overwritten in the file.
+     *
+     * @param userIdentifier The user identifier
+     * @return true if the secret has been removed, false if the store had no secret for the user
+     */
+    public boolean remove(final String userIdentifier) {
+        byte[] userId = encodeUserId(userIdentifier);
+        long hash = hash(userId, 0, userId.length);
+        int stripe = stripeOf(hash);
+        ByteBuffer buffer = stripes[stripe];
+
+        locks[stripe].writeLock().lock();
+        try {
+            int slot = find(buffer, hash, userId);
+            if (slot < 0) {
+                return false;
+            }
+
+            // shift the following entries of the probe sequence back, so lookups never stop at the freed slot
+            int free = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & slotMask;
+                int position = slotPosition(next);
+                int length = buffer.get(position) & 0xFF;
+                if (length == 0) {
+                    break;
+                }
+                int home = homeSlot(hash(buffer, position + SLOT_HEADER_SIZE, length));
+                if (((next - home) & slotMask) >= ((next - free) & slotMask)) {
+                    copySlot(buffer, next, free);
+                    free = next;
+                }
+            }
+            clearSlot(buffer, free);
+            buffer.putInt(0, buffer.getInt(0) - 1);
+            uncache(stripe, userIdentifier);
+            return true;
+        } finally {
+            locks[stripe].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if the store has a secret of a user.
+     *
+     * @param userIdentifier The user identifier
+     * @return true if the store has a secret for the user
+     */
+    public boolean contains(final String userIdentifier) {
+        byte[] userId = encodeUserId(userIdentifier);
+        long hash = hash(userId, 0, userId.length);
+        int stripe = stripeOf(hash);
+
+        locks[stripe].readLock().lock();
+        try {
+            return find(stripes[stripe], hash, userId) >= 0;
+        } finally {
+            locks[stripe].readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of stored secrets.
+     *
+     * @return number of secrets
+     */
+    public int size() {
+        int size = 0;
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            locks[stripe].readLock().lock();
+            try {
+                size += stripes[stripe].getInt(0);
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of prepared secrets kept in the cache.
+     *
+     * @return number of cached secrets
+     */
+    public int getCachedCount() {
+        int count = 0;
+        for (CacheStripe stripe : cache) {
+            synchronized (stripe) {
+                count += stripe.secrets.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the changes made so far to the storage device.
+     */
+    public void flush() {
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            locks[stripe].readLock().lock();
+            try {
+                stripes[stripe].force();
+            } finally {
+                locks[stripe].readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the changes to the storage device, drops the cached secrets and unlocks the file. The store cannot be used
+     * afterwards; the mappings are released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        flush();
+        for (CacheStripe stripe : cache) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+        try {
+            fileLock.release();
+            channel.close();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Drops the cached secret of a user after it has been replaced or removed. The write lock of the stripe has to be held.
+     *
+     * @param stripe         stripe index
+     * @param userIdentifier The user identifier
+     */
+    private void uncache(final int stripe, final String userIdentifier) {
+        synchronized (cache[stripe]) {
+            cache[stripe].remove(userIdentifier);
+        }
+    }
+
+    /**
+     * Finds the slot of a user within a stripe. The lock of the stripe has to be held.
+     *
+     * @param buffer stripe buffer
+     * @param hash   hash of the user identifier
+     * @param userId UTF-8 bytes of the user identifier
+     * @return slot index or, if the user is not stored, (-(insertion slot) - 1)
+     */
+    private int find(final ByteBuffer buffer, final long hash, final byte[] userId) {
+        int slot = homeSlot(hash);
+        while (true) {
+            int position = slotPosition(slot);
+            int length = buffer.get(position) & 0xFF;
+            if (length == 0) {
+                return -slot - 1;
+            }
+            if (length == userId.length && userIdEquals(buffer, position + SLOT_HEADER_SIZE, userId)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Compares a stored user identifier with the passed one.
+     *
+     * @param buffer   stripe buffer
+     * @param position position of the stored user identifier
+     * @param userId   UTF-8 bytes of the user identifier, as long as the stored one
+     * @return true if the identifiers are equal
+     */
+    private static boolean userIdEquals(final ByteBuffer buffer, final int position, final byte[] userId) {
+        for (int i = 0; i < userId.length; i++) {
+            if (buffer.get(position + i) != userId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the content of a slot to another slot of the same stripe.
+     *
+     * @param buffer stripe buffer
+     * @param from   source slot
+     * @param to     target slot
+     */
+    private void copySlot(final ByteBuffer buffer, final int from, final int to) {
+        int source = slotPosition(from);
+        int target = slotPosition(to);
+        for (int i = 0; i < slotSize; i++) {
+            buffer.put(target + i, buffer.get(source + i));
+        }
+    }
+
+    /**
+     * Clears a slot, overwriting the key bytes it held.
+     *
+     * @param buffer stripe buffer
+     * @param slot   slot index
+     */
+    private void clearSlot(final ByteBuffer buffer, final int slot) {
+        int position = slotPosition(slot);
+        for (int i = 0; i < slotSize; i++) {
+            buffer.put(position + i, (byte) 0);
+        }
+    }
+
+    /**
+     * Encodes a user identifier into UTF-8 bytes.
+     *
+     * @param userIdentifier The user identifier
+     * @return UTF-8 bytes
+     */
+    private byte[] encodeUserId(final String userIdentifier) {
+        if (StringUtils.isEmpty(userIdentifier)) {
+            throw new IllegalArgumentException("userIdentifier cannot be null");
+        }
+
+        byte[] userId = userIdentifier.getBytes(StandardCharsets.UTF_8);
+        if (userId.length > maxUserIdBytes) {
+            throw new IllegalArgumentException("userIdentifier cannot be longer than " + maxUserIdBytes + " UTF-8 bytes");
+        }
+        return userId;
+    }
+
+    /**
+     * Computes the seeded hash of user identifier bytes.
+     *
+     * @param bytes  array holding the bytes
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     * @return hash
+     */
+    private long hash(final byte[] bytes, final int offset, final int length) {
+        long hash = seed;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * Hashing.FNV_PRIME;
+        }
+        return Hashing.mix(hash);
+    }
+
+    /**
+     * Computes the seeded hash of user identifier bytes stored in a buffer.
+     *
+     * @param buffer   buffer holding the bytes
+     * @param position position of the first byte
+     * @param length   number of bytes
+     * @return hash
+     */
+    private long hash(final ByteBuffer buffer, final int position, final int length) {
+        long hash = seed;
+        for (int i = position; i < position + length; i++) {
+            hash = (hash ^ (buffer.get(i) & 0xFF)) * Hashing.FNV_PRIME;
+        }
+        return Hashing.mix(hash);
+    }
+
+    /**
+     * Gets the stripe of a hash.
+     *
+     * @param hash hash of the user identifier
+     * @return stripe index
+     */
+    private int stripeOf(final long hash) {
+        return (int) hash & (stripes.length - 1);
+    }
+
+    /**
+     * Gets the first slot probed for a hash within its stripe.
+     *
+     * @param hash hash of the user identifier
+     * @return slot index
+     */
+    private int homeSlot(final long hash) {
+        return (int) (hash >>> 32) & slotMask;
+    }
+
+    /**
+     * Gets the position of a slot within its stripe buffer.
+     *
+     * @param slot slot index
+     * @return position in bytes
+     */
+    private int slotPosition(final int slot) {
+        return STRIPE_HEADER_SIZE + slot * slotSize;
+    }
+
+    /**
+     * Locks the whole file, so no other store modifies it.
+     *
+     * @param file file holding the secrets
+     * @return file lock
+     * @throws java.io.IOException thrown when the file is used by another store
+     */
+    private FileLock lockFile(final Path file) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (final OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException("File " + file + " is used by another secret store");
+        }
+        return lock;
+    }
+
+    /**
+     * Writes the geometry and a new hash seed to the header of a new file or checks the geometry of an existing one.
+     *
+     * @param header         mapped header
+     * @param file           file holding the secrets
+     * @param stripeCount    number of stripes
+     * @param slotsPerStripe number of slots in a stripe
+     * @return hash seed of the file
+     * @throws java.io.IOException thrown when the file was created with a different geometry or is not a secret store
+     */
+    private long initializeHeader(final MappedByteBuffer header, final Path file, final int stripeCount, final int slotsPerStripe)
+            throws IOException {
+        if (header.getInt(0) == 0) {
+            header.putInt(STRIPES_OFFSET, stripeCount);
+            header.putInt(SLOTS_PER_STRIPE_OFFSET, slotsPerStripe);
+            header.putInt(MAX_USER_ID_BYTES_OFFSET, maxUserIdBytes);
+            header.putInt(MAX_KEY_BYTES_OFFSET, maxKeyBytes);
+            header.putLong(SEED_OFFSET, new SecureRandom().nextLong());
+            header.putInt(0, MAGIC);
+            header.force();
+        } else if (header.getInt(0) != MAGIC) {
+            throw new IOException("File " + file + " is not a secret store");
+        } else if (header.getInt(STRIPES_OFFSET) != stripeCount || header.getInt(SLOTS_PER_STRIPE_OFFSET) != slotsPerStripe
+                || header.getInt(MAX_USER_ID_BYTES_OFFSET) != maxUserIdBytes || header.getInt(MAX_KEY_BYTES_OFFSET) != maxKeyBytes) {
+            throw new IOException("File " + file + " was created with a different capacity or maximum lengths");
+        }
+        return header.getLong(SEED_OFFSET);
+    }
+}
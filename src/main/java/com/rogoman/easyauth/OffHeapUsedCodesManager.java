@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A manager of used codes that keeps the used ones in a fixed-size hash table allocated outside of the Java heap.
+ * Every used code takes a 16-byte slot holding the interval, the numeric code and a 64-bit hash of the user identifier,
+ * so millions of codes fit in a few tens of megabytes and do not create any garbage. Codes have to consist of up to 8 digits.
+ * The table is split into stripes guarded by separate locks. Codes of an interval are kept until the cleanup age passes
+ * after the interval ends, like in the InMemoryUsedCodesManager. If a stripe fills up with codes that are still kept,
+ * addCode throws an IllegalStateException, so size the capacity for the peak number of codes used within the cleanup age.
+ */
+public class OffHeapUsedCodesManager implements UsedCodesManager<String>, AutoCloseable {
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final int DEFAULT_CLEANUP_AGE_IN_SECONDS = 5 * 60;
+
+    private final PackedCodeTable table;
+    private final Object[] locks;
+    private final long intervalLength;
+    private final long cleanupAge;
+    private final ScheduledFuture<?> cleanupTask;
+
+    /**
+     * Constructs a new OffHeapUsedCodesManager with the default cleanup age and interval length.
+     *
+     * @param capacity maximum number of used codes kept at the same time
+     */
+    public OffHeapUsedCodesManager(final int capacity) {
+        this(capacity, DEFAULT_CLEANUP_AGE_IN_SECONDS, TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+    }
+
+    /**
+     * Constructs a new OffHeapUsedCodesManager.
+     *
+     * @param capacity            maximum number of used codes kept at the same time
+     * @param cleanupAgeInSeconds cleanup age in seconds
+     * @param intervalSeconds     interval length in seconds used by the authenticator
+     */
+    public OffHeapUsedCodesManager(final int capacity, final int cleanupAgeInSeconds, final int intervalSeconds) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity parameter has to be positive");
+        }
+        if (cleanupAgeInSeconds < 0) {
+            throw new IllegalArgumentException("cleanupAgeInSeconds parameter cannot be negative");
+        }
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("intervalSeconds parameter has to be positive");
+        }
+
+        int slots = PackedCodeTable.slotsFor(capacity);
+        int stripes = PackedCodeTable.stripesFor(slots);
+        int slotsPerStripe = slots / stripes;
+        long bytes = PackedCodeTable.requiredBytes(stripes, slotsPerStripe);
+
+        this.table = new PackedCodeTable(ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()), 0, stripes, slotsPerStripe);
+        this.locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+        }
+        this.intervalLength = (long) intervalSeconds * MILLISECONDS_IN_SECOND;
+        this.cleanupAge = (long) cleanupAgeInSeconds * MILLISECONDS_IN_SECOND;
+        this.cleanupTask = CleanupScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        }, intervalLength);
+    }
+
+    /**
+     * Checks that the authenticator uses the interval length the manager has been created with.
+     *
+     * @param intervalSeconds interval length in seconds used by the authenticator
+     * @throws java.lang.IllegalArgumentException thrown when the manager has been created for another interval length
+     */
+    @Override
+    public void bindIntervalSeconds(final int intervalSeconds) {
+        if ((long) intervalSeconds * MILLISECONDS_IN_SECOND != intervalLength) {
+            throw new IllegalArgumentException("The used codes manager has been created for " + intervalLength / MILLISECONDS_IN_SECOND
+                    + "-second intervals");
+        }
+    }
+
+    @Override
+    public void addCode(final long timestamp, final String code, final String userId) {
+        insert(timestamp, code, userId);
+    }
+
+    @Override
+    public boolean isCodeUsed(final long timestamp, final String code, final String userId) {
+        int interval = (int) timestamp;
+        int packedCode = PackedCodeTable.packCode(code);
+        long userHash = PackedCodeTable.hashUser(userId);
+        long hash = PackedCodeTable.hash(interval, packedCode, userHash);
+        synchronized (locks[table.stripeOf(hash)]) {
+            return table.contains(hash, interval, packedCode, userHash);
+        }
+    }
+
+    @Override
+    public boolean markIfUnused(final long timestamp, final String code, final String userId) {
+        return insert(timestamp, code, userId) == PackedCodeTable.INSERTED;
+    }
+
+    /**
+     * Gets the number of used codes currently stored.
+     *
+     * @return number of stored codes
+     */
+    public int size() {
+        int size = 0;
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            synchronized (locks[stripe]) {
+                size += table.count(stripe);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Stops the periodic cleanup. The off-heap memory is released when the manager is garbage collected.
+     */
+    @Override
+    public void close() {
+        cleanupTask.cancel(false);
+    }
+
+    /**
+     * Removes the codes of all the intervals that ended longer than the cleanup age ago, one stripe at a time.
+     */
+    void cleanup() {
+        int firstLiveInterval = firstLiveInterval();
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            synchronized (locks[stripe]) {
+                table.purge(stripe, firstLiveInterval);
+            }
+        }
+    }
+
+    /**
+     * Adds a code to the table, purging its stripe of expired codes if the stripe is full.
+     *
+     * @param timestamp interval
+     * @param code      code
+     * @param userId    user identifier
+     * @return INSERTED or ALREADY_PRESENT
+     */
+    private int insert(final long timestamp, final String code, final String userId) {
+        return insert(timestamp, PackedCodeTable.packCode(code), PackedCodeTable.hashUser(userId));
+    }
+
+    /**
+     * Adds a packed code to the table, purging its stripe of expired codes if the stripe is full.
+     *
+     * @param timestamp  interval
+     * @param packedCode code packed by PackedCodeTable.packCode
+     * @param userHash   user identifier hashed by PackedCodeTable.hashUser
+     * @return INSERTED or ALREADY_PRESENT
+     */
+    int insert(final long timestamp, final int packedCode, final long userHash) {
+        int interval = (int) timestamp;
+        long hash = PackedCodeTable.hash(interval, packedCode, userHash);
+        int stripe = table.stripeOf(hash);
+        synchronized (locks[stripe]) {
+            int result = table.insert(hash, interval, packedCode, userHash);
+            if (result == PackedCodeTable.STRIPE_FULL) {
+                table.purge(stripe, firstLiveInterval());
+                result = table.insert(hash, interval, packedCode, userHash);
+                if (result == PackedCodeTable.STRIPE_FULL) {
+                    throw new IllegalStateException("Used codes table is full, increase its capacity");
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Removes a packed code from the table, e.g. when recording it elsewhere failed after it was added.
+     *
+     * @param timestamp  interval
+     * @param packedCode code packed by PackedCodeTable.packCode
+     * @param userHash   user identifier hashed by PackedCodeTable.hashUser
+     * @return true if the code was stored
+     */
+    boolean remove(final long timestamp, final int packedCode, final long userHash) {
+        int interval = (int) timestamp;
+        long hash = PackedCodeTable.hash(interval, packedCode, userHash);
+        synchronized (locks[table.stripeOf(hash)]) {
+            return table.remove(hash, interval, packedCode, userHash);
+        }
+    }
+
+    /**
+     * Gets the lower 32 bits of the first interval whose codes are still kept.
+     *
+     * @return first live interval
+     */
+    private int firstLiveInterval() {
+        return (int) Math.floorDiv(System.currentTimeMillis() - cleanupAge, intervalLength);
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open-addressing hash set of used codes stored in fixed-width slots of a ByteBuffer.
+ * Each slot packs the interval (its lower 32 bits), the numeric code together with its number of digits and a 64-bit hash
+ * of the user identifier into 16 bytes. The table is split into stripes; a code always lives in one stripe and is found
+ * by linear probing within it. Removed slots are filled by shifting the following entries back, so no tombstones are needed.
+ * The class is not thread-safe: callers have to make sure a stripe is accessed by one thread at a time.
+ */
+final class PackedCodeTable {
+
+    /**
+     * Size of a single slot in bytes.
+     */
+    static final int SLOT_SIZE = 16;
+
+    /**
+     * Result of an insert: the code has been added.
+     */
+    static final int INSERTED = 0;
+
+    /**
+     * Result of an insert: the code was already present.
+     */
+    static final int ALREADY_PRESENT = 1;
+
+    /**
+     * Result of an insert: the stripe reached its maximum load.
+     */
+    static final int STRIPE_FULL = 2;
+
+    private static final int MAX_DIGITS = 8;
+
+    private static final int DIGITS_SHIFT = 27;
+
+    private static final int MAX_LOAD_PERCENT = 75;
+
+    private static final int MAX_STRIPES = 64;
+
+    private static final int MIN_SLOTS_PER_STRIPE = 16;
+
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private static final int INTERVAL_OFFSET = 0;
+
+    private static final int CODE_OFFSET = 4;
+
+    private static final int USER_OFFSET = 8;
+
+    private static final int COUNT_SIZE = 4;
+
+    private final ByteBuffer buffer;
+    private final int countsOffset;
+    private final int slotsOffset;
+    private final int stripeCount;
+    private final int slotsPerStripe;
+    private final int stripeMask;
+    private final int maxLoad;
+
+    /**
+     * Creates a new instance of PackedCodeTable over a region of the passed buffer.
+     * The region has to be zeroed when the table is used for the first time.
+     *
+     * @param buffer         buffer holding the table
+     * @param offset         offset of the table region within the buffer
+     * @param stripeCount    number of stripes, a power of two
+     * @param slotsPerStripe number of slots in a stripe, a power of two
+     */
+    PackedCodeTable(final ByteBuffer buffer, final int offset, final int stripeCount, final int slotsPerStripe) {
+        if (Integer.bitCount(stripeCount) != 1 || Integer.bitCount(slotsPerStripe) != 1) {
+            throw new IllegalArgumentException("stripeCount and slotsPerStripe have to be powers of two");
+        }
+        if (buffer.capacity() - offset < requiredBytes(stripeCount, slotsPerStripe)) {
+            throw new IllegalArgumentException("buffer is too small for the table");
+        }
+
+        this.buffer = buffer;
+        this.countsOffset = offset;
+        this.slotsOffset = offset + countsSize(stripeCount);
+        this.stripeCount = stripeCount;
+        this.slotsPerStripe = slotsPerStripe;
+        this.stripeMask = slotsPerStripe - 1;
+        this.maxLoad = (int) ((long) slotsPerStripe * MAX_LOAD_PERCENT / 100);
+    }
+
+    /**
+     * Gets the number of bytes needed for a table of the given geometry.
+     *
+     * @param stripeCount    number of stripes
+     * @param slotsPerStripe number of slots in a stripe
+     * @return table size in bytes
+     */
+    static long requiredBytes(final int stripeCount, final int slotsPerStripe) {
+        return countsSize(stripeCount) + (long) stripeCount * slotsPerStripe * SLOT_SIZE;
+    }
+
+    /**
+     * Gets the total number of slots of a table holding the passed number of codes without exceeding the maximum load.
+     *
+     * @param capacity maximum number of codes
+     * @return number of slots, a power of two
+     */
+    static int slotsFor(final int capacity) {
+        long minSlots = (long) capacity * 100 / MAX_LOAD_PERCENT + 1;
+        if (minSlots > MAX_SLOTS) {
+            throw new IllegalArgumentException("capacity parameter is too large");
+        }
+        return Math.max(MIN_SLOTS_PER_STRIPE, Integer.highestOneBit((int) minSlots) << 1);
+    }
+
+    /**
+     * Gets the number of stripes a table with the passed number of slots is split into.
+     *
+     * @param slots total number of slots, a power of two
+     * @return number of stripes, a power of two
+     */
+    static int stripesFor(final int slots) {
+        return Math.min(MAX_STRIPES, slots / MIN_SLOTS_PER_STRIPE);
+    }
+
+    /**
+     * Packs a code string into an int holding its value and number of digits, so codes with leading zeros stay distinct.
+     *
+     * @param code code consisting of up to 8 digits
+     * @return packed code, never 0
+     */
+    static int packCode(final String code) {
+        if (code == null || code.isEmpty() || code.length() > MAX_DIGITS) {
+            throw new IllegalArgumentException("code has to consist of 1 to " + MAX_DIGITS + " digits");
+        }
+
+        int value = 0;
+        for (int i = 0; i < code.length(); i++) {
+            int digit = code.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("code has to consist of 1 to " + MAX_DIGITS + " digits");
+            }
+            value = value * 10 + digit;
+        }
+        return code.length() << DIGITS_SHIFT | value;
+    }
+
+    /**
+     * Computes a 64-bit hash of a user identifier.
+     *
+     * @param userId user identifier, may be null
+     * @return user hash
+     */
+    static long hashUser(final String userId) {
+        if (userId == null) {
+            return 0;
+        }
+
+        // FNV-1a over the UTF-16 characters
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < userId.length(); i++) {
+            hash ^= userId.charAt(i);
+            hash *= Hashing.FNV_PRIME;
+        }
+        return Hashing.mix(hash);
+    }
+
+    /**
+     * Computes the hash of a slot key.
+     *
+     * @param interval   interval
+     * @param packedCode packed code
+     * @param userHash   user hash
+     * @return slot hash
+     */
+    static long hash(final int interval, final int packedCode, final long userHash) {
+        return Hashing.mix(userHash ^ Hashing.mix(((long) interval << 32) | (packedCode & 0xFFFFFFFFL)));
+    }
+
+    /**
+     * Gets the stripe a key with the given hash lives in.
+     *
+     * @param hash slot hash
+     * @return stripe index
+     */
+    int stripeOf(final long hash) {
+        return (int) (hash >>> 32) & (stripeCount - 1);
+    }
+
+    int getStripeCount() {
+        return stripeCount;
+    }
+
+    /**
+     * Gets the number of codes stored in a stripe.
+     *
+     * @param stripe stripe index
+     * @return number of codes
+     */
+    int count(final int stripe) {
+        return buffer.getInt(countsOffset + stripe * COUNT_SIZE);
+    }
+
+    /**
+     * Checks if a code is stored in the table.
+     *
+     * @param hash       slot hash computed by the hash method
+     * @param interval   interval
+     * @param packedCode packed code
+     * @param userHash   user hash
+     * @return true if the code is stored
+     */
+    boolean contains(final long hash, final int interval, final int packedCode, final long userHash) {
+        int stripe = stripeOf(hash);
+        int index = (int) hash & stripeMask;
+        for (int probe = 0; probe < slotsPerStripe; probe++) {
+            int slot = slotOffset(stripe, index);
+            int slotCode = buffer.getInt(slot + CODE_OFFSET);
+            if (slotCode == 0) {
+                return false;
+            }
+            if (slotCode == packedCode && buffer.getInt(slot + INTERVAL_OFFSET) == interval && buffer.getLong(slot + USER_OFFSET) == userHash) {
+                return true;
+            }
+            index = (index + 1) & stripeMask;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a code to the table unless it is already stored.
+     *
+     * @param hash       slot hash computed by the hash method
+     * @param interval   interval
+     * @param packedCode packed code
+     * @param userHash   user hash
+     * @return INSERTED, ALREADY_PRESENT or STRIPE_FULL
+     */
+    int insert(final long hash, final int interval, final int packedCode, final long userHash) {
+        int stripe = stripeOf(hash);
+        int index = (int) hash & stripeMask;
+        for (int probe = 0; probe < slotsPerStripe; probe++) {
+            int slot = slotOffset(stripe, index);
+            int slotCode = buffer.getInt(slot + CODE_OFFSET);
+            if (slotCode == 0) {
+                if (count(stripe) >= maxLoad) {
+                    return STRIPE_FULL;
+                }
+                buffer.putInt(slot + INTERVAL_OFFSET, interval);
+                buffer.putLong(slot + USER_OFFSET, userHash);
+                buffer.putInt(slot + CODE_OFFSET, packedCode);
+                setCount(stripe, count(stripe) + 1);
+                return INSERTED;
+            }
+            if (slotCode == packedCode && buffer.getInt(slot + INTERVAL_OFFSET) == interval && buffer.getLong(slot + USER_OFFSET) == userHash) {
+                return ALREADY_PRESENT;
+            }
+            index = (index + 1) & stripeMask;
+        }
+        return STRIPE_FULL;
+    }
+
+    /**
+     * Removes a code from the table.
+     *
+     * @param hash       slot hash computed by the hash method
+     * @param interval   interval
+     * @param packedCode packed code
+     * @param userHash   user hash
+     * @return true if the code was stored
+     */
+    boolean remove(final long hash, final int interval, final int packedCode, final long userHash) {
+        int stripe = stripeOf(hash);
+        int index = (int) hash & stripeMask;
+        for (int probe = 0; probe < slotsPerStripe; probe++) {
+            int slot = slotOffset(stripe, index);
+            int slotCode = buffer.getInt(slot + CODE_OFFSET);
+            if (slotCode == 0) {
+                return false;
+            }
+            if (slotCode == packedCode && buffer.getInt(slot + INTERVAL_OFFSET) == interval && buffer.getLong(slot + USER_OFFSET) == userHash) {
+                removeAt(stripe, index);
+                return true;
+            }
+            index = (index + 1) & stripeMask;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the codes of all the intervals older than the passed one from a stripe.
+     *
+     * @param stripe            stripe index
+     * @param firstLiveInterval first interval that is still kept (lower 32 bits)
+     * @return number of removed codes
+     */
+    int purge(final int stripe, final int firstLiveInterval) {
+        int removed = 0;
+        for (int index = 0; index < slotsPerStripe; index++) {
+            int slot = slotOffset(stripe, index);
+            // the interval comparison has to survive the wrap-around of the lower 32 bits
+            while (buffer.getInt(slot + CODE_OFFSET) != 0 && buffer.getInt(slot + INTERVAL_OFFSET) - firstLiveInterval < 0) {
+                removeAt(stripe, index);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Empties a slot and shifts back the entries of the probe sequence following it.
+     *
+     * @param stripe stripe index
+     * @param index  index of the slot within the stripe
+     */
+    private void removeAt(final int stripe, final int index) {
+        int hole = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & stripeMask;
+            int nextSlot = slotOffset(stripe, next);
+            int nextCode = buffer.getInt(nextSlot + CODE_OFFSET);
+            if (nextCode == 0) {
+                break;
+            }
+
+            int home = (int) hash(buffer.getInt(nextSlot + INTERVAL_OFFSET), nextCode, buffer.getLong(nextSlot + USER_OFFSET)) & stripeMask;
+            boolean homeBetween = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!homeBetween) {
+                int holeSlot = slotOffset(stripe, hole);
+                buffer.putInt(holeSlot + INTERVAL_OFFSET, buffer.getInt(nextSlot + INTERVAL_OFFSET));
+                buffer.putLong(holeSlot + USER_OFFSET, buffer.getLong(nextSlot + USER_OFFSET));
+                buffer.putInt(holeSlot + CODE_OFFSET, nextCode);
+                hole = next;
+            }
+        }
+
+        int holeSlot = slotOffset(stripe, hole);
+        buffer.putInt(holeSlot + CODE_OFFSET, 0);
+        buffer.putInt(holeSlot + INTERVAL_OFFSET, 0);
+        buffer.putLong(holeSlot + USER_OFFSET, 0);
+        setCount(stripe, count(stripe) - 1);
+    }
+
+    /**
+     * Sets the number of codes stored in a stripe.
+     *
+     * @param stripe stripe index
+     * @param count  number of codes
+     */
+    private void setCount(final int stripe, final int count) {
+        buffer.putInt(countsOffset + stripe * COUNT_SIZE, count);
+    }
+
+    /**
+     * Gets the buffer offset of a slot.
+     *
+     * @param stripe stripe index
+     * @param index  index of the slot within the stripe
+     * @return slot offset
+     */
+    private int slotOffset(final int stripe, final int index) {
+        return slotsOffset + (stripe * slotsPerStripe + index) * SLOT_SIZE;
+    }
+
+    /**
+     * Gets the size of the stripe counters region, aligned to the slot size.
+     *
+     * @param stripeCount number of stripes
+     * @return region size in bytes
+     */
+    private static int countsSize(final int stripeCount) {
+        return (stripeCount * COUNT_SIZE + SLOT_SIZE - 1) / SLOT_SIZE * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Destroyable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A secret key that has already been decoded and turned into HMAC key material.
+ * Create it once (e.g. when a user is enrolled or loaded into a cache) and pass it to the authenticator
+ * instead of the BASE32 string, so the decoding cost is not paid on every code generation or verification.
+ * Instances are thread-safe and immutable until they are destroyed.
+ */
+public final class PreparedSecret implements Destroyable {
+    private static final int RETIRED = 1;
+
+    private static final int LEASE = 2;
+
+    private final byte[] key;
+    private final int hash;
+    private final AtomicReferenceArray<SecretKeySpec> keySpecs = new AtomicReferenceArray<>(HmacAlgorithm.values().length);
+    private volatile int[] sha1PadStates;
+    private volatile boolean destroyed;
+
+    /**
+     * Number of leases handed out by a secret store times LEASE, plus RETIRED once the store has dropped the secret.
+     */
+    private final AtomicInteger leaseState = new AtomicInteger();
+
+    /**
+     * Creates a new instance of the PreparedSecret class from a BASE32 encoded secret key.
+     *
+     * @param secret BASE32 encoded secret key
+     */
+    public PreparedSecret(final String secret) {
+        this((CharSequence) secret);
+    }
+
+    /**
+     * Creates a new instance of the PreparedSecret class from BASE32 encoded characters, e.g. a StringBuilder or a CharBuffer
+     * the secret has been read into. The characters are decoded straight into the key, so the caller can clear them afterwards.
+     *
+     * @param secret BASE32 encoded secret key
+     */
+    public PreparedSecret(final CharSequence secret) {
+        if (secret == null || secret.length() == 0) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        this.key = Base32Encoding.toBytes(secret);
+        this.hash = Arrays.hashCode(key);
+    }
+
+    /**
+     * Creates a new instance of the PreparedSecret class from an array of BASE32 encoded characters, e.g. read from a password
+     * field. The characters are decoded straight into the key and the array is not kept, so the caller can clear it afterwards.
+     *
+     * @param secret BASE32 encoded secret key
+     */
+    public PreparedSecret(final char[] secret) {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        byte[] decoded = new byte[Base32Encoding.decodedLength(secret, 0, secret.length)];
+        if (Base32Encoding.decode(secret, 0, secret.length, decoded, 0) == Base32Encoding.INVALID_INPUT) {
+            throw new IllegalArgumentException("Character is not a Base32 character.");
+        }
+        this.key = decoded;
+        this.hash = Arrays.hashCode(key);
+    }
+
+    /**
+     * Creates a new instance of the PreparedSecret class from raw (already decoded) key bytes.
+     * The passed array is copied.
+     *
+     * @param key raw secret key bytes
+     */
+    public PreparedSecret(final byte[] key) {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("key cannot be empty");
+        }
+        this.key = key.clone();
+        this.hash = Arrays.hashCode(key);
+    }
+
+    /**
+     * Gets a copy of the raw secret key bytes.
+     *
+     * @return raw secret key bytes
+     */
+    public byte[] getKeyBytes() {
+        checkNotDestroyed();
+        return key.clone();
+    }
+
+    /**
+     * Gets the SHA-1 states after the inner and the outer HMAC key pad, computed on first use.
+     *
+     * @return pad states used by the built-in HMAC-SHA1 implementation; the array must not be modified
+     * @throws java.security.NoSuchAlgorithmException thrown when SHA-1 is not available for hashing a key longer than a block
+     */
+    int[] getSha1PadStates() throws NoSuchAlgorithmException {
+        checkNotDestroyed();
+        int[] states = sha1PadStates;
+        if (states == null) {
+            // computing the states twice in a race is harmless
+            states = Sha1Hmac.padStates(key);
+            sha1PadStates = states;
+        }
+        return states;
+    }
+
+    /**
+     * Compares the key bytes in constant time, so prepared secrets can be used as keys of caches.
+     * A destroyed secret is equal only to itself.
+     *
+     * @param o object to compare with
+     * @return true if the passed object is a prepared secret with the same key and none of them has been destroyed
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        PreparedSecret other = (PreparedSecret) o;
+        return !destroyed && !other.destroyed && MessageDigest.isEqual(key, other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        // computed from the key when the secret is created, so it does not change when the key is overwritten by destroy
+        return hash;
+    }
+
+    /**
+     * Gets the HMAC key of an algorithm, created on first use. The same instance is returned for every call, so the pooled
+     * Mac of the algorithm is initialized only once when several codes of this secret are computed in a row.
+     *
+     * @param algorithm HMAC algorithm
+     * @return HMAC key
+     */
+    SecretKeySpec getKeySpec(final HmacAlgorithm algorithm) {
+        checkNotDestroyed();
+        SecretKeySpec keySpec = keySpecs.get(algorithm.ordinal());
+        if (keySpec == null) {
+            keySpecs.compareAndSet(algorithm.ordinal(), null, new SecretKeySpec(key, algorithm.getMacName()));
+            keySpec = keySpecs.get(algorithm.ordinal());
+        }
+        return keySpec;
+    }
+
+    /**
+     * Overwrites the key bytes and the precomputed HMAC-SHA1 pad states with zeros and drops the HMAC keys, so the secret
+     * cannot be used any more. The JCA keys and the pooled Mac instances initialized with them keep their own copies of
+     * the key until they are garbage collected or reinitialized.
+     */
+    @Override
+    public void destroy() {
+        destroyed = true;
+        Arrays.fill(key, (byte) 0);
+        int[] states = sha1PadStates;
+        if (states != null) {
+            Arrays.fill(states, 0);
+        }
+        for (int i = 0; i < keySpecs.length(); i++) {
+            keySpecs.set(i, null);
+        }
+    }
+
+    /**
+     * Checks if the secret has been destroyed.
+     *
+     * @return true if destroy has been called
+     */
+    @Override
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Records that a secret store has handed the secret out to a caller, who returns it with releaseLease.
+     */
+    void lease() {
+        leaseState.addAndGet(LEASE);
+    }
+
+    /**
+     * Returns a lease handed out by lease and destroys the secret if the store has retired it and this was the last lease.
+     */
+    void releaseLease() {
+        int previous = leaseState.getAndUpdate(state -> state >= LEASE ? state - LEASE : state);
+        if (previous == (LEASE | RETIRED)) {
+            destroy();
+        }
+    }
+
+    /**
+     * Records that a secret store will not hand the secret out any more, e.g. it has been evicted from a cache, and destroys
+     * the secret right away if no lease is held, or else when the last one is returned.
+     */
+    void retire() {
+        if (leaseState.getAndUpdate(state -> state | RETIRED) == 0) {
+            destroy();
+        }
+    }
+
+    /**
+     * Makes sure the secret has not been destroyed before its key material is used.
+     */
+    private void checkNotDestroyed() {
+        if (destroyed) {
+            throw new IllegalStateException("secret has been destroyed");
+        }
+    }
+}
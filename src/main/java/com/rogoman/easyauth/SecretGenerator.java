@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * A generator of BASE32 encoded secret keys for provisioning many users at once.
+ * Each thread has its own random number generator, so generating keys in parallel threads does not contend on a shared
+ * instance. Random bytes are drawn in blocks and every key is encoded from a slice of the current block; the consumed
+ * bytes are cleared right after encoding. Instances are thread-safe.
+ */
+public final class SecretGenerator {
+
+    /**
+     * Default key length in bytes, giving the 16-character keys created by Authenticator.generateKey().
+     */
+    public static final int DEFAULT_KEY_LENGTH_IN_BYTES = 10;
+
+    private static final String RANDOM_NUMBER_GENERATOR_NAME = "SHA1PRNG";
+
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * A block of random bytes drawn by a thread, together with the generator that drew them.
+     */
+    private static final class RandomBlock {
+        private final SecureRandom random = createRandom();
+        private final byte[] bytes = new byte[BLOCK_SIZE];
+        private int position = BLOCK_SIZE;
+    }
+
+    private static final ThreadLocal<RandomBlock> BLOCKS = new ThreadLocal<RandomBlock>() {
+        @Override
+        protected RandomBlock initialValue() {
+            return new RandomBlock();
+        }
+    };
+
+    private final int keyLengthInBytes;
+
+    /**
+     * Creates a new instance of the SecretGenerator class generating keys of the default length.
+     */
+    public SecretGenerator() {
+        this(DEFAULT_KEY_LENGTH_IN_BYTES);
+    }
+
+    /**
+     * Creates a new instance of the SecretGenerator class. RFC 4226 recommends keys of 160 bits (20 bytes).
+     * Lengths that are not multiples of 5 bytes give keys with BASE32 padding.
+     *
+     * @param keyLengthInBytes key length in bytes
+     */
+    public SecretGenerator(final int keyLengthInBytes) {
+        if (keyLengthInBytes <= 0 || keyLengthInBytes > BLOCK_SIZE) {
+            throw new IllegalArgumentException("keyLengthInBytes parameter has to be between 1 and " + BLOCK_SIZE);
+        }
+        this.keyLengthInBytes = keyLengthInBytes;
+    }
+
+    /**
+     * Generates a new secret key.
+     *
+     * @return BASE32 encoded secret key
+     */
+    public String generateKey() {
+        RandomBlock block = BLOCKS.get();
+        if (block.position > BLOCK_SIZE - keyLengthInBytes) {
+            block.random.nextBytes(block.bytes);
+            block.position = 0;
+        }
+
+        String key = Base32Encoding.toString(block.bytes, block.position, keyLengthInBytes);
+        Arrays.fill(block.bytes, block.position, block.position + keyLengthInBytes, (byte) 0);
+        block.position += keyLengthInBytes;
+        return key;
+    }
+
+    /**
+     * Generates many secret keys in the current thread.
+     *
+     * @param count number of keys
+     * @return BASE32 encoded secret keys
+     */
+    public String[] generateKeys(final int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count parameter cannot be negative");
+        }
+
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = generateKey();
+        }
+        return keys;
+    }
+
+    /**
+     * Gets an infinite stream of new secret keys. Limit the stream to the number of keys needed; a parallel stream
+     * generates the keys in all the threads of the pool, each with its own random number generator.
+     *
+     * @return stream of BASE32 encoded secret keys
+     */
+    public Stream<String> keys() {
+        return Stream.generate(this::generateKey);
+    }
+
+    /**
+     * Gets the length of the generated keys.
+     *
+     * @return key length in bytes
+     */
+    public int getKeyLengthInBytes() {
+        return keyLengthInBytes;
+    }
+
+    /**
+     * Creates the random number generator of a thread.
+     *
+     * @return random number generator
+     */
+    private static SecureRandom createRandom() {
+        try {
+            return SecureRandom.getInstance(RANDOM_NUMBER_GENERATOR_NAME);
+        } catch (final NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+/**
+ * An interface of a store of the secret keys of users. The TimeAuthenticator looks the secret up by the user identifier,
+ * so callers verifying a code don't have to fetch and keep the BASE32 secrets themselves.
+ */
+public interface SecretStore {
+
+    /**
+     * Gets the secret key of a user. Pass the secret to releaseSecret once it is no longer used.
+     *
+     * @param userIdentifier The user identifier
+     * @return prepared secret or null if the store has no secret for the user
+     */
+    PreparedSecret getSecret(String userIdentifier);
+
+    /**
+     * Tells the store that a secret returned by getSecret is no longer used by the caller, so a store that dropped the
+     * secret in the meantime, e.g. evicted it from a cache, can destroy it. Does nothing by default.
+     *
+     * @param secret secret returned by getSecret
+     */
+    default void releaseSecret(final PreparedSecret secret) {
+    }
+}
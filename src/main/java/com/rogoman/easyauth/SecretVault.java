@@ -0,0 +1,444 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A store of secret keys encrypted at rest with AES-GCM.
+ * Each secret is encrypted with a random IV and the user identifier as associated data, so an encrypted secret cannot be
+ * moved to another user. The secrets of recently verified users are kept decrypted in a bounded LRU cache, so hot users
+ * skip the decryption and the key setup. The cache is split into stripes, each holding at most its share of the cache
+ * size in bytes of key material. Every secret returned by getSecret is leased to the caller until it is passed to
+ * releaseSecret, as TimeAuthenticator.checkCode does. Evicted, replaced and removed secrets, and the secrets that were not
+ * cached at all, are destroyed as soon as their last lease is released, so their key material is zeroized without pulling it
+ * from under a thread still computing a code. A secret that is never released is left to the garbage collector.
+ * Use getEncryptedSecret and putEncryptedSecret to persist the encrypted secrets in your own storage. Instances are thread-safe.
+ */
+public class SecretVault implements SecretStore {
+
+    /**
+     * Default size of the cache of decrypted secrets in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE_IN_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * Approximate number of bytes taken by a cached secret in addition to its key bytes: the prepared secret, its HMAC key
+     * and pad states, and the cache entry.
+     */
+    static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private static final String CIPHER_NAME = "AES/GCM/NoPadding";
+
+    private static final String KEY_ALGORITHM = "AES";
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH_IN_BITS = 128;
+
+    private static final int CACHE_STRIPES = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(CIPHER_NAME);
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException(CIPHER_NAME + " is not available", e);
+            }
+        }
+    };
+
+    /**
+     * A decrypted secret together with the encrypted secret it was decrypted from.
+     */
+    private static final class CachedSecret {
+        private final byte[] encryptedSecret;
+        private final PreparedSecret secret;
+        private final int size;
+
+        /**
+         * Creates a new instance of CachedSecret.
+         *
+         * @param encryptedSecret encrypted secret
+         * @param secret          decrypted secret
+         * @param keyLength       length of the decrypted key in bytes
+         */
+        CachedSecret(final byte[] encryptedSecret, final PreparedSecret secret, final int keyLength) {
+            this.encryptedSecret = encryptedSecret;
+            this.secret = secret;
+            this.size = ENTRY_OVERHEAD_BYTES + keyLength;
+        }
+    }
+
+    /**
+     * A stripe of the cache: an access-ordered map of the decrypted secrets of the users whose identifiers hash to the stripe.
+     * The stripe has to be locked while it is used.
+     */
+    private static final class CacheStripe {
+        private final Map<String, CachedSecret> secrets = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxSize;
+        private long size;
+
+        /**
+         * Creates a new instance of CacheStripe.
+         *
+         * @param maxSize maximum size of the stripe in bytes
+         */
+        CacheStripe(final long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Adds a decrypted secret and evicts the least recently used secrets over the maximum size.
+         *
+         * @param userIdentifier The user identifier
+         * @param cached         decrypted secret
+         */
+        void put(final String userIdentifier, final CachedSecret cached) {
+            remove(userIdentifier);
+            secrets.put(userIdentifier, cached);
+            size += cached.size;
+
+            Iterator<CachedSecret> eldest = secrets.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                CachedSecret evicted = eldest.next();
+                eldest.remove();
+                size -= evicted.size;
+                evicted.secret.retire();
+            }
+        }
+
+        /**
+         * Removes all the decrypted secrets.
+         */
+        void clear() {
+            for (CachedSecret cached : secrets.values()) {
+                cached.secret.retire();
+            }
+            secrets.clear();
+            size = 0;
+        }
+
+        /**
+         * Removes the decrypted secret of a user.
+         *
+         * @param userIdentifier The user identifier
+         */
+        void remove(final String userIdentifier) {
+            CachedSecret removed = secrets.remove(userIdentifier);
+            if (removed != null) {
+                size -= removed.size;
+                removed.secret.retire();
+            }
+        }
+    }
+
+    private final SecretKey key;
+    private final ConcurrentMap<String, byte[]> encryptedSecrets = new ConcurrentHashMap<>();
+    private final CacheStripe[] cache;
+
+    /**
+     * Creates a new instance of the SecretVault class with a cache of the default size.
+     *
+     * @param key AES key encrypting the secrets
+     */
+    public SecretVault(final SecretKey key) {
+        this(key, DEFAULT_CACHE_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Creates a new instance of the SecretVault class.
+     *
+     * @param key              AES key encrypting the secrets
+     * @param cacheSizeInBytes maximum size of the cache of decrypted secrets in bytes, 0 to decrypt the secret on every lookup
+     */
+    public SecretVault(final SecretKey key, final long cacheSizeInBytes) {
+        if (key == null || !KEY_ALGORITHM.equals(key.getAlgorithm())) {
+            throw new IllegalArgumentException("key has to be an AES key");
+        }
+        if (cacheSizeInBytes < 0) {
+            throw new IllegalArgumentException("cacheSizeInBytes parameter cannot be negative");
+        }
+
+        this.key = key;
+        this.cache = new CacheStripe[CACHE_STRIPES];
+        for (int i = 0; i < CACHE_STRIPES; i++) {
+            cache[i] = new CacheStripe(cacheSizeInBytes / CACHE_STRIPES);
+        }
+    }
+
+    /**
+     * Gets the decrypted secret key of a user from the cache or decrypts it. The secret is leased to the caller until it is
+     * passed to releaseSecret.
+     *
+     * @param userIdentifier The user identifier
+     * @return prepared secret or null if the vault has no secret for the user
+     * @throws java.lang.IllegalStateException thrown when the encrypted secret cannot be decrypted, e.g. it has been modified
+     */
+    @Override
+    public PreparedSecret getSecret(final String userIdentifier) {
+        if (StringUtils.isEmpty(userIdentifier)) {
+            throw new IllegalArgumentException("userIdentifier cannot be null");
+        }
+
+        byte[] encryptedSecret = encryptedSecrets.get(userIdentifier);
+        if (encryptedSecret == null) {
+            return null;
+        }
+
+        CacheStripe stripe = stripeOf(userIdentifier);
+        synchronized (stripe) {
+            CachedSecret cached = stripe.secrets.get(userIdentifier);
+            // a secret cached before the encrypted secret was replaced is stale
+            if (cached != null && cached.encryptedSecret == encryptedSecret) {
+                cached.secret.lease();
+                return cached.secret;
+            }
+        }
+
+        byte[] keyBytes = decrypt(userIdentifier, encryptedSecret);
+        PreparedSecret secret = new PreparedSecret(keyBytes);
+        CachedSecret cached = new CachedSecret(encryptedSecret, secret, keyBytes.length);
+        Arrays.fill(keyBytes, (byte) 0);
+
+        secret.lease();
+        synchronized (stripe) {
+            if (cached.size <= stripe.maxSize && encryptedSecrets.get(userIdentifier) == encryptedSecret) {
+                stripe.put(userIdentifier, cached);
+            } else {
+                // not cached, so it is destroyed once the caller releases it
+                secret.retire();
+            }
+        }
+        return secret;
+    }
+
+    /**
+     * Returns the lease on a secret returned by getSecret. A secret that has been evicted, replaced or removed in the meantime,
+     * or has not been cached at all, is destroyed once its last lease is returned.
+     *
+     * @param secret secret returned by getSecret
+     */
+    @Override
+    public void releaseSecret(final PreparedSecret secret) {
+        if (secret != null) {
+            secret.releaseLease();
+        }
+    }
+
+    /**
+     * Encrypts and stores the BASE32 encoded secret key of a user, replacing the current one.
+     *
+     * @param userIdentifier The user identifier
+     * @param secret         BASE32 encoded secret key
+     */
+    public void put(final String userIdentifier, final String secret) {
+        if (StringUtils.isEmpty(secret)) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+
+        byte[] keyBytes = Base32Encoding.toBytes(secret);
+        try {
+            put(userIdentifier, keyBytes);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypts and stores the raw secret key bytes of a user, replacing the current key.
+     *
+     * @param userIdentifier The user identifier
+     * @param keyBytes       raw secret key bytes
+     */
+    public void put(final String userIdentifier, final byte[] keyBytes) {
+        if (StringUtils.isEmpty(userIdentifier)) {
+            throw new IllegalArgumentException("userIdentifier cannot be null");
+        }
+        if (keyBytes == null || keyBytes.length == 0) {
+            throw new IllegalArgumentException("keyBytes cannot be empty");
+        }
+
+        store(userIdentifier, encrypt(userIdentifier, keyBytes));
+    }
+
+    /**
+     * Stores an encrypted secret of a user, e.g. loaded from a database, replacing the current one.
+     * The secret is decrypted only when it is looked up.
+     *
+     * @param userIdentifier  The user identifier
+     * @param encryptedSecret secret encrypted by this vault or another vault with the same key
+     */
+    public void putEncryptedSecret(final String userIdentifier, final byte[] encryptedSecret) {
+        if (StringUtils.isEmpty(userIdentifier)) {
+            throw new IllegalArgumentException("userIdentifier cannot be null");
+        }
+        if (encryptedSecret == null || encryptedSecret.length <= IV_LENGTH) {
+            throw new IllegalArgumentException("encryptedSecret is too short");
+        }
+
+        store(userIdentifier, encryptedSecret.clone());
+    }
+
+    /**
+     * Gets the encrypted secret of a user, e.g. to persist it in a database.
+     *
+     * @param userIdentifier The user identifier
+     * @return copy of the encrypted secret or null if the vault has no secret for the user
+     */
+    public byte[] getEncryptedSecret(final String userIdentifier) {
+        byte[] encryptedSecret = encryptedSecrets.get(userIdentifier);
+        return encryptedSecret == null ? null : encryptedSecret.clone();
+    }
+
+    /**
+     * Removes the secret of a user and its decrypted copy.
+     *
+     * @param userIdentifier The user identifier
+     * @return true if the secret has been removed, false if the vault had no secret for the user
+     */
+    public boolean remove(final String userIdentifier) {
+        if (encryptedSecrets.remove(userIdentifier) == null) {
+            return false;
+        }
+
+        CacheStripe stripe = stripeOf(userIdentifier);
+        synchronized (stripe) {
+            stripe.remove(userIdentifier);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of stored secrets.
+     *
+     * @return number of secrets
+     */
+    public int size() {
+        return encryptedSecrets.size();
+    }
+
+    /**
+     * Gets the number of decrypted secrets kept in the cache.
+     *
+     * @return number of cached secrets
+     */
+    public int getCachedCount() {
+        int count = 0;
+        for (CacheStripe stripe : cache) {
+            synchronized (stripe) {
+                count += stripe.secrets.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all the decrypted secrets kept in the cache.
+     */
+    public void clearCache() {
+        for (CacheStripe stripe : cache) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Stores an encrypted secret and removes the cached decrypted copy of the previous one.
+     *
+     * @param userIdentifier  The user identifier
+     * @param encryptedSecret encrypted secret
+     */
+    private void store(final String userIdentifier, final byte[] encryptedSecret) {
+        encryptedSecrets.put(userIdentifier, encryptedSecret);
+
+        CacheStripe stripe = stripeOf(userIdentifier);
+        synchronized (stripe) {
+            stripe.remove(userIdentifier);
+        }
+    }
+
+    /**
+     * Encrypts a secret key. The result holds the random IV followed by the ciphertext and the authentication tag.
+     *
+     * @param userIdentifier The user identifier, authenticated together with the key
+     * @param keyBytes       raw secret key bytes
+     * @return encrypted secret
+     */
+    private byte[] encrypt(final String userIdentifier, final byte[] keyBytes) {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_IN_BITS, iv));
+            cipher.updateAAD(userIdentifier.getBytes(StandardCharsets.UTF_8));
+
+            byte[] encryptedSecret = Arrays.copyOf(iv, IV_LENGTH + cipher.getOutputSize(keyBytes.length));
+            cipher.doFinal(keyBytes, 0, keyBytes.length, encryptedSecret, IV_LENGTH);
+            return encryptedSecret;
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Secret cannot be encrypted", e);
+        }
+    }
+
+    /**
+     * Decrypts a secret key.
+     *
+     * @param userIdentifier  The user identifier the secret was encrypted for
+     * @param encryptedSecret encrypted secret
+     * @return raw secret key bytes, to be cleared by the caller
+     */
+    private byte[] decrypt(final String userIdentifier, final byte[] encryptedSecret) {
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_IN_BITS, encryptedSecret, 0, IV_LENGTH));
+            cipher.updateAAD(userIdentifier.getBytes(StandardCharsets.UTF_8));
+            return cipher.doFinal(encryptedSecret, IV_LENGTH, encryptedSecret.length - IV_LENGTH);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Secret of user " + userIdentifier + " cannot be decrypted", e);
+        }
+    }
+
+    /**
+     * Gets the cache stripe of a user.
+     *
+     * @param userIdentifier The user identifier
+     * @return cache stripe
+     */
+    private CacheStripe stripeOf(final String userIdentifier) {
+        int hash = userIdentifier.hashCode();
+        return cache[(hash ^ (hash >>> 16)) & (CACHE_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An HMAC-SHA1 implementation specialized for the 8-byte counter messages of the one-time passwords.
+ * The SHA-1 states after compressing the inner and outer key pads are computed once per key, so a digest takes two
+ * compressions instead of the four done by a generic HMAC. The work buffer is kept per thread, so computing a code
+ * does not allocate anything.
+ */
+final class Sha1Hmac {
+
+    /**
+     * Number of ints in the precomputed pad states: the inner state followed by the outer state.
+     */
+    static final int PAD_STATES_LENGTH = 10;
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int STATE_LENGTH = 5;
+
+    private static final int SCHEDULE_LENGTH = 80;
+
+    private static final int DIGEST_SIZE = 20;
+
+    private static final int INNER_MESSAGE_BITS = (BLOCK_SIZE + 8) * 8;
+
+    private static final int OUTER_MESSAGE_BITS = (BLOCK_SIZE + DIGEST_SIZE) * 8;
+
+    private static final int[] INITIAL_STATE = {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0};
+
+    private static final ThreadLocal<int[]> WORK = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[SCHEDULE_LENGTH + STATE_LENGTH];
+        }
+    };
+
+    /**
+     * Private constructor to prevent from instantiating the class.
+     */
+    private Sha1Hmac() {
+    }
+
+    /**
+     * Computes the SHA-1 states after compressing the inner and the outer pad of a key.
+     *
+     * @param key raw key bytes
+     * @return inner state followed by the outer state
+     * @throws java.security.NoSuchAlgorithmException thrown when SHA-1 is not available for hashing a key longer than a block
+     */
+    static int[] padStates(final byte[] key) throws NoSuchAlgorithmException {
+        byte[] blockKey = key.length > BLOCK_SIZE ? MessageDigest.getInstance("SHA-1").digest(key) : key;
+        int[] states = new int[PAD_STATES_LENGTH];
+        int[] w = new int[SCHEDULE_LENGTH + STATE_LENGTH];
+        padState(blockKey, (byte) 0x36, w);
+        System.arraycopy(w, SCHEDULE_LENGTH, states, 0, STATE_LENGTH);
+        padState(blockKey, (byte) 0x5c, w);
+        System.arraycopy(w, SCHEDULE_LENGTH, states, STATE_LENGTH, STATE_LENGTH);
+        return states;
+    }
+
+    /**
+     * Computes the HMAC of a counter and applies the dynamic truncation of RFC 4226.
+     *
+     * @param padStates pad states computed by padStates
+     * @param counter   counter value used as the message
+     * @return 31-bit truncated hash
+     */
+    static int truncatedDigest(final int[] padStates, final long counter) {
+        int[] w = digest(padStates, counter);
+        int offset = w[SCHEDULE_LENGTH + STATE_LENGTH - 1] & 0xf;
+        return (digestByte(w, offset) & 0x7F) << 24
+                | digestByte(w, offset + 1) << 16
+                | digestByte(w, offset + 2) << 8
+                | digestByte(w, offset + 3);
+    }
+
+    /**
+     * Computes the HMAC of a counter.
+     *
+     * @param padStates pad states computed by padStates
+     * @param counter   counter value used as the message
+     * @return 20-byte HMAC digest
+     */
+    static byte[] fullDigest(final int[] padStates, final long counter) {
+        int[] w = digest(padStates, counter);
+        byte[] result = new byte[DIGEST_SIZE];
+        for (int i = 0; i < DIGEST_SIZE; i++) {
+            result[i] = (byte) digestByte(w, i);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the HMAC of a counter into the work buffer of the current thread.
+     *
+     * @param padStates pad states computed by padStates
+     * @param counter   counter value used as the message
+     * @return work buffer holding the digest state after the message schedule
+     */
+    private static int[] digest(final int[] padStates, final long counter) {
+        int[] w = WORK.get();
+
+        // inner hash: the counter and the padding of a 72-byte message
+        System.arraycopy(padStates, 0, w, SCHEDULE_LENGTH, STATE_LENGTH);
+        w[0] = (int) (counter >>> 32);
+        w[1] = (int) counter;
+        w[2] = 0x80000000;
+        for (int i = 3; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = INNER_MESSAGE_BITS;
+        compress(w);
+
+        // outer hash: the inner digest and the padding of an 84-byte message
+        System.arraycopy(w, SCHEDULE_LENGTH, w, 0, STATE_LENGTH);
+        System.arraycopy(padStates, STATE_LENGTH, w, SCHEDULE_LENGTH, STATE_LENGTH);
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = OUTER_MESSAGE_BITS;
+        compress(w);
+        return w;
+    }
+
+    /**
+     * Computes the state after compressing a key block XOR-ed with a pad byte.
+     *
+     * @param key raw key bytes, at most one block long
+     * @param pad pad byte
+     * @param w   work buffer receiving the state
+     */
+    private static void padState(final byte[] key, final byte pad, final int[] w) {
+        for (int i = 0; i < 16; i++) {
+            int word = 0;
+            for (int j = 0; j < 4; j++) {
+                int index = i * 4 + j;
+                word = word << 8 | ((index < key.length ? key[index] : 0) ^ pad) & 0xFF;
+            }
+            w[i] = word;
+        }
+        System.arraycopy(INITIAL_STATE, 0, w, SCHEDULE_LENGTH, STATE_LENGTH);
+        compress(w);
+    }
+
+    /**
+     * Runs the SHA-1 compression function over the block held in the first 16 words of the work buffer,
+     * updating the state held after the message schedule.
+     *
+     * @param w work buffer
+     */
+    private static void compress(final int[] w) {
+        for (int t = 16; t < SCHEDULE_LENGTH; t++) {
+            w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+        }
+
+        int a = w[SCHEDULE_LENGTH];
+        int b = w[SCHEDULE_LENGTH + 1];
+        int c = w[SCHEDULE_LENGTH + 2];
+        int d = w[SCHEDULE_LENGTH + 3];
+        int e = w[SCHEDULE_LENGTH + 4];
+        // four rounds of twenty steps, split so that the round function is not selected in every step
+        for (int t = 0; t < 20; t++) {
+            int temp = Integer.rotateLeft(a, 5) + (b & c | ~b & d) + 0x5A827999 + e + w[t];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        for (int t = 20; t < 40; t++) {
+            int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + 0x6ED9EBA1 + e + w[t];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        for (int t = 40; t < 60; t++) {
+            int temp = Integer.rotateLeft(a, 5) + (b & c | b & d | c & d) + 0x8F1BBCDC + e + w[t];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        for (int t = 60; t < SCHEDULE_LENGTH; t++) {
+            int temp = Integer.rotateLeft(a, 5) + (b ^ c ^ d) + 0xCA62C1D6 + e + w[t];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        w[SCHEDULE_LENGTH] += a;
+        w[SCHEDULE_LENGTH + 1] += b;
+        w[SCHEDULE_LENGTH + 2] += c;
+        w[SCHEDULE_LENGTH + 3] += d;
+        w[SCHEDULE_LENGTH + 4] += e;
+    }
+
+    /**
+     * Gets a byte of the big-endian digest held in the state part of the work buffer.
+     *
+     * @param w     work buffer
+     * @param index byte index within the digest
+     * @return unsigned byte value
+     */
+    private static int digestByte(final int[] w, final int index) {
+        return w[SCHEDULE_LENGTH + (index >> 2)] >>> (24 - 8 * (index & 3)) & 0xFF;
+    }
+}
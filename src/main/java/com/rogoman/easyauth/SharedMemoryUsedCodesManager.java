@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A manager of used codes shared by all the processes on the same host that open the same file.
+ * The used codes are kept in the same fixed-size hash table as in the OffHeapUsedCodesManager, but the table lives in a
+ * memory-mapped file, so a code accepted by one JVM is seen as used by all the others without any network round trip.
+ * Each stripe of the table is guarded by a lock word kept in the file and acquired with compare-and-swap, which excludes the
+ * threads of all the processes without a system call, so checking a code takes well under a microsecond. A lock is only taken
+ * over from a process that has exited; the stripe may then keep a code the crashed process was writing, or lose one it was
+ * removing. All the processes have to use the same capacity.
+ */
+public class SharedMemoryUsedCodesManager implements UsedCodesManager<String>, AutoCloseable {
+    private static final int MILLISECONDS_IN_SECOND = 1000;
+
+    private static final int DEFAULT_CLEANUP_AGE_IN_SECONDS = 5 * 60;
+
+    private static final int MAGIC = 0x45415532;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int LOCKS_OFFSET = SharedStripeLocks.LOCK_SIZE;
+
+    private static final int STRIPES_OFFSET = 4;
+
+    private static final int SLOTS_PER_STRIPE_OFFSET = 8;
+
+    /**
+     * Excludes the threads of the JVM from initializing a file while another one closes a channel: closing any channel of
+     * a file releases all the locks the process holds on it.
+     */
+    private static final Object FILE_LOCK_MONITOR = new Object();
+
+    private final PackedCodeTable table;
+    private final SharedStripeLocks locks;
+    private final int stripeCount;
+    private final long intervalLength;
+    private final long cleanupAge;
+    private final ScheduledFuture<?> cleanupTask;
+
+    /**
+     * Constructs a new SharedMemoryUsedCodesManager with the default cleanup age and interval length.
+     *
+     * @param file     file holding the table, created if it does not exist
+     * @param capacity maximum number of used codes kept at the same time
+     * @throws java.io.IOException thrown when the file cannot be mapped or was created with a different capacity
+     */
+    public SharedMemoryUsedCodesManager(final Path file, final int capacity) throws IOException {
+        this(file, capacity, DEFAULT_CLEANUP_AGE_IN_SECONDS, TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+    }
+
+    /**
+     * Constructs a new SharedMemoryUsedCodesManager.
+     *
+     * @param file                file holding the table, created if it does not exist
+     * @param capacity            maximum number of used codes kept at the same time
+     * @param cleanupAgeInSeconds cleanup age in seconds
+     * @param intervalSeconds     interval length in seconds used by the authenticator
+     * @throws java.io.IOException thrown when the file cannot be mapped or was created with a different capacity
+     */
+    public SharedMemoryUsedCodesManager(final Path file, final int capacity, final int cleanupAgeInSeconds, final int intervalSeconds)
+            throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity parameter has to be positive");
+        }
+        if (cleanupAgeInSeconds < 0) {
+            throw new IllegalArgumentException("cleanupAgeInSeconds parameter cannot be negative");
+        }
+        if (intervalSeconds <= 0) {
+            throw new IllegalArgumentException("intervalSeconds parameter has to be positive");
+        }
+
+        int slots = PackedCodeTable.slotsFor(capacity);
+        int stripes = PackedCodeTable.stripesFor(slots);
+        int slotsPerStripe = slots / stripes;
+
+        int tableOffset = LOCKS_OFFSET + (int) SharedStripeLocks.requiredBytes(stripes);
+        MappedByteBuffer buffer;
+        // the mapping stays valid after the channel is closed, so no channel is kept open
+        synchronized (FILE_LOCK_MONITOR) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, tableOffset + PackedCodeTable.requiredBytes(stripes, slotsPerStripe));
+                buffer.order(ByteOrder.nativeOrder());
+                initializeHeader(channel, buffer, file, stripes, slotsPerStripe);
+            }
+        }
+        this.table = new PackedCodeTable(buffer, tableOffset, stripes, slotsPerStripe);
+        this.locks = new SharedStripeLocks(buffer, LOCKS_OFFSET, stripes);
+        this.stripeCount = stripes;
+
+        this.intervalLength = (long) intervalSeconds * MILLISECONDS_IN_SECOND;
+        this.cleanupAge = (long) cleanupAgeInSeconds * MILLISECONDS_IN_SECOND;
+        this.cleanupTask = CleanupScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cleanup();
+            }
+        }, intervalLength);
+    }
+
+    /**
+     * Checks that the authenticator uses the interval length the manager has been created with.
+     *
+     * @param intervalSeconds interval length in seconds used by the authenticator
+     * @throws java.lang.IllegalArgumentException thrown when the manager has been created for another interval length
+     */
+    @Override
+    public void bindIntervalSeconds(final int intervalSeconds) {
+        if ((long) intervalSeconds * MILLISECONDS_IN_SECOND != intervalLength) {
+            throw new IllegalArgumentException("The used codes manager has been created for " + intervalLength / MILLISECONDS_IN_SECOND
+                    + "-second intervals");
+        }
+    }
+
+    @Override
+    public void addCode(final long timestamp, final String code, final String userId) {
+        markIfUnused(timestamp, code, userId);
+    }
+
+    @Override
+    public boolean isCodeUsed(final long timestamp, final String code, final String userId) {
+        int interval = (int) timestamp;
+        int packedCode = PackedCodeTable.packCode(code);
+        long userHash = PackedCodeTable.hashUser(userId);
+        long hash = PackedCodeTable.hash(interval, packedCode, userHash);
+        int stripe = table.stripeOf(hash);
+        locks.lock(stripe);
+        try {
+            return table.contains(hash, interval, packedCode, userHash);
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    @Override
+    public boolean markIfUnused(final long timestamp, final String code, final String userId) {
+        int interval = (int) timestamp;
+        int packedCode = PackedCodeTable.packCode(code);
+        long userHash = PackedCodeTable.hashUser(userId);
+        long hash = PackedCodeTable.hash(interval, packedCode, userHash);
+        int stripe = table.stripeOf(hash);
+        locks.lock(stripe);
+        try {
+            int result = table.insert(hash, interval, packedCode, userHash);
+            if (result == PackedCodeTable.STRIPE_FULL) {
+                table.purge(stripe, firstLiveInterval());
+                result = table.insert(hash, interval, packedCode, userHash);
+                if (result == PackedCodeTable.STRIPE_FULL) {
+                    throw new IllegalStateException("Used codes table is full, increase its capacity");
+                }
+            }
+            return result == PackedCodeTable.INSERTED;
+        } finally {
+            locks.unlock(stripe);
+        }
+    }
+
+    /**
+     * Stops the periodic cleanup. The codes stay in the file for the other processes; the file is unmapped once the manager
+     * is garbage collected.
+     */
+    @Override
+    public void close() {
+        cleanupTask.cancel(false);
+    }
+
+    /**
+     * Removes the codes of all the intervals that ended longer than the cleanup age ago, one stripe at a time.
+     */
+    void cleanup() {
+        int firstLiveInterval = firstLiveInterval();
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            locks.lock(stripe);
+            try {
+                table.purge(stripe, firstLiveInterval);
+            } finally {
+                locks.unlock(stripe);
+            }
+        }
+    }
+
+    /**
+     * Writes the table geometry to the header of a new file or checks it matches the geometry of an existing one.
+     * The header is locked, so only one process initializes the file; the caller excludes the other threads of the JVM.
+     *
+     * @param channel        channel of the file
+     * @param buffer         mapped file
+     * @param file           file holding the table
+     * @param stripes        number of stripes
+     * @param slotsPerStripe number of slots in a stripe
+     * @throws java.io.IOException thrown when the file was created with a different capacity or is not a table of used codes
+     */
+    private static void initializeHeader(final FileChannel channel, final MappedByteBuffer buffer, final Path file, final int stripes,
+                                         final int slotsPerStripe) throws IOException {
+        FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            if (buffer.getInt(0) == 0) {
+                buffer.putInt(STRIPES_OFFSET, stripes);
+                buffer.putInt(SLOTS_PER_STRIPE_OFFSET, slotsPerStripe);
+                buffer.putInt(0, MAGIC);
+            } else if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("File " + file + " is not a table of used codes");
+            } else if (buffer.getInt(STRIPES_OFFSET) != stripes || buffer.getInt(SLOTS_PER_STRIPE_OFFSET) != slotsPerStripe) {
+                throw new IOException("File " + file + " was created with a different capacity");
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Gets the lower 32 bits of the first interval whose codes are still kept.
+     *
+     * @return first live interval
+     */
+    private int firstLiveInterval() {
+        return (int) Math.floorDiv(System.currentTimeMillis() - cleanupAge, intervalLength);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.rogoman.easyauth;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Locks of the stripes of a table shared by several processes, kept as words of a memory-mapped file and acquired with
+ * compare-and-swap, so locking a stripe takes no system call and excludes both the other threads and the other processes.
+ * A lock word holds the owner identifier of the holding process, made of its process id and start time. A lock is never
+ * taken away from a process that is still running, however long it holds it; only the lock of a process that has exited,
+ * e.g. crashed while holding it, is taken over by the next thread waiting for it.
+ */
+final class SharedStripeLocks {
+
+    /**
+     * Number of bytes taken by a lock, a whole cache line so the locks of different stripes are not contended together.
+     */
+    static final int LOCK_SIZE = 64;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private static final int SPINS_PER_LIVENESS_CHECK = 1024;
+
+    private static final long START_TIME_MASK = 0xffffffffL;
+
+    /**
+     * Difference of the start times, in seconds, up to which a running process with the holder's process id is taken for
+     * the holder, allowing for the rounding of the start time.
+     */
+    private static final int START_TIME_TOLERANCE_SECONDS = 1;
+
+    private static final long CURRENT_OWNER = ownerOf(ProcessHandle.current());
+
+    private final MappedByteBuffer buffer;
+    private final int offset;
+    private final int stripeCount;
+    private final long owner;
+
+    /**
+     * Creates a new instance of SharedStripeLocks over a region of a mapped file, owned by the current process. The region
+     * has to be zeroed when the locks are used for the first time.
+     *
+     * @param buffer      mapped file
+     * @param offset      offset of the first lock, a multiple of LOCK_SIZE
+     * @param stripeCount number of stripes
+     */
+    SharedStripeLocks(final MappedByteBuffer buffer, final int offset, final int stripeCount) {
+        this(buffer, offset, stripeCount, CURRENT_OWNER);
+    }
+
+    /**
+     * Creates a new instance of SharedStripeLocks over a region of a mapped file.
+     *
+     * @param buffer      mapped file
+     * @param offset      offset of the first lock, a multiple of LOCK_SIZE
+     * @param stripeCount number of stripes
+     * @param owner       owner identifier written to the locks taken
+     */
+    SharedStripeLocks(final MappedByteBuffer buffer, final int offset, final int stripeCount, final long owner) {
+        if (offset % LOCK_SIZE != 0 || buffer.capacity() - offset < requiredBytes(stripeCount)) {
+            throw new IllegalArgumentException("buffer is too small for the locks");
+        }
+        if (owner == 0) {
+            throw new IllegalArgumentException("owner cannot be 0");
+        }
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.stripeCount = stripeCount;
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the number of bytes needed by the locks of a table.
+     *
+     * @param stripeCount number of stripes
+     * @return size in bytes
+     */
+    static long requiredBytes(final int stripeCount) {
+        return (long) stripeCount * LOCK_SIZE;
+    }
+
+    /**
+     * Gets the owner identifier of a process: its process id in the upper 32 bits and the lower 32 bits of its start time
+     * in seconds, so a process that reuses the id of an exited holder is not taken for it.
+     *
+     * @param process process
+     * @return owner identifier, never 0
+     */
+    static long ownerOf(final ProcessHandle process) {
+        return process.pid() << Integer.SIZE | startSeconds(process) & START_TIME_MASK;
+    }
+
+    /**
+     * Acquires the lock of a stripe, spinning while it is held by another thread or process.
+     *
+     * @param stripe stripe index
+     */
+    void lock(final int stripe) {
+        int index = lockOffset(stripe);
+        int spins = 0;
+        while (true) {
+            long current = (long) LONGS.getVolatile(buffer, index);
+            if (current == 0 || ++spins % SPINS_PER_LIVENESS_CHECK == 0 && !isAlive(current)) {
+                if (LONGS.compareAndSet(buffer, index, current, owner)) {
+                    return;
+                }
+            } else if (spins > SPINS_BEFORE_YIELD) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Releases the lock of a stripe acquired with lock.
+     *
+     * @param stripe stripe index
+     */
+    void unlock(final int stripe) {
+        LONGS.setVolatile(buffer, lockOffset(stripe), 0L);
+    }
+
+    /**
+     * Checks if the process holding a lock is still running.
+     *
+     * @param word lock word
+     * @return true if the lock must not be taken over
+     */
+    private static boolean isAlive(final long word) {
+        Optional<ProcessHandle> process = ProcessHandle.of(word >>> Integer.SIZE);
+        if (!process.isPresent() || !process.get().isAlive()) {
+            return false;
+        }
+
+        int holderStart = (int) word;
+        int processStart = (int) startSeconds(process.get());
+        // without a known start time on either side the process has to be taken for the holder
+        return holderStart == 0 || processStart == 0 || Math.abs(processStart - holderStart) <= START_TIME_TOLERANCE_SECONDS;
+    }
+
+    /**
+     * Gets the start time of a process.
+     *
+     * @param process process
+     * @return start time in seconds since the Epoch, 0 if it is not known
+     */
+    private static long startSeconds(final ProcessHandle process) {
+        Optional<Instant> start = process.info().startInstant();
+        return start.isPresent() ? start.get().getEpochSecond() : 0;
+    }
+
+    /**
+     * Gets the offset of the lock of a stripe.
+     *
+     * @param stripe stripe index
+     * @return offset of the lock word in the buffer
+     */
+    private int lockOffset(final int stripe) {
+        if (stripe < 0 || stripe >= stripeCount) {
+            throw new IndexOutOfBoundsException("stripe " + stripe);
+        }
+        return offset + stripe * LOCK_SIZE;
+    }
+}
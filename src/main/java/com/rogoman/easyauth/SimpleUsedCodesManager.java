@@ -30,4 +30,9 @@ public class SimpleUsedCodesManager implements UsedCodesManager<String> {
     public boolean isCodeUsed(final long timestamp, final String code, final String userId) {
         return false; // never reject a code
     }
+
+    @Override
+    public boolean markIfUnused(final long timestamp, final String code, final String userId) {
+        return true; // never reject a code
+    }
 }
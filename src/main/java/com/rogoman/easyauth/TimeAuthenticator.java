@@ -19,8 +19,17 @@ package com.rogoman.easyauth;
 import org.apache.commons.lang.StringUtils;
 
 import java.security.InvalidKeyException;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * An authenticator implementation using time-based tokens.
@@ -37,12 +46,225 @@ public class TimeAuthenticator extends Authenticator {
      */
     public static final int DEFAULT_INTERVAL_IN_SECONDS = 30;
 
-    private static final int CHECK_BACK_INTERVALS = 5;
+    /**
+     * Default number of past intervals whose codes are still accepted.
+     */
+    public static final int DEFAULT_CHECK_BACK_INTERVALS = 5;
+
+    /**
+     * Default number of future intervals whose codes are already accepted.
+     */
+    public static final int DEFAULT_CHECK_FORWARD_INTERVALS = 5;
+
+    private static final long NO_MATCH = Long.MIN_VALUE;
+
+    private static final long NOT_SEARCHED = Long.MAX_VALUE;
+
+    private static final int MIN_BATCH_CHUNK_SIZE = 16;
+
+    private static final int CHUNKS_PER_PROCESSOR = 4;
+
+    private static final int DEFAULT_DRIFT_TOLERANCE = 1;
+
+    /**
+     * Holds the fork-join pool used for batch verification, created on first use.
+     */
+    private static final class BatchPoolHolder {
+        private static final ForkJoinPool POOL = new ForkJoinPool();
 
-    private static final int CHECK_FORWARD_INTERVALS = 5;
+        /**
+         * Private constructor to prevent from instantiating the class.
+         */
+        private BatchPoolHolder() {
+        }
+    }
+
+    /**
+     * A builder of TimeAuthenticator instances. Options that are not set keep the defaults compatible with Google Authenticator.
+     */
+    public static final class Builder {
+        private UsedCodesManager<String> usedCodesManager = new SimpleUsedCodesManager();
+        private int intervalSeconds = DEFAULT_INTERVAL_IN_SECONDS;
+        private int checkBackIntervals = DEFAULT_CHECK_BACK_INTERVALS;
+        private int checkForwardIntervals = DEFAULT_CHECK_FORWARD_INTERVALS;
+        private int windowCodeCacheSize;
+        private DriftStore driftStore;
+        private int driftTolerance = DEFAULT_DRIFT_TOLERANCE;
+        private HmacEngine hmacEngine = HmacEngine.JCA;
+        private HmacAlgorithm hmacAlgorithm = HmacAlgorithm.SHA1;
+        private int codeDigits = DEFAULT_CODE_DIGITS;
+        private AuthenticatorMetrics metrics;
+
+        /**
+         * Creates a new instance of the Builder class. Use TimeAuthenticator.builder() instead.
+         */
+        private Builder() {
+        }
+
+        /**
+         * Sets the used codes manager. A SimpleUsedCodesManager is used by default.
+         *
+         * @param manager used codes manager
+         * @return this builder
+         */
+        public Builder withUsedCodesManager(final UsedCodesManager<String> manager) {
+            this.usedCodesManager = manager;
+            return this;
+        }
+
+        /**
+         * Sets the token generating interval.
+         *
+         * @param seconds token generating interval in seconds
+         * @return this builder
+         */
+        public Builder withIntervalSeconds(final int seconds) {
+            this.intervalSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * Sets the number of past intervals whose codes are still accepted.
+         *
+         * @param intervals number of past intervals
+         * @return this builder
+         */
+        public Builder withCheckBackIntervals(final int intervals) {
+            this.checkBackIntervals = intervals;
+            return this;
+        }
+
+        /**
+         * Sets the number of future intervals whose codes are already accepted.
+         *
+         * @param intervals number of future intervals
+         * @return this builder
+         */
+        public Builder withCheckForwardIntervals(final int intervals) {
+            this.checkForwardIntervals = intervals;
+            return this;
+        }
+
+        /**
+         * Enables caching of the codes of the whole window of accepted intervals for the most recently checked secrets.
+         * Repeated checks for the same secret within an interval, e.g. retries after a mistyped code, then need no HMAC
+         * computation. The cache is disabled by default.
+         *
+         * @param size maximum number of cached secrets, 0 disables the cache
+         * @return this builder
+         */
+        public Builder withWindowCodeCache(final int size) {
+            this.windowCodeCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Enables tracking of the clock drift of users' devices. The intervals around the drift recorded when a code was last
+         * accepted for the user are checked first, and the whole window only if none of them matches, e.g. when the clock
+         * of the device has been corrected. Drift tracking is disabled by default.
+         *
+         * @param store store of the drifts, null disables drift tracking
+         * @return this builder
+         */
+        public Builder withDriftStore(final DriftStore store) {
+            this.driftStore = store;
+            return this;
+        }
+
+        /**
+         * Sets the number of intervals on each side of the recorded drift that are checked first. Defaults to 1.
+         *
+         * @param intervals number of neighbouring intervals
+         * @return this builder
+         */
+        public Builder withDriftTolerance(final int intervals) {
+            this.driftTolerance = intervals;
+            return this;
+        }
+
+        /**
+         * Sets the HMAC implementation used for computing the codes. The JCA implementation is used by default;
+         * the internal one computes a code with half of the SHA-1 compressions and without allocations.
+         *
+         * @param engine HMAC implementation
+         * @return this builder
+         */
+        public Builder withHmacEngine(final HmacEngine engine) {
+            this.hmacEngine = engine;
+            return this;
+        }
+
+        /**
+         * Sets the HMAC algorithm used for computing the codes. SHA1, the only one supported by Google Authenticator,
+         * is used by default.
+         *
+         * @param algorithm HMAC algorithm
+         * @return this builder
+         */
+        public Builder withHmacAlgorithm(final HmacAlgorithm algorithm) {
+            this.hmacAlgorithm = algorithm;
+            return this;
+        }
+
+        /**
+         * Sets the number of digits of a code, 6 to 8. Defaults to 6.
+         *
+         * @param digits number of digits
+         * @return this builder
+         */
+        public Builder withCodeDigits(final int digits) {
+            this.codeDigits = digits;
+            return this;
+        }
+
+        /**
+         * Enables recording of the latencies and outcomes of code generations and checks. Nothing is measured by default.
+         *
+         * @param authenticatorMetrics metrics to record into, null disables the recording
+         * @return this builder
+         */
+        public Builder withMetrics(final AuthenticatorMetrics authenticatorMetrics) {
+            this.metrics = authenticatorMetrics;
+            return this;
+        }
+
+        /**
+         * Creates a new TimeAuthenticator.
+         *
+         * @return new authenticator
+         */
+        public TimeAuthenticator build() {
+            return new TimeAuthenticator(this);
+        }
+    }
 
     private final UsedCodesManager<String> usedCodeManager;
     private final int intervalSeconds;
+    private final int checkBackIntervals;
+    private final int checkForwardIntervals;
+    private final WindowCodeCache windowCodeCache;
+    private final DriftStore driftStore;
+    private final int driftTolerance;
+    private final AuthenticatorMetrics metrics;
+
+    /**
+     * Creates a new instance of the TimeAuthenticator class.
+     * You can pass your own used-codes manager, define a custom interval length and the size of the window of accepted codes.
+     * Google Authenticator reference implementation accepts codes from one interval back and one interval forward.
+     *
+     * @param usedCodesManager      used codes manager
+     * @param intervalSeconds       token generating interval in seconds
+     * @param checkBackIntervals    number of past intervals whose codes are still accepted
+     * @param checkForwardIntervals number of future intervals whose codes are already accepted
+     */
+    public TimeAuthenticator(final UsedCodesManager<String> usedCodesManager, final int intervalSeconds,
+                             final int checkBackIntervals, final int checkForwardIntervals) {
+        this(builder()
+                .withUsedCodesManager(usedCodesManager)
+                .withIntervalSeconds(intervalSeconds)
+                .withCheckBackIntervals(checkBackIntervals)
+                .withCheckForwardIntervals(checkForwardIntervals));
+    }
 
     /**
      * Creates a new instance of the TimeAuthenticator class.
@@ -52,15 +274,7 @@ public class TimeAuthenticator extends Authenticator {
      * @param intervalSeconds  token generating interval in seconds
      */
     public TimeAuthenticator(final UsedCodesManager<String> usedCodesManager, final int intervalSeconds) {
-        if (usedCodesManager == null) {
-            throw new IllegalArgumentException("usedCodesManager cannot be null");
-        }
-        if (intervalSeconds <= 0) {
-            throw new IllegalArgumentException("intervalSeconds parameter has to be positive");
-        }
-
-        this.usedCodeManager = usedCodesManager;
-        this.intervalSeconds = intervalSeconds;
+        this(usedCodesManager, intervalSeconds, DEFAULT_CHECK_BACK_INTERVALS, DEFAULT_CHECK_FORWARD_INTERVALS);
     }
 
     /**
@@ -80,6 +294,52 @@ public class TimeAuthenticator extends Authenticator {
         this(new SimpleUsedCodesManager(), DEFAULT_INTERVAL_IN_SECONDS);
     }
 
+    /**
+     * Creates a new instance of the TimeAuthenticator class configured by a builder.
+     *
+     * @param builder builder holding the configuration
+     */
+    private TimeAuthenticator(final Builder builder) {
+        super(builder.hmacEngine, builder.hmacAlgorithm, builder.codeDigits);
+        if (builder.usedCodesManager == null) {
+            throw new IllegalArgumentException("usedCodesManager cannot be null");
+        }
+        if (builder.intervalSeconds <= 0) {
+            throw new IllegalArgumentException("intervalSeconds parameter has to be positive");
+        }
+        if (builder.checkBackIntervals < 0) {
+            throw new IllegalArgumentException("checkBackIntervals parameter cannot be negative");
+        }
+        if (builder.checkForwardIntervals < 0) {
+            throw new IllegalArgumentException("checkForwardIntervals parameter cannot be negative");
+        }
+        if (builder.windowCodeCacheSize < 0) {
+            throw new IllegalArgumentException("windowCodeCacheSize parameter cannot be negative");
+        }
+        if (builder.driftTolerance < 0) {
+            throw new IllegalArgumentException("driftTolerance parameter cannot be negative");
+        }
+
+        this.usedCodeManager = builder.usedCodesManager;
+        this.intervalSeconds = builder.intervalSeconds;
+        this.checkBackIntervals = builder.checkBackIntervals;
+        this.checkForwardIntervals = builder.checkForwardIntervals;
+        this.windowCodeCache = builder.windowCodeCacheSize > 0 ? new WindowCodeCache(builder.windowCodeCacheSize) : null;
+        this.driftStore = builder.driftStore;
+        this.driftTolerance = builder.driftTolerance;
+        this.metrics = builder.metrics;
+        usedCodeManager.bindIntervalSeconds(intervalSeconds);
+    }
+
+    /**
+     * Creates a builder of a TimeAuthenticator.
+     *
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
     /**
      * Gets a new time-based code. Uses current datetime.
      *
@@ -89,12 +349,21 @@ public class TimeAuthenticator extends Authenticator {
      * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
      */
     @Override
+    @SuppressWarnings("deprecation")
     public String getCode(final String secret) throws AuthenticatorException, InvalidKeyException {
-        if (StringUtils.isEmpty(secret)) {
-            throw new IllegalArgumentException("secret cannot be null");
-        }
-        long interval = getInterval(System.currentTimeMillis() / MILLIS_IN_SECOND);
-        return this.getCodeInternal(secret, interval);
+        return getCode(new PreparedSecret(secret));
+    }
+
+    /**
+     * Gets a new time-based code. Uses current datetime.
+     *
+     * @param secret prepared secret used for generating the code
+     * @return generated code
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public String getCode(final PreparedSecret secret) throws AuthenticatorException, InvalidKeyException {
+        return getCode(secret, System.currentTimeMillis() / MILLIS_IN_SECOND);
     }
 
     /**
@@ -107,11 +376,31 @@ public class TimeAuthenticator extends Authenticator {
      * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
      */
     public String getCode(final String secret, final long currentEpochTimeInSeconds) throws AuthenticatorException, InvalidKeyException {
-        if (StringUtils.isEmpty(secret)) {
+        return getCode(new PreparedSecret(secret), currentEpochTimeInSeconds);
+    }
+
+    /**
+     * Gets a new time-based code.
+     *
+     * @param secret                    prepared secret used for generating the code
+     * @param currentEpochTimeInSeconds current Epoch time in seconds
+     * @return generated code
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public String getCode(final PreparedSecret secret, final long currentEpochTimeInSeconds) throws AuthenticatorException, InvalidKeyException {
+        if (secret == null) {
             throw new IllegalArgumentException("secret cannot be null");
         }
         long interval = getInterval(currentEpochTimeInSeconds);
-        return this.getCodeInternal(secret, interval);
+        if (metrics == null) {
+            return this.getCodeInternal(secret, interval);
+        }
+
+        long start = System.nanoTime();
+        String code = this.getCodeInternal(secret, interval);
+        metrics.recordGeneration(System.nanoTime() - start);
+        return code;
     }
 
     /**
@@ -124,37 +413,432 @@ public class TimeAuthenticator extends Authenticator {
      */
     @Override
     public boolean checkCode(final String secret, final String code, final String userIdentifier) {
-        if (StringUtils.isEmpty(secret)) {
+        return checkCode(new PreparedSecret(secret), code, userIdentifier);
+    }
+
+    /**
+     * Gets a new time-based code as a number. Uses current datetime.
+     *
+     * @param secret prepared secret used for generating the code
+     * @return generated code value
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public int getCodeValue(final PreparedSecret secret) throws AuthenticatorException, InvalidKeyException {
+        return getCodeValue(secret, System.currentTimeMillis() / MILLIS_IN_SECOND);
+    }
+
+    /**
+     * Gets a new code asynchronously using the default executor.
+     *
+     * @param secret secret used for generating the code
+     * @return future completed with the generated code
+     */
+    public CompletableFuture<String> getCodeAsync(final String secret) {
+        return getCodeAsync(new PreparedSecret(secret), getAsyncExecutor());
+    }
+
+    /**
+     * Gets a new code asynchronously using the default executor.
+     *
+     * @param secret prepared secret used for generating the code
+     * @return future completed with the generated code
+     */
+    public CompletableFuture<String> getCodeAsync(final PreparedSecret secret) {
+        return getCodeAsync(secret, getAsyncExecutor());
+    }
+
+    /**
+     * Gets a new code asynchronously. If the code cannot be computed, the returned future completes exceptionally
+     * with the InvalidKeyException or AuthenticatorException as the cause.
+     *
+     * @param secret   prepared secret used for generating the code
+     * @param executor executor used for computing the code
+     * @return future completed with the generated code
+     */
+    public CompletableFuture<String> getCodeAsync(final PreparedSecret secret, final Executor executor) {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getCode(secret);
+            } catch (final AuthenticatorException | InvalidKeyException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Gets a new time-based code as a number.
+     *
+     * @param secret                    prepared secret used for generating the code
+     * @param currentEpochTimeInSeconds current Epoch time in seconds
+     * @return generated code value
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    public int getCodeValue(final PreparedSecret secret, final long currentEpochTimeInSeconds) throws AuthenticatorException, InvalidKeyException {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        long interval = getInterval(currentEpochTimeInSeconds);
+        if (metrics == null) {
+            return this.getCodeValueInternal(secret, interval);
+        }
+
+        long start = System.nanoTime();
+        int codeValue = this.getCodeValueInternal(secret, interval);
+        metrics.recordGeneration(System.nanoTime() - start);
+        return codeValue;
+    }
+
+    /**
+     * Checks if the provided code is valid for given prepared secret and user identifier. Current time is used for verification.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    @Override
+    public boolean checkCode(final PreparedSecret secret, final String code, final String userIdentifier) {
+        if (secret == null) {
             throw new IllegalArgumentException("secret cannot be null");
         }
         if (StringUtils.isEmpty(code)) {
             throw new IllegalArgumentException("code cannot be null");
         }
 
-        Date baseTime = new Date();
+        int codeValue = parseCode(code);
+        if (codeValue == INVALID_CODE) {
+            return false;
+        }
+        return checkCode(secret, codeValue, userIdentifier);
+    }
 
-        // We need to do this in constant time
-        boolean codeMatch = false;
-        for (int i = -CHECK_BACK_INTERVALS; i <= CHECK_FORWARD_INTERVALS; i++) {
-            Calendar calendar = Calendar.getInstance();
-            calendar.setTime(baseTime);
-            calendar.add(Calendar.SECOND, intervalSeconds * i);
+    /**
+     * Checks if the provided numeric code is valid for given secret key and user identifier. Current time is used for verification.
+     *
+     * @param secret         secret used for generating the code
+     * @param code           generated code value
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    public boolean checkCode(final String secret, final int code, final String userIdentifier) {
+        return checkCode(new PreparedSecret(secret), code, userIdentifier);
+    }
 
-            long currentEpochTime = calendar.getTimeInMillis() / MILLIS_IN_SECOND;
-            long currentInterval = getInterval(currentEpochTime);
+    /**
+     * Checks if the provided numeric code is valid for given prepared secret and user identifier. Current time is used for verification.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code value
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted
+     */
+    @Override
+    public boolean checkCode(final PreparedSecret secret, final int code, final String userIdentifier) {
+        return checkCode(secret, code, userIdentifier, System.currentTimeMillis() / MILLIS_IN_SECOND);
+    }
 
-            try {
-                if (stringEquals(getCode(secret, currentEpochTime), code)
-                        && !usedCodeManager.isCodeUsed(currentInterval, code, userIdentifier)) {
-                    codeMatch = true;
-                    usedCodeManager.addCode(currentInterval, code, userIdentifier);
-                    break;
+    /**
+     * Checks if the provided code is valid for the secret of a user kept in a secret store. Current time is used for verification.
+     *
+     * @param secrets        store holding the secret of the user
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted, false also when the store has no secret for the user
+     */
+    public boolean checkCode(final SecretStore secrets, final String code, final String userIdentifier) {
+        if (StringUtils.isEmpty(code)) {
+            throw new IllegalArgumentException("code cannot be null");
+        }
+
+        int codeValue = parseCode(code);
+        if (codeValue == INVALID_CODE) {
+            return false;
+        }
+        return checkCode(secrets, codeValue, userIdentifier);
+    }
+
+    /**
+     * Checks if the provided numeric code is valid for the secret of a user kept in a secret store. Current time is used
+     * for verification.
+     *
+     * @param secrets        store holding the secret of the user
+     * @param code           generated code value
+     * @param userIdentifier user identifier
+     * @return true if the code is valid and should be accepted, false also when the store has no secret for the user
+     */
+    public boolean checkCode(final SecretStore secrets, final int code, final String userIdentifier) {
+        if (secrets == null) {
+            throw new IllegalArgumentException("secrets cannot be null");
+        }
+
+        PreparedSecret secret = secrets.getSecret(userIdentifier);
+        if (secret == null) {
+            return false;
+        }
+        try {
+            return checkCode(secret, code, userIdentifier);
+        } finally {
+            secrets.releaseSecret(secret);
+        }
+    }
+
+    /**
+     * Checks if the provided numeric code is valid for given prepared secret and user identifier.
+     *
+     * @param secret                    prepared secret used for generating the code
+     * @param code                      generated code value
+     * @param userIdentifier            user identifier
+     * @param currentEpochTimeInSeconds current Epoch time in seconds
+     * @return true if the code is valid and should be accepted
+     */
+    public boolean checkCode(final PreparedSecret secret, final int code, final String userIdentifier, final long currentEpochTimeInSeconds) {
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (metrics == null) {
+            return verifyCode(secret, code, userIdentifier, currentEpochTimeInSeconds);
+        }
+
+        long start = System.nanoTime();
+        boolean accepted = verifyCode(secret, code, userIdentifier, currentEpochTimeInSeconds);
+        metrics.recordCheck(System.nanoTime() - start, accepted);
+        return accepted;
+    }
+
+    /**
+     * Checks if the provided numeric code is valid for given prepared secret and user identifier.
+     *
+     * @param secret                    prepared secret used for generating the code
+     * @param code                      generated code value
+     * @param userIdentifier            user identifier
+     * @param currentEpochTimeInSeconds current Epoch time in seconds
+     * @return true if the code is valid and should be accepted
+     */
+    private boolean verifyCode(final PreparedSecret secret, final int code, final String userIdentifier, final long currentEpochTimeInSeconds) {
+        if (!isValidCodeValue(code)) {
+            return false;
+        }
+
+        long currentInterval = getInterval(currentEpochTimeInSeconds);
+        try {
+            int drift = getRecordedDrift(userIdentifier);
+            long driftInterval = findDriftMatch(secret, code, currentInterval, drift);
+            return acceptCode(secret, code, userIdentifier, currentInterval, drift, driftInterval, NOT_SEARCHED);
+        } catch (final AuthenticatorException | InvalidKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Accepts a code if it matches an interval not used yet. The interval around the drift recorded for the user is tried
+     * first, the rest of the window is searched only if the code cannot be accepted there.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param userIdentifier  user identifier
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @param driftInterval   interval around the recorded drift that matched the code or NO_MATCH
+     * @param windowInterval  first interval of the window that matched the code, NO_MATCH, or NOT_SEARCHED if the window
+     *                        has not been searched yet
+     * @return true if the code is accepted
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private boolean acceptCode(final PreparedSecret secret, final int code, final String userIdentifier, final long currentInterval,
+                               final int drift, final long driftInterval, final long windowInterval)
+            throws AuthenticatorException, InvalidKeyException {
+        long acceptedInterval;
+        if (driftInterval != NO_MATCH && usedCodeManager.markIfUnused(driftInterval, formatCode(code), userIdentifier)) {
+            acceptedInterval = driftInterval;
+        } else {
+            long lastInterval = currentInterval + checkForwardIntervals;
+            long matchedInterval;
+            if (windowInterval != NOT_SEARCHED) {
+                matchedInterval = windowInterval;
+            } else if (driftInterval == NO_MATCH) {
+                matchedInterval = findWindowMatch(secret, code, currentInterval, drift);
+            } else {
+                matchedInterval = findMatchingInterval(secret, code, currentInterval - checkBackIntervals, lastInterval);
+            }
+            acceptedInterval = acceptMatch(secret, code, userIdentifier, matchedInterval, lastInterval);
+        }
+
+        recordDrift(userIdentifier, acceptedInterval, currentInterval);
+        recordMatchedOffset(acceptedInterval, currentInterval);
+        return acceptedInterval != NO_MATCH;
+    }
+
+    /**
+     * Checks asynchronously if the provided code is valid for given prepared secret and user identifier. Current time is used
+     * for verification. If the used codes manager implements AsyncUsedCodesManager, its non-blocking methods are used,
+     * so no executor thread waits for the used codes store; the code is accepted the same way as by checkCode, including the
+     * recorded drift and the metrics.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           generated code
+     * @param userIdentifier user identifier
+     * @param executor       executor used for computing the codes
+     * @return future completed with true if the code is valid and should be accepted
+     */
+    @Override
+    public CompletableFuture<Boolean> checkCodeAsync(final PreparedSecret secret, final String code, final String userIdentifier,
+                                                     final Executor executor) {
+        if (!(usedCodeManager instanceof AsyncUsedCodesManager)) {
+            return super.checkCodeAsync(secret, code, userIdentifier, executor);
+        }
+        if (secret == null) {
+            throw new IllegalArgumentException("secret cannot be null");
+        }
+        if (StringUtils.isEmpty(code)) {
+            throw new IllegalArgumentException("code cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+
+        final int codeValue = parseCode(code);
+        if (!isValidCodeValue(codeValue)) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        final long start = metrics != null ? System.nanoTime() : 0L;
+        final long currentInterval = getInterval(System.currentTimeMillis() / MILLIS_IN_SECOND);
+        CompletableFuture<Boolean> result = CompletableFuture
+                .supplyAsync(() -> getRecordedDrift(userIdentifier), executor)
+                .thenCompose(drift -> acceptCodeAsync(secret, codeValue, userIdentifier, currentInterval, drift, executor));
+        if (metrics == null) {
+            return result;
+        }
+        return result.whenComplete((accepted, error) -> {
+            if (error == null) {
+                metrics.recordCheck(System.nanoTime() - start, accepted);
+            }
+        });
+    }
+
+    /**
+     * Checks a batch of codes. Current time is used for verification. The codes are computed in parallel on a shared
+     * fork-join pool, while the used codes are recorded in the order of the passed requests, so if the same code
+     * is passed twice for the same user, only the first one is accepted. Each code is checked the same way as by checkCode,
+     * including the recorded drift and the metrics.
+     *
+     * @param requests codes to check
+     * @return verification results in the iteration order of the passed requests
+     * @exception com.rogoman.easyauth.AuthenticatorException if the verification was interrupted or failed unexpectedly
+     */
+    public boolean[] checkCodes(final Collection<CodeCheckRequest> requests) throws AuthenticatorException {
+        return checkCodes(requests, BatchPoolHolder.POOL);
+    }
+
+    /**
+     * Checks a batch of codes using the passed executor for computing the codes. Current time is used for verification.
+     * The used codes are recorded in the order of the passed requests, so if the same code is passed twice for the same user,
+     * only the first one is accepted.
+     *
+     * @param requests codes to check
+     * @param executor executor used for computing the codes
+     * @return verification results in the iteration order of the passed requests
+     * @exception com.rogoman.easyauth.AuthenticatorException if the verification was interrupted or failed unexpectedly
+     */
+    public boolean[] checkCodes(final Collection<CodeCheckRequest> requests, final ExecutorService executor) throws AuthenticatorException {
+        if (requests == null) {
+            throw new IllegalArgumentException("requests cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+
+        final CodeCheckRequest[] batch = requests.toArray(new CodeCheckRequest[requests.size()]);
+        final int[] codes = new int[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            if (batch[i] == null) {
+                throw new IllegalArgumentException("requests cannot contain null elements");
+            }
+            codes[i] = parseCode(batch[i].getCode());
+        }
+
+        final long currentInterval = getInterval(System.currentTimeMillis() / MILLIS_IN_SECOND);
+        final long firstInterval = currentInterval - checkBackIntervals;
+        final long lastInterval = currentInterval + checkForwardIntervals;
+
+        // The HMAC computations do not depend on each other, so they are done in parallel. The window is searched
+        // only for the codes that do not match the intervals around the recorded drift, skipping those intervals.
+        final int[] drifts = new int[batch.length];
+        final long[] driftIntervals = new long[batch.length];
+        final long[] windowIntervals = new long[batch.length];
+        final long[] checkNanos = new long[batch.length];
+        int chunkSize = Math.max(MIN_BATCH_CHUNK_SIZE, batch.length / (Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < batch.length; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, batch.length);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        long start = metrics != null ? System.nanoTime() : 0L;
+                        drifts[i] = DriftStore.UNKNOWN_DRIFT;
+                        driftIntervals[i] = NO_MATCH;
+                        windowIntervals[i] = NO_MATCH;
+                        if (isValidCodeValue(codes[i])) {
+                            try {
+                                PreparedSecret secret = batch[i].getSecret();
+                                drifts[i] = getRecordedDrift(batch[i].getUserIdentifier());
+                                driftIntervals[i] = findDriftMatch(secret, codes[i], currentInterval, drifts[i]);
+                                windowIntervals[i] = driftIntervals[i] != NO_MATCH
+                                        ? NOT_SEARCHED
+                                        : findWindowMatch(secret, codes[i], currentInterval, drifts[i]);
+                            } catch (final AuthenticatorException | InvalidKeyException e) {
+                                driftIntervals[i] = NO_MATCH;
+                                windowIntervals[i] = NO_MATCH;
+                            }
+                        }
+                        if (metrics != null) {
+                            checkNanos[i] = System.nanoTime() - start;
+                        }
+                    }
+                    return null;
                 }
+            });
+        }
+
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticatorException("Batch code verification was interrupted.", e);
+        } catch (final ExecutionException e) {
+            throw new AuthenticatorException("Batch code verification failed.", e.getCause());
+        }
+
+        // The used codes have to be checked and recorded sequentially to keep the results deterministic
+        boolean[] results = new boolean[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            long start = metrics != null ? System.nanoTime() : 0L;
+            try {
+                results[i] = isValidCodeValue(codes[i])
+                        && acceptCode(batch[i].getSecret(), codes[i], batch[i].getUserIdentifier(), currentInterval, drifts[i],
+                        driftIntervals[i], windowIntervals[i]);
             } catch (final AuthenticatorException | InvalidKeyException e) {
-                return false;
+                results[i] = false;
+            }
+            if (metrics != null) {
+                metrics.recordCheck(checkNanos[i] + System.nanoTime() - start, results[i]);
             }
         }
-        return codeMatch;
+        return results;
     }
 
     protected UsedCodesManager<String> getUsedCodeManager() {
@@ -165,6 +849,411 @@ public class TimeAuthenticator extends Authenticator {
         return intervalSeconds;
     }
 
+    protected int getCheckBackIntervals() {
+        return checkBackIntervals;
+    }
+
+    protected int getCheckForwardIntervals() {
+        return checkForwardIntervals;
+    }
+
+    /**
+     * Finds the first interval within the passed range, ending with the last interval of the window, for which the secret produces
+     * the passed code.
+     *
+     * @param secret        prepared secret used for generating the code
+     * @param code          code value to look for
+     * @param firstInterval first interval to check
+     * @param lastInterval  last interval to check
+     * @return matching interval or NO_MATCH if the code does not match any interval
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private long findMatchingInterval(final PreparedSecret secret, final int code, final long firstInterval, final long lastInterval)
+            throws AuthenticatorException, InvalidKeyException {
+        return findMatchingInterval(secret, code, firstInterval, lastInterval, lastInterval);
+    }
+
+    /**
+     * Finds the first interval within the passed part of the window for which the secret produces the passed code.
+     *
+     * @param secret         prepared secret used for generating the code
+     * @param code           code value to look for
+     * @param firstInterval  first interval to check
+     * @param lastInterval   last interval to check
+     * @param windowInterval last interval of the accepted window
+     * @return matching interval or NO_MATCH if the code does not match any interval
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private long findMatchingInterval(final PreparedSecret secret, final int code, final long firstInterval, final long lastInterval,
+                                      final long windowInterval) throws AuthenticatorException, InvalidKeyException {
+        if (windowCodeCache != null) {
+            long windowStart = windowInterval - checkBackIntervals - checkForwardIntervals;
+            int[] windowCodes = getWindowCodes(secret, windowStart);
+            for (long interval = firstInterval; interval <= lastInterval; interval++) {
+                if (intEquals(windowCodes[(int) (interval - windowStart)], code)) {
+                    return interval;
+                }
+            }
+            return NO_MATCH;
+        }
+
+        for (long interval = firstInterval; interval <= lastInterval; interval++) {
+            if (intEquals(getCodeValueInternal(secret, interval), code)) {
+                recordCheckHmacs(interval - firstInterval + 1);
+                return interval;
+            }
+        }
+        recordCheckHmacs(lastInterval - firstInterval + 1);
+        return NO_MATCH;
+    }
+
+    /**
+     * Records the number of HMACs computed while checking a code if metrics are enabled.
+     *
+     * @param count number of HMACs
+     */
+    private void recordCheckHmacs(final long count) {
+        if (metrics != null) {
+            metrics.recordCheckHmacs((int) count);
+        }
+    }
+
+    /**
+     * Gets the codes of the whole window of accepted intervals from the cache, computing them on a miss.
+     *
+     * @param secret      prepared secret used for generating the codes
+     * @param windowStart first interval of the window
+     * @return codes of the consecutive intervals of the window
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private int[] getWindowCodes(final PreparedSecret secret, final long windowStart) throws AuthenticatorException, InvalidKeyException {
+        int[] codes = windowCodeCache.get(secret, windowStart);
+        if (codes == null) {
+            codes = new int[checkBackIntervals + checkForwardIntervals + 1];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = getCodeValueInternal(secret, windowStart + i);
+            }
+            recordCheckHmacs(codes.length);
+            windowCodeCache.put(secret, windowStart, codes);
+        }
+        return codes;
+    }
+
+    /**
+     * Accepts a matched code unless it has already been used, marking it as used in a single call of the used codes manager.
+     * If it has been used, the rest of the window is searched for another interval producing the same code.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param userIdentifier  user identifier
+     * @param matchedInterval interval that matched the code or NO_MATCH
+     * @param lastInterval    last interval of the accepted window
+     * @return accepted interval or NO_MATCH if the code is not accepted
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private long acceptMatch(final PreparedSecret secret, final int code, final String userIdentifier, final long matchedInterval,
+                             final long lastInterval) throws AuthenticatorException, InvalidKeyException {
+        long interval = matchedInterval;
+        while (interval != NO_MATCH) {
+            String codeString = formatCode(code);
+            if (usedCodeManager.markIfUnused(interval, codeString, userIdentifier)) {
+                return interval;
+            }
+            interval = interval < lastInterval ? findMatchingInterval(secret, code, interval + 1, lastInterval) : NO_MATCH;
+        }
+        if (metrics != null && matchedInterval != NO_MATCH) {
+            metrics.recordReplayRejection();
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Gets the drift recorded for the user.
+     *
+     * @param userIdentifier user identifier
+     * @return drift in intervals or UNKNOWN_DRIFT if drift tracking is disabled or no drift is recorded
+     */
+    private int getRecordedDrift(final String userIdentifier) {
+        if (driftStore == null || userIdentifier == null) {
+            return DriftStore.UNKNOWN_DRIFT;
+        }
+        return driftStore.getDrift(userIdentifier);
+    }
+
+    /**
+     * Finds the interval around the recorded drift for which the secret produces the passed code, so that the whole window
+     * does not have to be searched for a device whose drift is known. The interval of the recorded drift is checked first,
+     * then the intervals next to it, nearest first, so a device keeping its drift costs a single code computation.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @return matching interval or NO_MATCH if no drift is recorded or none of the intervals match
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private long findDriftMatch(final PreparedSecret secret, final int code, final long currentInterval, final int drift)
+            throws AuthenticatorException, InvalidKeyException {
+        if (drift == DriftStore.UNKNOWN_DRIFT) {
+            return NO_MATCH;
+        }
+
+        long lastInterval = currentInterval + checkForwardIntervals;
+        long from = getDriftRangeStart(currentInterval, drift);
+        long to = getDriftRangeEnd(currentInterval, drift);
+        long driftInterval = currentInterval + drift;
+        for (long distance = 0; distance <= driftTolerance && (driftInterval - distance >= from || driftInterval + distance <= to); distance++) {
+            long below = driftInterval - distance;
+            if (below >= from && below <= to && findMatchingInterval(secret, code, below, below, lastInterval) != NO_MATCH) {
+                return below;
+            }
+            long above = driftInterval + distance;
+            if (distance > 0 && above >= from && above <= to && findMatchingInterval(secret, code, above, above, lastInterval) != NO_MATCH) {
+                return above;
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Finds the first interval of the window for which the secret produces the passed code, skipping the intervals around
+     * the recorded drift, already checked by findDriftMatch.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @return matching interval or NO_MATCH if the code does not match any interval
+     * @exception java.security.InvalidKeyException if the secret passed has an invalid format
+     * @exception com.rogoman.easyauth.AuthenticatorException if there is another problem in computing the code value
+     */
+    private long findWindowMatch(final PreparedSecret secret, final int code, final long currentInterval, final int drift)
+            throws AuthenticatorException, InvalidKeyException {
+        long firstInterval = currentInterval - checkBackIntervals;
+        long lastInterval = currentInterval + checkForwardIntervals;
+        if (drift == DriftStore.UNKNOWN_DRIFT) {
+            return findMatchingInterval(secret, code, firstInterval, lastInterval);
+        }
+
+        long from = getDriftRangeStart(currentInterval, drift);
+        long to = getDriftRangeEnd(currentInterval, drift);
+        if (from > to) {
+            return findMatchingInterval(secret, code, firstInterval, lastInterval);
+        }
+        long interval = from > firstInterval ? findMatchingInterval(secret, code, firstInterval, from - 1, lastInterval) : NO_MATCH;
+        if (interval == NO_MATCH && to < lastInterval) {
+            interval = findMatchingInterval(secret, code, to + 1, lastInterval, lastInterval);
+        }
+        return interval;
+    }
+
+    /**
+     * Gets the first interval of the window within the drift tolerance of the recorded drift.
+     *
+     * @param currentInterval current interval
+     * @param drift           recorded drift
+     * @return first interval around the drift
+     */
+    private long getDriftRangeStart(final long currentInterval, final int drift) {
+        return Math.max(currentInterval - checkBackIntervals, currentInterval + drift - driftTolerance);
+    }
+
+    /**
+     * Gets the last interval of the window within the drift tolerance of the recorded drift.
+     *
+     * @param currentInterval current interval
+     * @param drift           recorded drift
+     * @return last interval around the drift, lower than the first one if the drift is outside of the window
+     */
+    private long getDriftRangeEnd(final long currentInterval, final int drift) {
+        return Math.min(currentInterval + checkForwardIntervals, currentInterval + drift + driftTolerance);
+    }
+
+    /**
+     * Stores the drift of the user's device if drift tracking is enabled and the drift has changed.
+     *
+     * @param userIdentifier   user identifier
+     * @param acceptedInterval accepted interval or NO_MATCH
+     * @param currentInterval  current interval
+     */
+    private void recordDrift(final String userIdentifier, final long acceptedInterval, final long currentInterval) {
+        if (driftStore == null || userIdentifier == null || acceptedInterval == NO_MATCH) {
+            return;
+        }
+
+        int drift = (int) (acceptedInterval - currentInterval);
+        if (driftStore.getDrift(userIdentifier) != drift) {
+            driftStore.setDrift(userIdentifier, drift);
+        }
+    }
+
+    /**
+     * Records the offset of an accepted interval from the current interval if metrics are enabled.
+     *
+     * @param acceptedInterval accepted interval or NO_MATCH
+     * @param currentInterval  current interval
+     */
+    private void recordMatchedOffset(final long acceptedInterval, final long currentInterval) {
+        if (metrics != null && acceptedInterval != NO_MATCH) {
+            metrics.recordMatchedOffset(acceptedInterval - currentInterval);
+        }
+    }
+
+    /**
+     * Finds the first interval within the passed range for which the secret produces the passed code.
+     * Problems with computing the code are treated as no match.
+     *
+     * @param secret        prepared secret used for generating the code
+     * @param code          code value to look for
+     * @param firstInterval first interval to check
+     * @param lastInterval  last interval to check
+     * @return matching interval or NO_MATCH if the code does not match any interval
+     */
+    private long findMatchingIntervalOrNoMatch(final PreparedSecret secret, final int code, final long firstInterval, final long lastInterval) {
+        try {
+            return findMatchingInterval(secret, code, firstInterval, lastInterval);
+        } catch (final AuthenticatorException | InvalidKeyException e) {
+            return NO_MATCH;
+        }
+    }
+
+    /**
+     * Finds the interval around the recorded drift for which the secret produces the passed code, like findDriftMatch.
+     * Problems with computing the code are treated as no match.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @return matching interval or NO_MATCH
+     */
+    private long findDriftMatchOrNoMatch(final PreparedSecret secret, final int code, final long currentInterval, final int drift) {
+        try {
+            return findDriftMatch(secret, code, currentInterval, drift);
+        } catch (final AuthenticatorException | InvalidKeyException e) {
+            return NO_MATCH;
+        }
+    }
+
+    /**
+     * Finds the first interval of the window outside of the drift range for which the secret produces the passed code,
+     * like findWindowMatch. Problems with computing the code are treated as no match.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @return matching interval or NO_MATCH
+     */
+    private long findWindowMatchOrNoMatch(final PreparedSecret secret, final int code, final long currentInterval, final int drift) {
+        try {
+            return findWindowMatch(secret, code, currentInterval, drift);
+        } catch (final AuthenticatorException | InvalidKeyException e) {
+            return NO_MATCH;
+        }
+    }
+
+    /**
+     * Accepts a code like acceptCode, using the non-blocking methods of the used codes manager.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param userIdentifier  user identifier
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @param executor        executor used for computing the codes
+     * @return future completed with true if the code is accepted
+     */
+    private CompletableFuture<Boolean> acceptCodeAsync(final PreparedSecret secret, final int code, final String userIdentifier,
+                                                       final long currentInterval, final int drift, final Executor executor) {
+        CompletableFuture<Long> driftMatch = drift == DriftStore.UNKNOWN_DRIFT
+                ? CompletableFuture.completedFuture(NO_MATCH)
+                : CompletableFuture.supplyAsync(() -> findDriftMatchOrNoMatch(secret, code, currentInterval, drift), executor);
+        return driftMatch.thenCompose(driftInterval -> acceptDriftMatchAsync(secret, code, userIdentifier, currentInterval, drift, driftInterval,
+                executor));
+    }
+
+    /**
+     * Accepts a code matching the interval around the recorded drift, or searches the rest of the window for it, using
+     * the non-blocking methods of the used codes manager.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param userIdentifier  user identifier
+     * @param currentInterval current interval
+     * @param drift           drift recorded for the user or UNKNOWN_DRIFT
+     * @param driftInterval   interval around the recorded drift that matched the code or NO_MATCH
+     * @param executor        executor used for computing the codes
+     * @return future completed with true if the code is accepted
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Boolean> acceptDriftMatchAsync(final PreparedSecret secret, final int code, final String userIdentifier,
+                                                             final long currentInterval, final int drift, final long driftInterval,
+                                                             final Executor executor) {
+        final AsyncUsedCodesManager<String> asyncManager = (AsyncUsedCodesManager<String>) usedCodeManager;
+        final long lastInterval = currentInterval + checkForwardIntervals;
+        CompletableFuture<Boolean> driftMarked = driftInterval == NO_MATCH
+                ? CompletableFuture.completedFuture(false)
+                : asyncManager.markIfUnusedAsync(driftInterval, formatCode(code), userIdentifier);
+        return driftMarked.thenCompose(marked -> {
+            if (marked) {
+                return CompletableFuture.completedFuture(driftInterval);
+            }
+            return CompletableFuture
+                    .supplyAsync(() -> driftInterval == NO_MATCH
+                            ? findWindowMatchOrNoMatch(secret, code, currentInterval, drift)
+                            : findMatchingIntervalOrNoMatch(secret, code, currentInterval - checkBackIntervals, lastInterval), executor)
+                    .thenCompose(interval -> acceptMatchAsync(secret, code, userIdentifier, interval, interval, lastInterval, executor));
+        }).thenApply(acceptedInterval -> {
+            recordDrift(userIdentifier, acceptedInterval, currentInterval);
+            recordMatchedOffset(acceptedInterval, currentInterval);
+            return acceptedInterval != NO_MATCH;
+        });
+    }
+
+    /**
+     * Accepts a matched code unless it has already been used, like acceptMatch, using the non-blocking methods of the used
+     * codes manager. If the code has been used, the rest of the window is searched for another interval producing the same code.
+     *
+     * @param secret          prepared secret used for generating the code
+     * @param code            code value
+     * @param userIdentifier  user identifier
+     * @param firstMatch      first interval that matched the code or NO_MATCH
+     * @param matchedInterval interval that matched the code or NO_MATCH
+     * @param lastInterval    last interval of the accepted window
+     * @param executor        executor used for computing the codes
+     * @return future completed with the accepted interval or NO_MATCH if the code is not accepted
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Long> acceptMatchAsync(final PreparedSecret secret, final int code, final String userIdentifier,
+                                                     final long firstMatch, final long matchedInterval, final long lastInterval,
+                                                     final Executor executor) {
+        if (matchedInterval == NO_MATCH) {
+            if (metrics != null && firstMatch != NO_MATCH) {
+                metrics.recordReplayRejection();
+            }
+            return CompletableFuture.completedFuture(NO_MATCH);
+        }
+
+        final AsyncUsedCodesManager<String> asyncManager = (AsyncUsedCodesManager<String>) usedCodeManager;
+        final String codeString = formatCode(code);
+        return asyncManager.markIfUnusedAsync(matchedInterval, codeString, userIdentifier).thenCompose(marked -> {
+            if (marked) {
+                return CompletableFuture.completedFuture(matchedInterval);
+            }
+            if (matchedInterval >= lastInterval) {
+                return acceptMatchAsync(secret, code, userIdentifier, firstMatch, NO_MATCH, lastInterval, executor);
+            }
+            return CompletableFuture.supplyAsync(() -> findMatchingIntervalOrNoMatch(secret, code, matchedInterval + 1, lastInterval), executor)
+                    .thenCompose(interval -> acceptMatchAsync(secret, code, userIdentifier, firstMatch, interval, lastInterval, executor));
+        });
+    }
+
     /**
      * Gets an interval from a given Epoch time in seconds.
      *
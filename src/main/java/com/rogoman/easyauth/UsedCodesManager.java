@@ -41,4 +41,36 @@ public interface UsedCodesManager<T> {
      * @return true if the code has already been used for this user
      */
     boolean isCodeUsed(long timestamp, String code, T userId);
+
+    /**
+     * Tells the manager the interval length of the TimeAuthenticator it is passed to, so the timestamps (interval numbers)
+     * can be converted to time, e.g. to find the intervals whose codes have expired. The TimeAuthenticator calls it when it
+     * is created. The default implementation does nothing.
+     *
+     * @param intervalSeconds interval length in seconds used by the authenticator
+     * @throws java.lang.IllegalArgumentException thrown when the manager is used with another interval length
+     */
+    default void bindIntervalSeconds(final int intervalSeconds) {
+    }
+
+    /**
+     * Atomically adds a challenge usage to the cache unless the code has already been used.
+     * The default implementation calls isCodeUsed and addCode while holding the lock of the manager instance, which only
+     * protects against concurrent calls of this method within a single JVM. Implementations backed by a concurrent
+     * or remote store should override it with a single atomic operation of the store.
+     *
+     * @param timestamp Used timestamp
+     * @param code      Used code
+     * @param userId    The user identifier
+     * @return true if the code has been marked as used by this call, false if it had already been used for this user
+     */
+    default boolean markIfUnused(final long timestamp, final String code, final T userId) {
+        synchronized (this) {
+            if (isCodeUsed(timestamp, code, userId)) {
+                return false;
+            }
+            addCode(timestamp, code, userId);
+            return true;
+        }
+    }
 }
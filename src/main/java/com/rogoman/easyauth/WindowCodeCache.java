@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of the codes of the whole window of accepted intervals, computed for a secret.
+ * The cache is a fixed-size array indexed by the hash of the secret, so an entry is replaced when another secret lands
+ * in the same slot or when the window moves on to the next interval. Lookups and updates do not take any lock.
+ */
+final class WindowCodeCache {
+
+    /**
+     * Codes of a window computed for a secret.
+     */
+    private static final class Entry {
+        private final PreparedSecret secret;
+        private final long firstInterval;
+        private final int[] codes;
+
+        /**
+         * Creates a new instance of Entry.
+         *
+         * @param secret        prepared secret the codes were computed for
+         * @param firstInterval first interval of the window
+         * @param codes         codes of the consecutive intervals of the window
+         */
+        Entry(final PreparedSecret secret, final long firstInterval, final int[] codes) {
+            this.secret = secret;
+            this.firstInterval = firstInterval;
+            this.codes = codes;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    /**
+     * Creates a new instance of WindowCodeCache.
+     *
+     * @param size maximum number of cached secrets, rounded up to a power of two
+     */
+    WindowCodeCache(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size parameter has to be positive");
+        }
+
+        int slots = size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        this.entries = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Gets the cached codes of a window.
+     *
+     * @param secret        prepared secret
+     * @param firstInterval first interval of the window
+     * @return codes of the consecutive intervals of the window or null if they are not cached; the array must not be modified
+     */
+    int[] get(final PreparedSecret secret, final long firstInterval) {
+        int slot = slotOf(secret);
+        Entry entry = entries.get(slot);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.secret.isDestroyed()) {
+            // the codes of a destroyed secret must not be served any more, and the secret should not be kept reachable
+            entries.compareAndSet(slot, entry, null);
+            return null;
+        }
+        if (entry.firstInterval == firstInterval && entry.secret.equals(secret)) {
+            return entry.codes;
+        }
+        return null;
+    }
+
+    /**
+     * Caches the codes of a window, replacing the entry previously held in the slot of the secret.
+     *
+     * @param secret        prepared secret
+     * @param firstInterval first interval of the window
+     * @param codes         codes of the consecutive intervals of the window
+     */
+    void put(final PreparedSecret secret, final long firstInterval, final int[] codes) {
+        entries.set(slotOf(secret), new Entry(secret, firstInterval, codes));
+    }
+
+    /**
+     * Gets the slot of a secret.
+     *
+     * @param secret prepared secret
+     * @return slot index
+     */
+    private int slotOf(final PreparedSecret secret) {
+        int hash = secret.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
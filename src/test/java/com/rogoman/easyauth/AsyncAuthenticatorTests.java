@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncAuthenticatorTests {
+
+    private static class AsyncUsedCodesManagerImpl implements UsedCodesManager<String>, AsyncUsedCodesManager<String> {
+
+        private final Set<String> usedCodes = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger asyncCalls = new AtomicInteger();
+
+        @Override
+        public void addCode(long timestamp, String code, String userId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isCodeUsed(long timestamp, String code, String userId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> addCodeAsync(long timestamp, String code, String userId) {
+            asyncCalls.incrementAndGet();
+            return CompletableFuture.runAsync(() -> usedCodes.add(timestamp + ":" + code + ":" + userId));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> isCodeUsedAsync(long timestamp, String code, String userId) {
+            asyncCalls.incrementAndGet();
+            return CompletableFuture.supplyAsync(() -> usedCodes.contains(timestamp + ":" + code + ":" + userId));
+        }
+    }
+
+    @Test
+    public void getCodeAsyncTest() throws Exception {
+        TimeAuthenticator target = new TimeAuthenticator();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+
+        String code = target.getCodeAsync(secret).get();
+        Assert.assertEquals(target.getCode(secret), code);
+    }
+
+    @Test
+    public void checkCodeAsyncSyncManagerTest() throws Exception {
+        TimeAuthenticator target = new TimeAuthenticator(new InMemoryUsedCodesManager());
+        String secret = Authenticator.generateKey();
+        String code = target.getCode(secret);
+
+        Assert.assertTrue(target.checkCodeAsync(secret, code, "userIdentifier").get());
+        Assert.assertFalse(target.checkCodeAsync(secret, code, "userIdentifier").get());
+    }
+
+    @Test
+    public void checkCodeAsyncAsyncManagerTest() throws Exception {
+        AsyncUsedCodesManagerImpl manager = new AsyncUsedCodesManagerImpl();
+        TimeAuthenticator target = new TimeAuthenticator(manager);
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        String code = target.getCode(secret);
+
+        Assert.assertTrue(target.checkCodeAsync(secret, code, "userIdentifier").get());
+        Assert.assertFalse(target.checkCodeAsync(secret, code, "userIdentifier").get());
+        Assert.assertTrue(target.checkCodeAsync(secret, code, "anotherUserIdentifier").get());
+        Assert.assertFalse(target.checkCodeAsync(secret, "abcdef", "userIdentifier").get());
+        Assert.assertTrue(manager.asyncCalls.get() > 0);
+    }
+
+    @Test
+    public void checkCodeAsyncDriftAndMetricsTest() throws Exception {
+        InMemoryDriftStore driftStore = new InMemoryDriftStore();
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new AsyncUsedCodesManagerImpl())
+                .withDriftStore(driftStore)
+                .withMetrics(metrics)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        String code = target.getCode(secret, System.currentTimeMillis() / TimeAuthenticator.MILLIS_IN_SECOND
+                - 2 * TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+
+        Assert.assertTrue(target.checkCodeAsync(secret, code, "userIdentifier").get());
+        // the interval may roll over between generating and checking the code
+        int drift = driftStore.getDrift("userIdentifier");
+        Assert.assertTrue(drift == -2 || drift == -3);
+        Assert.assertFalse(target.checkCodeAsync(secret, code, "userIdentifier").get());
+
+        AuthenticatorMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(2, snapshot.getCheckLatency().getCount());
+        Assert.assertEquals(1, snapshot.getAcceptedCodes());
+        Assert.assertEquals(1, snapshot.getRejectedCodes());
+        Assert.assertEquals(1, snapshot.getReplayRejections());
+        Assert.assertEquals(Long.valueOf(1), snapshot.getMatchedOffsets().get(drift));
+    }
+
+    @Test
+    public void checkCodeAsyncWrongCodeTest() throws InterruptedException, ExecutionException, AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = new TimeAuthenticator(new AsyncUsedCodesManagerImpl());
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        String code = target.getCode(secret, System.currentTimeMillis() / TimeAuthenticator.MILLIS_IN_SECOND - 3600);
+
+        Assert.assertFalse(target.checkCodeAsync(secret, code, "userIdentifier").get());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+public class AuthenticatorMetricsTests {
+    private static final String SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+
+    private static final long TIME = 1111111109L;
+
+    @Test
+    public void checkMetricsTest() throws AuthenticatorException, InvalidKeyException {
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        TimeAuthenticator authenticator = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withMetrics(metrics)
+                .build();
+        PreparedSecret secret = new PreparedSecret(SECRET);
+
+        int code = authenticator.getCodeValue(secret, TIME);
+        Assert.assertTrue(authenticator.checkCode(secret, code, "userId", TIME));
+        Assert.assertFalse(authenticator.checkCode(secret, code, "userId", TIME));
+        int aheadCode = authenticator.getCodeValue(secret, TIME + 2 * TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+        Assert.assertTrue(authenticator.checkCode(secret, aheadCode, "userId", TIME));
+
+        AuthenticatorMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(2, snapshot.getGenerationLatency().getCount());
+        Assert.assertEquals(3, snapshot.getCheckLatency().getCount());
+        Assert.assertEquals(2, snapshot.getAcceptedCodes());
+        Assert.assertEquals(1, snapshot.getRejectedCodes());
+        Assert.assertEquals(1, snapshot.getReplayRejections());
+        // 6 intervals up to the current one, the same 6 and the 5 following ones for the replay, then 8 up to 2 ahead
+        Assert.assertEquals(25, snapshot.getCheckHmacs());
+        Assert.assertEquals(Long.valueOf(1), snapshot.getMatchedOffsets().get(0));
+        Assert.assertEquals(Long.valueOf(1), snapshot.getMatchedOffsets().get(2));
+        Assert.assertEquals(2, snapshot.getMatchedOffsets().size());
+        Assert.assertTrue(snapshot.getCheckLatency().getMaxNanos() > 0);
+    }
+
+    @Test
+    public void batchCheckMetricsTest() throws AuthenticatorException, InvalidKeyException {
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        TimeAuthenticator authenticator = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withMetrics(metrics)
+                .build();
+        PreparedSecret secret = new PreparedSecret(SECRET);
+        String code = authenticator.getCode(secret);
+
+        boolean[] results = authenticator.checkCodes(Arrays.asList(
+                new CodeCheckRequest(secret, code, "userId"),
+                new CodeCheckRequest(secret, code, "userId"),
+                new CodeCheckRequest(secret, "abcdef", "userId")));
+
+        Assert.assertTrue(Arrays.equals(new boolean[] {true, false, false}, results));
+        AuthenticatorMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(3, snapshot.getCheckLatency().getCount());
+        Assert.assertEquals(1, snapshot.getAcceptedCodes());
+        Assert.assertEquals(2, snapshot.getRejectedCodes());
+        Assert.assertEquals(1, snapshot.getReplayRejections());
+        Assert.assertEquals(1, snapshot.getMatchedOffsets().size());
+    }
+
+    @Test
+    public void usedCodesMetricsTest() {
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        InMemoryUsedCodesManager manager = new InMemoryUsedCodesManager(60, 300, 30, metrics);
+        Assert.assertTrue(manager.markIfUnused(1, "123456", "userId"));
+        Assert.assertFalse(manager.markIfUnused(1, "123456", "userId"));
+        manager.addCode(2, "123456", "userId");
+        Assert.assertEquals(2, metrics.getUsedCodeCount());
+
+        manager.close();
+        Assert.assertEquals(0, metrics.getUsedCodeCount());
+    }
+
+    @Test
+    public void histogramTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1000000);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100, snapshot.getCount());
+        Assert.assertEquals(1000000, snapshot.getMaxNanos());
+        Assert.assertEquals((99 * 1000 + 1000000) / 100, snapshot.getMeanNanos());
+        Assert.assertEquals(1023, snapshot.getPercentileNanos(50));
+        Assert.assertEquals(1023, snapshot.getPercentileNanos(99));
+        Assert.assertEquals(1000000, snapshot.getPercentileNanos(100));
+        Assert.assertEquals(0, new LatencyHistogram().snapshot().getPercentileNanos(99));
+    }
+
+    @Test
+    public void jmxTest() throws JMException, AuthenticatorException, InvalidKeyException {
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        TimeAuthenticator authenticator = TimeAuthenticator.builder().withMetrics(metrics).build();
+        authenticator.checkCode(new PreparedSecret(SECRET), 0, "userId", TIME);
+
+        ObjectName name = metrics.register("jmxTest");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(1L, server.getAttribute(name, "CheckedCodeCount"));
+            Assert.assertEquals(11.0, server.getAttribute(name, "HmacsPerCheck"));
+            Assert.assertNotNull(server.getAttribute(name, "MatchedOffsetCounts"));
+        } finally {
+            AuthenticatorMetrics.unregister("jmxTest");
+        }
+    }
+}
@@ -19,6 +19,11 @@ package com.rogoman.easyauth;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 public class Base32EncodingTests {
     @Test
     public void toBytesEmptyInputTest() {
@@ -72,4 +77,94 @@ public class Base32EncodingTests {
         String result = Base32Encoding.toString(input);
         Assert.assertEquals("KNXW2ZJANFXHA5LU", result);
     }
+
+    @Test
+    public void toStringRangeTest() throws Exception {
+        byte[] input = "xxSome inputxx".getBytes("UTF-8");
+        Assert.assertEquals("KNXW2ZJANFXHA5LU", Base32Encoding.toString(input, 2, 10));
+        Assert.assertEquals("KNXQ====", Base32Encoding.toString(input, 2, 2));
+        Assert.assertEquals("777777Y=", Base32Encoding.toString(new byte[] {-1, -1, -1, -1}));
+
+        try {
+            Base32Encoding.toString(input, 10, 10);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void roundTripTest() {
+        Random random = new Random(42);
+        for (int length = 1; length <= 64; length++) {
+            byte[] input = new byte[length];
+            random.nextBytes(input);
+            String encoded = Base32Encoding.toString(input);
+
+            Assert.assertEquals(Base32Encoding.encodedLength(length), encoded.length());
+            Assert.assertArrayEquals(input, Base32Encoding.toBytes(encoded));
+            Assert.assertArrayEquals(input, Base32Encoding.toBytes(encoded.toLowerCase()));
+
+            byte[] output = new byte[length + 2];
+            char[] chars = ("**" + encoded).toCharArray();
+            Assert.assertEquals(length, Base32Encoding.decode(chars, 2, chars.length - 2, output, 2));
+            Assert.assertArrayEquals(input, Arrays.copyOfRange(output, 2, length + 2));
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length + 1);
+            buffer.put((byte) 0);
+            Assert.assertEquals(length, Base32Encoding.decode(encoded, buffer));
+            Assert.assertEquals(length + 1, buffer.position());
+            buffer.position(1);
+            byte[] fromBuffer = new byte[length];
+            buffer.get(fromBuffer);
+            Assert.assertArrayEquals(input, fromBuffer);
+        }
+    }
+
+    @Test
+    public void decodeInvalidCharactersTest() {
+        byte[] output = new byte[16];
+        Assert.assertEquals(Base32Encoding.INVALID_INPUT, Base32Encoding.decode("KNXW2ZJANFXHA5L1", output, 0));
+        // the block decoded before the invalid character is cleared
+        Assert.assertArrayEquals(new byte[16], output);
+        Assert.assertEquals(Base32Encoding.INVALID_INPUT, Base32Encoding.decode("KNXW2ZJANFXHA5L1".toCharArray(), 0, 16, output, 0));
+        Assert.assertArrayEquals(new byte[16], output);
+        Assert.assertEquals(Base32Encoding.INVALID_INPUT, Base32Encoding.decode("KNXW=ZJA", output, 0));
+        // the lower 7 bits of these characters are valid BASE32 characters
+        Assert.assertEquals(Base32Encoding.INVALID_INPUT, Base32Encoding.decode("KNXW2ZJ\u00c1", output, 0));
+        Assert.assertEquals(Base32Encoding.INVALID_INPUT, Base32Encoding.decode("KNXW2ZJ\u0132", output, 0));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        Assert.assertEquals(Base32Encoding.INVALID_INPUT, Base32Encoding.decode("KNXW2ZJANFXHA5L1", buffer));
+        Assert.assertEquals(0, buffer.position());
+        for (int i = 0; i < buffer.capacity(); i++) {
+            Assert.assertEquals(0, buffer.get(i));
+        }
+
+        try {
+            Base32Encoding.decode("KNXW2ZJANFXHA5LU", new byte[9], 0);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void preparedSecretFromCharactersTest() {
+        String secret = "KNXW2ZJANFXHA5LU";
+        PreparedSecret expected = new PreparedSecret(secret);
+        char[] characters = secret.toCharArray();
+        Assert.assertEquals(expected, new PreparedSecret(characters));
+        Assert.assertEquals(expected, new PreparedSecret(new StringBuilder(secret.toLowerCase())));
+        Assert.assertEquals(expected, new PreparedSecret(CharBuffer.wrap(characters)));
+
+        try {
+            new PreparedSecret("KNXW2ZJANFXHA5L1".toCharArray());
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new PreparedSecret(new char[0]);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
 }
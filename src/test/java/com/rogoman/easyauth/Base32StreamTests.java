@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+public class Base32StreamTests {
+
+    @Test
+    public void streamRoundTripTest() throws IOException {
+        Random random = new Random(42);
+        for (int length : new int[] {0, 1, 4, 5, 6, 99, 10000, 100003}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            StringWriter text = new StringWriter();
+            try (OutputStream out = new Base32OutputStream(text)) {
+                // uneven writes exercise the bytes kept between calls
+                for (int i = 0; i < length; i += 7) {
+                    out.write(data, i, Math.min(7, length - i));
+                }
+            }
+            Assert.assertEquals(length == 0 ? "" : Base32Encoding.toString(data), text.toString());
+
+            try (InputStream in = new Base32InputStream(new StringReader(text.toString()), 13)) {
+                Assert.assertArrayEquals(data, readAll(in));
+            }
+        }
+    }
+
+    @Test
+    public void keyPerLineTest() throws IOException {
+        String[] keys = new SecretGenerator().generateKeys(100);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        StringBuilder export = new StringBuilder();
+        for (String key : keys) {
+            raw.write(Base32Encoding.toBytes(key));
+            export.append(key).append("\r\n");
+        }
+
+        try (InputStream in = new Base32InputStream(new StringReader(export.toString()))) {
+            Assert.assertArrayEquals(raw.toByteArray(), readAll(in));
+        }
+
+        StringWriter text = new StringWriter();
+        try (OutputStream out = new Base32OutputStream(text, 16)) {
+            out.write(raw.toByteArray());
+        }
+        Assert.assertEquals(export.toString().replace("\r\n", "\n"), text.toString());
+    }
+
+    @Test
+    public void paddedKeysTest() throws IOException {
+        byte[] first = {1, 2, 3};
+        byte[] second = {4, 5, 6, 7, 8, 9};
+        String text = Base32Encoding.toString(first) + "\n" + Base32Encoding.toString(second) + "\n";
+
+        try (InputStream in = new Base32InputStream(new StringReader(text))) {
+            Assert.assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9}, readAll(in));
+        }
+    }
+
+    @Test
+    public void unpaddedKeysPerLineTest() throws IOException {
+        // 13 characters hold 8 bytes and 1 extra bit, so the keys do not end on a block boundary
+        String[] keys = {"JBSWY3DPEHPK3", "GEZDGNBVGY3TQ", "MFRGGZDFMZTWQ"};
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        StringBuilder export = new StringBuilder();
+        for (String key : keys) {
+            raw.write(Base32Encoding.toBytes(key));
+            export.append(key).append("\r\n");
+        }
+        Assert.assertEquals(24, raw.size());
+
+        try (InputStream in = new Base32InputStream(new StringReader(export.toString()), 5)) {
+            Assert.assertArrayEquals(raw.toByteArray(), readAll(in));
+        }
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] text = export.toString().getBytes("US-ASCII");
+        try (ReadableByteChannel in = new Base32DecodingChannel(Channels.newChannel(new ByteArrayInputStream(text)), 7)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    decoded.write(buffer.get());
+                }
+                buffer.clear();
+            }
+        }
+        Assert.assertArrayEquals(raw.toByteArray(), decoded.toByteArray());
+    }
+
+    @Test
+    public void channelRoundTripTest() throws IOException {
+        byte[] data = new byte[200000];
+        new Random(7).nextBytes(data);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        try (WritableByteChannel out = new Base32EncodingChannel(Channels.newChannel(text), 32)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                ByteBuffer chunk = buffer.slice();
+                chunk.limit(Math.min(chunk.remaining(), 12345));
+                buffer.position(buffer.position() + out.write(chunk));
+            }
+        }
+        String[] lines = new String(text.toByteArray(), "US-ASCII").split("\n");
+        Assert.assertEquals(32, lines[0].length());
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (ReadableByteChannel in = new Base32DecodingChannel(Channels.newChannel(new ByteArrayInputStream(text.toByteArray())), 1000)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(777);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    decoded.write(buffer.get());
+                }
+                buffer.clear();
+            }
+        }
+        Assert.assertArrayEquals(data, decoded.toByteArray());
+    }
+
+    @Test
+    public void invalidTextTest() throws IOException {
+        try (InputStream in = new Base32InputStream(new StringReader("KNXW2ZJANFXHA5L1"))) {
+            readAll(in);
+            Assert.fail("no exception thrown");
+        } catch (IOException e) {
+        }
+        byte[] text = "KNXW2ZJANFXHA5L1\n".getBytes("US-ASCII");
+        try (ReadableByteChannel in = new Base32DecodingChannel(Channels.newChannel(new ByteArrayInputStream(text)))) {
+            in.read(ByteBuffer.allocate(16));
+            Assert.fail("no exception thrown");
+        } catch (IOException e) {
+        }
+        try {
+            new Base32OutputStream(new StringWriter(), 10);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BatchCheckTests {
+    @Test
+    public void checkCodesHappyPathTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = new TimeAuthenticator(new InMemoryUsedCodesManager());
+        List<CodeCheckRequest> requests = new ArrayList<>();
+        boolean[] expected = new boolean[200];
+        for (int i = 0; i < expected.length; i++) {
+            String secret = Authenticator.generateKey();
+            String code = target.getCode(secret);
+            if (i % 3 == 0) {
+                code = "abcdef";
+            }
+            expected[i] = i % 3 != 0;
+            requests.add(new CodeCheckRequest(secret, code, "user" + i));
+        }
+
+        boolean[] results = target.checkCodes(requests);
+        Assert.assertTrue(Arrays.equals(expected, results));
+    }
+
+    @Test
+    public void checkCodesReplayedWithinBatchTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = new TimeAuthenticator(new InMemoryUsedCodesManager());
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        String code = target.getCode(secret);
+
+        List<CodeCheckRequest> requests = Arrays.asList(
+                new CodeCheckRequest(secret, code, "userIdentifier"),
+                new CodeCheckRequest(secret, code, "userIdentifier"),
+                new CodeCheckRequest(secret, code, "anotherUserIdentifier"));
+
+        boolean[] results = target.checkCodes(requests);
+        Assert.assertTrue(Arrays.equals(new boolean[] {true, false, true}, results));
+        Assert.assertFalse(target.checkCode(secret, code, "userIdentifier"));
+    }
+
+    @Test
+    public void checkCodesCustomExecutorTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = new TimeAuthenticator();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        String code = target.getCode(secret);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            boolean[] results = target.checkCodes(Arrays.asList(new CodeCheckRequest(secret, code, "userIdentifier")), executor);
+            Assert.assertTrue(Arrays.equals(new boolean[] {true}, results));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void checkCodesEmptyBatchTest() throws AuthenticatorException {
+        TimeAuthenticator target = new TimeAuthenticator();
+        Assert.assertEquals(0, target.checkCodes(new ArrayList<CodeCheckRequest>()).length);
+    }
+
+    @Test
+    public void checkCodesArgumentValidationTest() throws AuthenticatorException {
+        TimeAuthenticator target = new TimeAuthenticator();
+        try {
+            target.checkCodes(null);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            target.checkCodes(Arrays.asList((CodeCheckRequest) null));
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BloomFilterUsedCodesManagerTests {
+
+    private static class CountingUsedCodesManager implements UsedCodesManager<String>, AutoCloseable {
+        private final InMemoryUsedCodesManager codes = new InMemoryUsedCodesManager();
+        private int lookups;
+
+        @Override
+        public void addCode(long timestamp, String code, String userId) {
+            codes.addCode(timestamp, code, userId);
+        }
+
+        @Override
+        public boolean isCodeUsed(long timestamp, String code, String userId) {
+            lookups++;
+            return codes.isCodeUsed(timestamp, code, userId);
+        }
+
+        @Override
+        public boolean markIfUnused(long timestamp, String code, String userId) {
+            lookups++;
+            return codes.markIfUnused(timestamp, code, userId);
+        }
+
+        @Override
+        public void close() {
+            codes.close();
+        }
+    }
+
+    private static final int RETAINED_INTERVALS = 11;
+
+    @Test
+    public void unusedCodesSkipBackingManagerTest() {
+        try (CountingUsedCodesManager backing = new CountingUsedCodesManager()) {
+            BloomFilterUsedCodesManager<String> target = new BloomFilterUsedCodesManager<>(backing, 1000, 0.01);
+            long interval = trustedInterval();
+
+            Assert.assertFalse(target.isCodeUsed(interval, "123456", "userId"));
+            Assert.assertTrue(target.markIfUnused(interval, "123456", "userId"));
+            Assert.assertEquals(0, backing.lookups);
+            Assert.assertTrue(backing.codes.isCodeUsed(interval, "123456", "userId"));
+
+            Assert.assertTrue(target.isCodeUsed(interval, "123456", "userId"));
+            Assert.assertFalse(target.markIfUnused(interval, "123456", "userId"));
+            Assert.assertEquals(2, backing.lookups);
+            Assert.assertFalse(target.isCodeUsed(interval + 1, "123456", "userId"));
+
+            Assert.assertEquals(3, target.getDefiniteMissCount());
+            Assert.assertEquals(2, target.getPossibleHitCount());
+            Assert.assertEquals(0, target.getFalsePositiveCount());
+        }
+    }
+
+    @Test
+    public void falsePositiveRateTest() {
+        try (CountingUsedCodesManager backing = new CountingUsedCodesManager()) {
+            BloomFilterUsedCodesManager<String> target = new BloomFilterUsedCodesManager<>(backing, 1000, 0.01);
+            long interval = trustedInterval();
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertTrue(target.markIfUnused(interval, "123456", "user" + i));
+            }
+            // only the codes whose bits had already been set by others are looked up while marking
+            long markingFalsePositives = target.getFalsePositiveCount();
+            Assert.assertEquals(markingFalsePositives, backing.lookups);
+            Assert.assertTrue(markingFalsePositives < 15);
+
+            for (int i = 1000; i < 11000; i++) {
+                Assert.assertFalse(target.isCodeUsed(interval, "123456", "user" + i));
+            }
+            // 1% of 10000 unused codes with some slack for the randomness of the hashes
+            Assert.assertTrue(target.getExpectedFalsePositiveRate() <= 0.01);
+            Assert.assertTrue(target.getFalsePositiveCount() - markingFalsePositives < 150);
+            Assert.assertEquals(target.getPossibleHitCount(), backing.lookups);
+        }
+    }
+
+    @Test
+    public void blockedFalsePositiveRateTest() {
+        // the standard sizing for 1% gives 9586 bits; with all the bits of a code in one word the rate is much higher
+        Assert.assertTrue(BloomFilterUsedCodesManager.blockedFalsePositiveRate(1000, 150, 7) > 0.015);
+        for (double rate : new double[] {0.1, 0.01, 0.001}) {
+            BloomFilterUsedCodesManager<String> target = new BloomFilterUsedCodesManager<>(new SimpleUsedCodesManager(), 5000, rate);
+            Assert.assertTrue(target.getExpectedFalsePositiveRate() <= rate);
+            Assert.assertTrue(target.getExpectedFalsePositiveRate() > rate / 10);
+        }
+    }
+
+    @Test
+    public void concurrentMarkTest() throws InterruptedException {
+        // a backing manager whose insert is slow, so the second call comes while the first one is still storing the code
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Set<String> codes = ConcurrentHashMap.newKeySet();
+        UsedCodesManager<String> backing = new UsedCodesManager<String>() {
+            @Override
+            public void addCode(long timestamp, String code, String userId) {
+                entered.countDown();
+                await(release);
+                codes.add(timestamp + code + userId);
+            }
+
+            @Override
+            public boolean isCodeUsed(long timestamp, String code, String userId) {
+                return codes.contains(timestamp + code + userId);
+            }
+
+            @Override
+            public boolean markIfUnused(long timestamp, String code, String userId) {
+                boolean added = codes.add(timestamp + code + userId);
+                entered.countDown();
+                return added;
+            }
+        };
+        final BloomFilterUsedCodesManager<String> target = new BloomFilterUsedCodesManager<>(backing, 1000, 0.01);
+        final long interval = trustedInterval();
+        final AtomicInteger accepted = new AtomicInteger();
+
+        Runnable mark = new Runnable() {
+            @Override
+            public void run() {
+                if (target.markIfUnused(interval, "123456", "userId")) {
+                    accepted.incrementAndGet();
+                }
+            }
+        };
+        Thread first = new Thread(mark);
+        first.start();
+        await(entered);
+        Thread second = new Thread(mark);
+        second.start();
+
+        // the second call waits for the code to be stored instead of asking the backing manager too early
+        second.join(200);
+        Assert.assertTrue(second.isAlive());
+        release.countDown();
+        first.join();
+        second.join();
+
+        Assert.assertEquals(1, accepted.get());
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void rotationTest() {
+        try (CountingUsedCodesManager backing = new CountingUsedCodesManager()) {
+            BloomFilterUsedCodesManager<String> target = new BloomFilterUsedCodesManager<>(backing, 1000, 0.01);
+            long interval = trustedInterval();
+            target.addCode(interval, "123456", "userId");
+            target.addCode(interval + RETAINED_INTERVALS, "654321", "userId");
+
+            Assert.assertTrue(target.isCodeUsed(interval, "123456", "userId"));
+            Assert.assertFalse(target.markIfUnused(interval, "123456", "userId"));
+            Assert.assertTrue(target.markIfUnused(interval, "111111", "userId"));
+            Assert.assertEquals(3, target.getBypassCount());
+            Assert.assertEquals(3, backing.lookups);
+        }
+    }
+
+    @Test
+    public void untrustedIntervalsTest() {
+        try (CountingUsedCodesManager backing = new CountingUsedCodesManager()) {
+            long currentInterval = System.currentTimeMillis() / 1000 / 30;
+            backing.addCode(currentInterval, "123456", "userId");
+            BloomFilterUsedCodesManager<String> target = new BloomFilterUsedCodesManager<>(backing, 1000, 0.01);
+
+            Assert.assertTrue(target.isCodeUsed(currentInterval, "123456", "userId"));
+            Assert.assertFalse(target.markIfUnused(currentInterval, "123456", "userId"));
+            Assert.assertEquals(2, target.getBypassCount());
+        }
+    }
+
+    @Test
+    public void argumentValidationTest() {
+        UsedCodesManager<String> backing = new SimpleUsedCodesManager();
+        try {
+            new BloomFilterUsedCodesManager<String>(null, 1000, 0.01);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new BloomFilterUsedCodesManager<>(backing, 0, 0.01);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new BloomFilterUsedCodesManager<>(backing, 1000, 1.0);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new BloomFilterUsedCodesManager<>(backing, 1000, 0.01).isCodeUsed(trustedInterval(), null, "userId");
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private static long trustedInterval() {
+        return System.currentTimeMillis() / 1000 / 30 + 100;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class CleanupSchedulerTests {
+    @Test
+    public void failingTaskKeepsRunningTest() throws InterruptedException {
+        final CountDownLatch runs = new CountDownLatch(3);
+        ScheduledFuture<?> task = CleanupScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.countDown();
+                throw new IllegalStateException("cleanup failed");
+            }
+        }, 10);
+        try {
+            Assert.assertTrue(runs.await(10, TimeUnit.SECONDS));
+            Assert.assertFalse(task.isDone());
+        } finally {
+            task.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+public class DriftTrackingTests {
+
+    private static final long NOW = 1415618880L;
+
+    private static final int INTERVAL = TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS;
+
+    @Test
+    public void driftIsRecordedAndCheckedFirstTest() throws AuthenticatorException, InvalidKeyException {
+        InMemoryDriftStore store = new InMemoryDriftStore();
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withDriftStore(store)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+
+        // the device clock is 4 intervals ahead
+        Assert.assertTrue(target.checkCode(secret, target.getCodeValue(secret, NOW + 4 * INTERVAL), "userIdentifier", NOW));
+        Assert.assertEquals(4, store.getDrift("userIdentifier"));
+
+        int code = target.getCodeValue(secret, NOW + 5 * INTERVAL);
+        long computations = MacPool.getHitCount() + MacPool.getMissCount();
+        Assert.assertTrue(target.checkCode(secret, code, "userIdentifier", NOW + INTERVAL));
+        Assert.assertTrue(MacPool.getHitCount() + MacPool.getMissCount() - computations <= 2);
+        Assert.assertEquals(4, store.getDrift("userIdentifier"));
+    }
+
+    @Test
+    public void stableDriftCostsOneHmacTest() throws AuthenticatorException, InvalidKeyException {
+        InMemoryDriftStore store = new InMemoryDriftStore();
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withDriftStore(store)
+                .withMetrics(metrics)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        store.setDrift("userIdentifier", 4);
+
+        Assert.assertTrue(target.checkCode(secret, target.getCodeValue(secret, NOW + 4 * INTERVAL), "userIdentifier", NOW));
+        Assert.assertEquals(1, metrics.getCheckHmacCount());
+    }
+
+    @Test
+    public void windowSearchSkipsDriftIntervalsTest() throws AuthenticatorException, InvalidKeyException {
+        InMemoryDriftStore store = new InMemoryDriftStore();
+        AuthenticatorMetrics metrics = new AuthenticatorMetrics();
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withDriftStore(store)
+                .withMetrics(metrics)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        store.setDrift("userIdentifier", 4);
+
+        // a code not matching the window is rejected after computing each of its 11 intervals once
+        Assert.assertFalse(target.checkCode(secret, (target.getCodeValue(secret, NOW) + 1) % 1000000, "userIdentifier", NOW));
+        Assert.assertEquals(11, metrics.getCheckHmacCount());
+
+        // the search of the window stops at the match without computing the intervals around the drift again
+        int code = target.getCodeValue(secret, NOW - 3 * INTERVAL);
+        Assert.assertTrue(target.checkCode(secret, code, "userIdentifier", NOW));
+        Assert.assertEquals(11 + 3 + 3, metrics.getCheckHmacCount());
+        Assert.assertEquals(-3, store.getDrift("userIdentifier"));
+    }
+
+    @Test
+    public void resynchronizationTest() throws AuthenticatorException, InvalidKeyException {
+        InMemoryDriftStore store = new InMemoryDriftStore();
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withDriftStore(store)
+                .withDriftTolerance(0)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        store.setDrift("userIdentifier", -3);
+
+        Assert.assertTrue(target.checkCode(secret, target.getCodeValue(secret, NOW), "userIdentifier", NOW));
+        Assert.assertEquals(0, store.getDrift("userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, target.getCodeValue(secret, NOW), "userIdentifier", NOW));
+        Assert.assertFalse(target.checkCode(secret, target.getCodeValue(secret, NOW + 6 * INTERVAL), "userIdentifier", NOW));
+        Assert.assertEquals(0, store.getDrift("userIdentifier"));
+    }
+
+    @Test
+    public void batchRecordsDriftTest() throws AuthenticatorException, InvalidKeyException {
+        InMemoryDriftStore store = new InMemoryDriftStore();
+        TimeAuthenticator target = TimeAuthenticator.builder().withDriftStore(store).build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        String code = target.getCode(secret, System.currentTimeMillis() / TimeAuthenticator.MILLIS_IN_SECOND - 2 * INTERVAL);
+
+        boolean[] results = target.checkCodes(Arrays.asList(new CodeCheckRequest(secret, code, "userIdentifier")));
+
+        Assert.assertTrue(results[0]);
+        // the interval may roll over between generating and checking the code
+        int drift = store.getDrift("userIdentifier");
+        Assert.assertTrue(drift == -2 || drift == -3);
+    }
+
+    @Test
+    public void batchChecksDriftFirstTest() throws AuthenticatorException, InvalidKeyException {
+        InMemoryDriftStore store = new InMemoryDriftStore();
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withDriftStore(store)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        store.setDrift("userIdentifier", 4);
+        String code = target.getCode(secret, System.currentTimeMillis() / TimeAuthenticator.MILLIS_IN_SECOND + 4 * INTERVAL);
+
+        long computations = MacPool.getHitCount() + MacPool.getMissCount();
+        boolean[] results = target.checkCodes(Arrays.asList(new CodeCheckRequest(secret, code, "userIdentifier")));
+
+        Assert.assertTrue(results[0]);
+        // only the intervals around the recorded drift are computed, not the whole window
+        Assert.assertTrue(MacPool.getHitCount() + MacPool.getMissCount() - computations <= 3);
+        Assert.assertFalse(target.checkCodes(Arrays.asList(new CodeCheckRequest(secret, code, "userIdentifier")))[0]);
+        int drift = store.getDrift("userIdentifier");
+        Assert.assertTrue(drift == 4 || drift == 3);
+    }
+
+    @Test
+    public void inMemoryDriftStoreTest() {
+        InMemoryDriftStore target = new InMemoryDriftStore();
+        Assert.assertEquals(DriftStore.UNKNOWN_DRIFT, target.getDrift("userIdentifier"));
+        target.setDrift("userIdentifier", -1);
+        Assert.assertEquals(-1, target.getDrift("userIdentifier"));
+        Assert.assertEquals(1, target.size());
+    }
+}
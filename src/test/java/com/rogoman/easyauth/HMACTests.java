@@ -19,7 +19,9 @@ package com.rogoman.easyauth;
 import org.junit.Assert;
 import org.junit.Test;
 
+import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
@@ -59,4 +61,14 @@ public class HMACTests {
         } catch (IllegalArgumentException e) {
         }
     }
+
+    @Test
+    public void hmacDigestCounterTest() throws InvalidKeyException, NoSuchAlgorithmException {
+        SecretKeySpec key = new SecretKeySpec("12345678901234567890".getBytes(), "HmacSHA1");
+        byte[] message = ByteBuffer.allocate(8).putLong(1234567890L).array();
+
+        byte[] expected = HMAC.hmacDigest(message, key, "HmacSHA1");
+        byte[] result = HMAC.hmacDigest(1234567890L, key, "HmacSHA1");
+        Assert.assertArrayEquals(expected, result);
+    }
 }
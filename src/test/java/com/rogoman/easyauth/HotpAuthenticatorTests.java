@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class HotpAuthenticatorTests {
+
+    // "12345678901234567890", the secret of the RFC 4226 test vectors
+    private static final String RFC_SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+
+    private static final String[] RFC_CODES = {"755224", "287082", "359152", "969429", "338314", "254676", "287922", "162583",
+        "399871", "520489"};
+
+    @Test
+    public void rfcTestVectorsTest() throws AuthenticatorException, InvalidKeyException {
+        HotpAuthenticator target = new HotpAuthenticator();
+        HotpAuthenticator internal = new HotpAuthenticator(new InMemoryCounterStore(), 10, 100, HmacEngine.INTERNAL);
+        for (int counter = 0; counter < RFC_CODES.length; counter++) {
+            Assert.assertEquals(RFC_CODES[counter], target.getCode(RFC_SECRET, counter));
+            Assert.assertEquals(RFC_CODES[counter], internal.getCode(RFC_SECRET, counter));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void codeWithoutCounterTest() throws AuthenticatorException, InvalidKeyException {
+        Authenticator target = new HotpAuthenticator();
+        try {
+            target.getCode(RFC_SECRET);
+            Assert.fail("no exception thrown");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void codesAreAcceptedOnceInOrderTest() {
+        InMemoryCounterStore store = new InMemoryCounterStore();
+        HotpAuthenticator target = new HotpAuthenticator(store, 3);
+        PreparedSecret secret = new PreparedSecret(RFC_SECRET);
+
+        Assert.assertTrue(target.checkCode(secret, RFC_CODES[0], "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, RFC_CODES[0], "userIdentifier"));
+        Assert.assertEquals(1, store.getCounter("userIdentifier"));
+
+        // codes within the look-ahead window are accepted and skip the counters before them
+        Assert.assertTrue(target.checkCode(secret, RFC_CODES[4], "userIdentifier"));
+        Assert.assertEquals(5, store.getCounter("userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, RFC_CODES[2], "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, RFC_CODES[9], "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, "12345a", "userIdentifier"));
+
+        // the counters of other users are independent
+        Assert.assertTrue(target.checkCode(secret, RFC_CODES[0], "otherUser"));
+        Assert.assertEquals(2, store.size());
+    }
+
+    @Test
+    public void resyncTest() {
+        InMemoryCounterStore store = new InMemoryCounterStore();
+        HotpAuthenticator target = new HotpAuthenticator(store, 2, 8, HmacEngine.JCA);
+        PreparedSecret secret = new PreparedSecret(RFC_SECRET);
+
+        Assert.assertFalse(target.checkCode(secret, RFC_CODES[6], "userIdentifier"));
+        Assert.assertFalse(target.resync(secret, RFC_CODES[6], RFC_CODES[8], "userIdentifier"));
+        Assert.assertEquals(0, store.getCounter("userIdentifier"));
+
+        Assert.assertTrue(target.resync(secret, RFC_CODES[6], RFC_CODES[7], "userIdentifier"));
+        Assert.assertEquals(8, store.getCounter("userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, RFC_CODES[7], "userIdentifier"));
+        Assert.assertTrue(target.checkCode(secret, RFC_CODES[8], "userIdentifier"));
+    }
+
+    @Test
+    public void concurrentChecksAcceptCodeOnceTest() throws Exception {
+        final HotpAuthenticator target = new HotpAuthenticator();
+        final PreparedSecret secret = new PreparedSecret(RFC_SECRET);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 50; round++) {
+                final String user = "user" + round;
+                List<Callable<Boolean>> tasks = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    final String code = RFC_CODES[i % 4];
+                    tasks.add(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return target.checkCode(secret, code, user);
+                        }
+                    });
+                }
+                int accepted = 0;
+                for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                    if (result.get()) {
+                        accepted++;
+                    }
+                }
+                // each of the four codes is accepted at most once, and the code of counter 3 always is
+                Assert.assertTrue(accepted >= 1 && accepted <= 4);
+                Assert.assertEquals(4, target.getCounterStore().getCounter(user));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void argumentValidationTest() {
+        HotpAuthenticator target = new HotpAuthenticator();
+        PreparedSecret secret = new PreparedSecret(RFC_SECRET);
+        try {
+            new HotpAuthenticator(null);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new HotpAuthenticator(new InMemoryCounterStore(), -1);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new HotpAuthenticator(new InMemoryCounterStore(), 10, 5, HmacEngine.JCA);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            target.checkCode(secret, RFC_CODES[0], null);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            target.resync(secret, RFC_CODES[0], "", "userIdentifier");
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
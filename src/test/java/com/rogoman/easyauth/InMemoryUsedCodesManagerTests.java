@@ -19,6 +19,11 @@ package com.rogoman.easyauth;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class InMemoryUsedCodesManagerTests {
     @Test
     public void addCodeCheckCodeTest() {
@@ -68,4 +73,128 @@ public class InMemoryUsedCodesManagerTests {
         } catch (IllegalArgumentException e) {
         }
     }
+
+    @Test
+    public void concurrentAddCodeCheckCodeTest() throws InterruptedException {
+        final InMemoryUsedCodesManager target = new InMemoryUsedCodesManager();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String userId = "user" + t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        target.addCode(i, "code", userId);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertTrue(target.isCodeUsed(i, "code", "user" + t));
+            }
+        }
+        Assert.assertFalse(target.isCodeUsed(1000, "code", "user0"));
+    }
+
+    @Test
+    public void markIfUnusedTest() {
+        InMemoryUsedCodesManager target = new InMemoryUsedCodesManager();
+        Assert.assertTrue(target.markIfUnused(123, "code", "userId"));
+        Assert.assertFalse(target.markIfUnused(123, "code", "userId"));
+        Assert.assertTrue(target.isCodeUsed(123, "code", "userId"));
+        Assert.assertTrue(target.markIfUnused(123, "code", "anotherUserId"));
+        Assert.assertTrue(target.markIfUnused(124, "code", "userId"));
+    }
+
+    @Test
+    public void concurrentMarkIfUnusedTest() throws InterruptedException {
+        final InMemoryUsedCodesManager target = new InMemoryUsedCodesManager();
+        final AtomicInteger marked = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (target.markIfUnused(i, "code", "userId")) {
+                            marked.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(1000, marked.get());
+    }
+
+    @Test
+    public void cleanupKeepsLiveIntervalsTest() {
+        Clock clock = Clock.fixed(Instant.ofEpochSecond(1500000000L), ZoneOffset.UTC);
+        long currentInterval = clock.millis() / 1000 / 30;
+        InMemoryUsedCodesManager target = new InMemoryUsedCodesManager(3600, 60, 30, true, null, clock);
+        try {
+            target.addCode(currentInterval - 10, "code", "userId");
+            target.addCode(currentInterval - 2, "code", "userId");
+            target.addCode(currentInterval, "code", "userId");
+            target.addCode(currentInterval + 1, "code", "userId");
+            target.cleanup();
+
+            Assert.assertFalse(target.isCodeUsed(currentInterval - 10, "code", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval - 2, "code", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval, "code", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval + 1, "code", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void cleanupUsesAuthenticatorIntervalTest() {
+        Clock clock = Clock.fixed(Instant.ofEpochSecond(1500000000L), ZoneOffset.UTC);
+        long currentInterval = clock.millis() / 1000 / 60;
+        InMemoryUsedCodesManager target = new InMemoryUsedCodesManager(3600, 300, 30, false, null, clock);
+        try {
+            new TimeAuthenticator(target, 60);
+            target.addCode(currentInterval - 6, "code", "userId");
+            target.addCode(currentInterval - 4, "code", "userId");
+            target.addCode(currentInterval, "code", "userId");
+            target.cleanup();
+
+            Assert.assertFalse(target.isCodeUsed(currentInterval - 6, "code", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval - 4, "code", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval, "code", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void mismatchedIntervalTest() {
+        InMemoryUsedCodesManager target = new InMemoryUsedCodesManager(60, 300, 30);
+        try {
+            new TimeAuthenticator(target, 60);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void closeTest() {
+        InMemoryUsedCodesManager target = new InMemoryUsedCodesManager();
+        target.addCode(123, "code", "userId");
+        target.close();
+        Assert.assertFalse(target.isCodeUsed(123, "code", "userId"));
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class JournalUsedCodesManagerTests {
+    private static long currentInterval() {
+        return System.currentTimeMillis() / 1000 / 30;
+    }
+
+    @Test
+    public void addCodeCheckCodeTest() throws IOException {
+        JournalUsedCodesManager target = new JournalUsedCodesManager(Files.createTempDirectory("journal"), 1000);
+        try {
+            Assert.assertTrue(target.markIfUnused(currentInterval(), "012345", "userId"));
+            Assert.assertFalse(target.markIfUnused(currentInterval(), "012345", "userId"));
+            target.addCode(currentInterval(), "123456", "userId");
+
+            Assert.assertTrue(target.isCodeUsed(currentInterval(), "012345", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval(), "123456", "userId"));
+            Assert.assertFalse(target.isCodeUsed(currentInterval(), "012345", "anotherUserId"));
+            Assert.assertFalse(target.isCodeUsed(currentInterval() - 1, "012345", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void recoveryTest() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        long interval = currentInterval();
+        JournalUsedCodesManager target = new JournalUsedCodesManager(directory, 20000, 60, 30);
+        for (int i = 0; i < 10000; i++) {
+            target.addCode(interval - i % 2, String.format("%06d", i), "user" + i);
+        }
+        target.close();
+
+        target = new JournalUsedCodesManager(directory, 20000, 60, 30);
+        try {
+            Assert.assertEquals(2, target.getSegmentCount());
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertTrue(target.isCodeUsed(interval - i % 2, String.format("%06d", i), "user" + i));
+                Assert.assertFalse(target.markIfUnused(interval - i % 2, String.format("%06d", i), "user" + i));
+                Assert.assertFalse(target.isCodeUsed(interval - 1 + i % 2, String.format("%06d", i), "user" + i));
+            }
+            Assert.assertTrue(target.markIfUnused(interval, "999999", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void recoverySkipsEmptyRecordsTest() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        long interval = currentInterval();
+        JournalUsedCodesManager target = new JournalUsedCodesManager(directory, 1000, 60, 30);
+        target.addCode(interval, "000001", "userId");
+        target.addCode(interval, "000002", "userId");
+        target.addCode(interval, "000003", "userId");
+        target.close();
+
+        // a crash between reserving the second slot and writing it leaves it empty
+        try (FileChannel channel = FileChannel.open(directory.resolve(interval + ".journal"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(16), 32);
+        }
+
+        target = new JournalUsedCodesManager(directory, 1000, 60, 30);
+        Assert.assertTrue(target.isCodeUsed(interval, "000001", "userId"));
+        Assert.assertFalse(target.isCodeUsed(interval, "000002", "userId"));
+        Assert.assertTrue(target.isCodeUsed(interval, "000003", "userId"));
+        Assert.assertTrue(target.markIfUnused(interval, "000004", "userId"));
+        target.close();
+
+        target = new JournalUsedCodesManager(directory, 1000, 60, 30);
+        try {
+            Assert.assertTrue(target.isCodeUsed(interval, "000003", "userId"));
+            Assert.assertTrue(target.isCodeUsed(interval, "000004", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void expiredSegmentsAreDeletedTest() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        long interval = currentInterval();
+        JournalUsedCodesManager target = new JournalUsedCodesManager(directory, 1000, 60, 30);
+        target.addCode(interval - 10, "123456", "userId");
+        target.addCode(interval - 20, "123456", "userId");
+        target.addCode(interval, "123456", "userId");
+        Assert.assertEquals(3, target.getSegmentCount());
+
+        target.cleanup();
+
+        Assert.assertEquals(1, target.getSegmentCount());
+        Assert.assertFalse(Files.exists(directory.resolve((interval - 10) + ".journal")));
+        target.addCode(interval - 30, "123456", "userId");
+        target.close();
+
+        target = new JournalUsedCodesManager(directory, 1000, 60, 30);
+        try {
+            Assert.assertEquals(1, target.getSegmentCount());
+            Assert.assertFalse(Files.exists(directory.resolve((interval - 30) + ".journal")));
+            Assert.assertTrue(target.isCodeUsed(interval, "123456", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void segmentsGrowWithLoadTest() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        long interval = currentInterval();
+        JournalUsedCodesManager target = new JournalUsedCodesManager(directory, 100000, 60, 30);
+        try {
+            target.addCode(interval, "000000", "userId");
+            int initialCapacity = target.getSegmentCapacity(interval);
+            Assert.assertTrue(initialCapacity < 100000);
+
+            for (int i = 1; i <= initialCapacity; i++) {
+                Assert.assertTrue(target.markIfUnused(interval, String.format("%06d", i), "userId"));
+            }
+            Assert.assertEquals(2 * initialCapacity, target.getSegmentCapacity(interval));
+            Assert.assertEquals(16 + 2 * initialCapacity * 16, Files.size(directory.resolve(interval + ".journal")));
+        } finally {
+            target.close();
+        }
+
+        target = new JournalUsedCodesManager(directory, 100000, 60, 30);
+        try {
+            Assert.assertTrue(target.isCodeUsed(interval, "000000", "userId"));
+            Assert.assertTrue(target.isCodeUsed(interval, String.format("%06d", target.getSegmentCapacity(interval) / 2), "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void failedAppendIsRolledBackTest() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        long interval = currentInterval();
+        JournalUsedCodesManager target = new JournalUsedCodesManager(directory, 1000, 60, 30);
+        try {
+            // a directory in place of the segment file makes the append fail
+            Path blocked = Files.createDirectory(directory.resolve(interval + ".journal"));
+            Assert.assertFalse(target.markIfUnused(interval, "123456", "userId"));
+            Assert.assertFalse(target.isCodeUsed(interval, "123456", "userId"));
+            try {
+                target.addCode(interval, "123456", "userId");
+                Assert.fail("no exception thrown");
+            } catch (UncheckedIOException e) {
+            }
+            Assert.assertFalse(target.isCodeUsed(interval, "123456", "userId"));
+
+            Files.delete(blocked);
+            Assert.assertTrue(target.markIfUnused(interval, "123456", "userId"));
+            Assert.assertFalse(target.markIfUnused(interval, "123456", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void lockedDirectoryTest() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        JournalUsedCodesManager target = new JournalUsedCodesManager(directory, 1000);
+        try {
+            new JournalUsedCodesManager(directory, 1000);
+            Assert.fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        } finally {
+            target.close();
+        }
+
+        new JournalUsedCodesManager(directory, 1000).close();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+public class MacPoolTests {
+    @Test
+    public void acquireReusesMacTest() throws InvalidKeyException, NoSuchAlgorithmException {
+        SecretKeySpec key = new SecretKeySpec("key".getBytes(), "HmacSHA1");
+        MacPool.acquire("HmacSHA1", key);
+
+        long hits = MacPool.getHitCount();
+        long misses = MacPool.getMissCount();
+        MacPool.acquire("HmacSHA1", key);
+
+        Assert.assertEquals(hits + 1, MacPool.getHitCount());
+        Assert.assertEquals(misses, MacPool.getMissCount());
+    }
+
+    @Test
+    public void alternatingKeysTest() throws InvalidKeyException, NoSuchAlgorithmException {
+        SecretKeySpec firstKey = new SecretKeySpec("key".getBytes(), "HmacSHA1");
+        SecretKeySpec secondKey = new SecretKeySpec("another key".getBytes(), "HmacSHA1");
+        byte[] msg = "The quick brown fox jumps over the lazy dog".getBytes();
+
+        for (int i = 0; i < 3; i++) {
+            byte[] first = HMAC.hmacDigest(msg, firstKey, "HmacSHA1");
+            Assert.assertEquals("de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9", HMAC.convertToHexString(first));
+
+            byte[] second = HMAC.hmacDigest(msg, secondKey, "HmacSHA1");
+            Assert.assertFalse(HMAC.convertToHexString(first).equals(HMAC.convertToHexString(second)));
+        }
+    }
+
+    @Test
+    public void separateInstancePerThreadTest() throws Exception {
+        SecretKeySpec key = new SecretKeySpec("key".getBytes(), "HmacSHA1");
+        final Object[] otherThreadMac = new Object[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    otherThreadMac[0] = MacPool.acquire("HmacSHA1", new SecretKeySpec("key".getBytes(), "HmacSHA1"));
+                } catch (Exception e) {
+                    otherThreadMac[0] = e;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        Assert.assertNotNull(otherThreadMac[0]);
+        Assert.assertNotSame(MacPool.acquire("HmacSHA1", key), otherThreadMac[0]);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class MappedSecretStoreTests {
+
+    @Test
+    public void putGetRemoveTest() throws IOException {
+        Path file = Files.createTempFile("secrets", ".store");
+        try (MappedSecretStore store = new MappedSecretStore(file, 1000)) {
+            byte[] key = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+            Assert.assertNull(store.getSecret("userId"));
+            Assert.assertTrue(store.put("userId", key));
+            Assert.assertEquals(new PreparedSecret(key), store.getSecret("userId"));
+            Assert.assertTrue(store.contains("userId"));
+
+            Assert.assertFalse(store.put("userId", "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ"));
+            Assert.assertEquals(new PreparedSecret("GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ"), store.getSecret("userId"));
+            Assert.assertEquals(1, store.size());
+
+            Assert.assertTrue(store.remove("userId"));
+            Assert.assertFalse(store.remove("userId"));
+            Assert.assertNull(store.getSecret("userId"));
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void reopenTest() throws IOException {
+        Path file = Files.createTempFile("secrets", ".store");
+        Map<String, byte[]> keys = new HashMap<>();
+        Random random = new Random(1);
+        try (MappedSecretStore store = new MappedSecretStore(file, 5000)) {
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = new byte[1 + random.nextInt(20)];
+                random.nextBytes(key);
+                keys.put("user" + i, key);
+                store.put("user" + i, key);
+            }
+            // removals shift the following entries of the probe sequences back
+            for (int i = 0; i < 5000; i += 3) {
+                Assert.assertTrue(store.remove("user" + i));
+                keys.remove("user" + i);
+            }
+        }
+
+        try (MappedSecretStore store = new MappedSecretStore(file, 5000)) {
+            Assert.assertEquals(keys.size(), store.size());
+            for (int i = 0; i < 5000; i++) {
+                PreparedSecret secret = store.getSecret("user" + i);
+                if (keys.containsKey("user" + i)) {
+                    Assert.assertArrayEquals(keys.get("user" + i), secret.getKeyBytes());
+                } else {
+                    Assert.assertNull(secret);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void preparedSecretsAreCachedTest() throws IOException {
+        Path file = Files.createTempFile("secrets", ".store");
+        try (MappedSecretStore store = new MappedSecretStore(file, 10)) {
+            store.put("userId", new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+            PreparedSecret secret = store.getSecret("userId");
+            Assert.assertSame(secret, store.getSecret("userId"));
+            Assert.assertEquals(1, store.getCachedCount());
+            store.releaseSecret(secret);
+            store.releaseSecret(secret);
+
+            // a replaced secret is dropped from the cache and destroyed, as it is not leased any more
+            store.put("userId", new byte[]{10, 9, 8, 7, 6, 5, 4, 3, 2, 1});
+            Assert.assertTrue(secret.isDestroyed());
+            Assert.assertEquals(0, store.getCachedCount());
+            PreparedSecret replaced = store.getSecret("userId");
+            Assert.assertArrayEquals(new byte[]{10, 9, 8, 7, 6, 5, 4, 3, 2, 1}, replaced.getKeyBytes());
+
+            // a removed secret is destroyed once its lease is released
+            store.remove("userId");
+            Assert.assertFalse(replaced.isDestroyed());
+            store.releaseSecret(replaced);
+            Assert.assertTrue(replaced.isDestroyed());
+        }
+    }
+
+    @Test
+    public void evictedSecretsAreDestroyedTest() throws IOException {
+        Path file = Files.createTempFile("secrets", ".store");
+        try (MappedSecretStore store = new MappedSecretStore(file, 10, MappedSecretStore.DEFAULT_MAX_USER_ID_BYTES,
+                MappedSecretStore.DEFAULT_MAX_KEY_BYTES, 1)) {
+            store.put("firstUser", new byte[]{1, 2, 3});
+            store.put("secondUser", new byte[]{4, 5, 6});
+            PreparedSecret first = store.getSecret("firstUser");
+            store.releaseSecret(first);
+            PreparedSecret second = store.getSecret("secondUser");
+
+            Assert.assertTrue(first.isDestroyed());
+            Assert.assertEquals(1, store.getCachedCount());
+            Assert.assertNotSame(first, store.getSecret("firstUser"));
+            Assert.assertFalse(second.isDestroyed());
+            store.releaseSecret(second);
+            Assert.assertTrue(second.isDestroyed());
+        }
+    }
+
+    @Test
+    public void checkCodeTest() throws IOException, AuthenticatorException, InvalidKeyException {
+        Path file = Files.createTempFile("secrets", ".store");
+        try (MappedSecretStore store = new MappedSecretStore(file, 10)) {
+            String secret = Authenticator.generateKey();
+            store.put("userId", secret);
+
+            TimeAuthenticator authenticator = new TimeAuthenticator(new InMemoryUsedCodesManager());
+            String code = authenticator.getCode(secret);
+            Assert.assertFalse(authenticator.checkCode(store, code, "otherUser"));
+            Assert.assertTrue(authenticator.checkCode(store, code, "userId"));
+            Assert.assertFalse(authenticator.checkCode(store, code, "userId"));
+        }
+    }
+
+    @Test
+    public void invalidUsageTest() throws IOException {
+        Path file = Files.createTempFile("secrets", ".store");
+        try (MappedSecretStore store = new MappedSecretStore(file, 10, 8, 10)) {
+            try {
+                store.put("userIdentifier", new byte[10]);
+                Assert.fail("no exception thrown");
+            } catch (IllegalArgumentException e) {
+            }
+            try {
+                store.put("userId", new byte[11]);
+                Assert.fail("no exception thrown");
+            } catch (IllegalArgumentException e) {
+            }
+            try {
+                new MappedSecretStore(file, 10, 8, 10);
+                Assert.fail("no exception thrown");
+            } catch (IOException e) {
+            }
+        }
+        try {
+            new MappedSecretStore(file, 10);
+            Assert.fail("no exception thrown");
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OffHeapUsedCodesManagerTests {
+    private static long currentInterval() {
+        return System.currentTimeMillis() / 1000 / 30;
+    }
+
+    @Test
+    public void addCodeCheckCodeTest() {
+        OffHeapUsedCodesManager target = new OffHeapUsedCodesManager(1000);
+        try {
+            target.addCode(currentInterval(), "012345", "userId");
+            Assert.assertTrue(target.isCodeUsed(currentInterval(), "012345", "userId"));
+            Assert.assertFalse(target.isCodeUsed(currentInterval(), "12345", "userId"));
+            Assert.assertFalse(target.isCodeUsed(currentInterval(), "012345", "anotherUserId"));
+            Assert.assertFalse(target.isCodeUsed(currentInterval() - 1, "012345", "userId"));
+            Assert.assertEquals(1, target.size());
+
+            target.addCode(currentInterval(), "012345", "userId");
+            Assert.assertEquals(1, target.size());
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void markIfUnusedTest() {
+        OffHeapUsedCodesManager target = new OffHeapUsedCodesManager(1000);
+        try {
+            Assert.assertTrue(target.markIfUnused(currentInterval(), "012345", "userId"));
+            Assert.assertFalse(target.markIfUnused(currentInterval(), "012345", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval(), "012345", "userId"));
+            Assert.assertTrue(target.markIfUnused(currentInterval(), "012345", "anotherUserId"));
+            Assert.assertEquals(2, target.size());
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void argumentValidationTest() {
+        OffHeapUsedCodesManager target = new OffHeapUsedCodesManager(1000);
+        try {
+            target.addCode(123, null, "userId");
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            target.isCodeUsed(123, "12a456", "userId");
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            new OffHeapUsedCodesManager(0);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        target.close();
+    }
+
+    @Test
+    public void cleanupKeepsLiveCodesTest() {
+        long interval = currentInterval();
+        OffHeapUsedCodesManager target = new OffHeapUsedCodesManager(20000, 60, 30);
+        try {
+            for (int i = 0; i < 10000; i++) {
+                target.addCode(interval - 10 - i % 3, String.format("%06d", i), "user" + i);
+                target.addCode(interval - i % 2, String.format("%06d", i), "user" + i);
+            }
+            Assert.assertEquals(20000, target.size());
+
+            target.cleanup();
+
+            Assert.assertEquals(10000, target.size());
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertTrue(target.isCodeUsed(interval - i % 2, String.format("%06d", i), "user" + i));
+                Assert.assertFalse(target.isCodeUsed(interval - 10 - i % 3, String.format("%06d", i), "user" + i));
+            }
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void fullTableTest() {
+        long interval = currentInterval();
+        OffHeapUsedCodesManager target = new OffHeapUsedCodesManager(10, 60, 30);
+        try {
+            // expired codes are purged to make room for new ones
+            target.addCode(interval, "123456", "userId");
+            for (int i = 0; i < 1000; i++) {
+                target.addCode(interval - 100, String.format("%06d", i), "userId");
+                Assert.assertTrue(target.isCodeUsed(interval - 100, String.format("%06d", i), "userId"));
+            }
+            Assert.assertTrue(target.isCodeUsed(interval, "123456", "userId"));
+
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    target.addCode(interval, String.format("%06d", i), "anotherUserId");
+                }
+                Assert.fail("no exception thrown");
+            } catch (IllegalStateException e) {
+            }
+        } finally {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class SecretGeneratorTests {
+
+    @Test
+    public void generateKeysTest() {
+        String[] keys = new SecretGenerator().generateKeys(10000);
+
+        Assert.assertEquals(10000, keys.length);
+        Assert.assertEquals(10000, new HashSet<>(Arrays.asList(keys)).size());
+        for (String key : keys) {
+            Assert.assertTrue(key.matches("[A-Z2-7]{16}"));
+            Assert.assertEquals(SecretGenerator.DEFAULT_KEY_LENGTH_IN_BYTES, new PreparedSecret(key).getKeyBytes().length);
+        }
+    }
+
+    @Test
+    public void keyLengthTest() {
+        Assert.assertTrue(new SecretGenerator(20).generateKey().matches("[A-Z2-7]{32}"));
+        Assert.assertEquals(16, new PreparedSecret(new SecretGenerator(16).generateKey()).getKeyBytes().length);
+        Assert.assertTrue(Authenticator.generateKey().matches("[A-Z2-7]{16}"));
+        Assert.assertEquals(3, Authenticator.generateKeys(3).length);
+    }
+
+    @Test
+    public void parallelStreamTest() {
+        Set<String> keys = new SecretGenerator(20).keys().parallel().limit(20000).collect(Collectors.toSet());
+
+        Assert.assertEquals(20000, keys.size());
+    }
+
+    @Test
+    public void argumentValidationTest() {
+        try {
+            new SecretGenerator(0);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new SecretGenerator().generateKeys(-1);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+public class SecretVaultTests {
+    private static SecretKey createKey() throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        return generator.generateKey();
+    }
+
+    @Test
+    public void putGetTest() throws GeneralSecurityException, AuthenticatorException, InvalidKeyException {
+        SecretVault vault = new SecretVault(createKey());
+        String secret = Authenticator.generateKey();
+        Assert.assertNull(vault.getSecret("userId"));
+
+        vault.put("userId", secret);
+        PreparedSecret decrypted = vault.getSecret("userId");
+        Assert.assertEquals(new PreparedSecret(secret), decrypted);
+        Assert.assertSame(decrypted, vault.getSecret("userId"));
+        Assert.assertEquals(1, vault.getCachedCount());
+
+        String newSecret = Authenticator.generateKey();
+        vault.put("userId", newSecret);
+        // a replaced secret stays usable until both its leases are released
+        Assert.assertFalse(decrypted.isDestroyed());
+        Assert.assertEquals(new TimeAuthenticator().getCode(secret), new TimeAuthenticator().getCode(decrypted));
+        vault.releaseSecret(decrypted);
+        Assert.assertFalse(decrypted.isDestroyed());
+        vault.releaseSecret(decrypted);
+        Assert.assertTrue(decrypted.isDestroyed());
+        Assert.assertEquals(new PreparedSecret(newSecret), vault.getSecret("userId"));
+
+        Assert.assertTrue(vault.remove("userId"));
+        Assert.assertNull(vault.getSecret("userId"));
+        Assert.assertEquals(0, vault.getCachedCount());
+    }
+
+    @Test
+    public void evictionTest() throws GeneralSecurityException, AuthenticatorException, InvalidKeyException {
+        // room for a single 10-byte key in each of the 16 stripes
+        SecretVault vault = new SecretVault(createKey(), 16 * (SecretVault.ENTRY_OVERHEAD_BYTES + 10));
+        PreparedSecret[] secrets = new PreparedSecret[1000];
+        for (int i = 0; i < secrets.length; i++) {
+            vault.put("user" + i, Authenticator.generateKey());
+            secrets[i] = vault.getSecret("user" + i);
+        }
+
+        Assert.assertEquals(1000, vault.size());
+        Assert.assertTrue(vault.getCachedCount() <= 16);
+        // evicted secrets stay usable by the threads that got them until they are released
+        for (PreparedSecret secret : secrets) {
+            Assert.assertFalse(secret.isDestroyed());
+        }
+        Assert.assertNotNull(new TimeAuthenticator().getCode(secrets[0]));
+
+        int destroyed = 0;
+        for (PreparedSecret secret : secrets) {
+            vault.releaseSecret(secret);
+            if (secret.isDestroyed()) {
+                destroyed++;
+            }
+        }
+        Assert.assertEquals(1000 - vault.getCachedCount(), destroyed);
+
+        // the cached secrets are not leased any more, so they are destroyed when dropped
+        vault.clearCache();
+        Assert.assertEquals(0, vault.getCachedCount());
+        for (PreparedSecret secret : secrets) {
+            Assert.assertTrue(secret.isDestroyed());
+        }
+        PreparedSecret decrypted = vault.getSecret("user999");
+        Assert.assertFalse(decrypted.isDestroyed());
+        Assert.assertNotSame(secrets[999], decrypted);
+    }
+
+    @Test
+    public void evictedSecretIsDestroyedAfterLastLeaseTest() throws GeneralSecurityException, AuthenticatorException {
+        SecretVault vault = new SecretVault(createKey());
+        String secret = Authenticator.generateKey();
+        vault.put("userId", secret);
+        TimeAuthenticator authenticator = new TimeAuthenticator();
+
+        PreparedSecret first = vault.getSecret("userId");
+        PreparedSecret second = vault.getSecret("userId");
+        Assert.assertSame(first, second);
+        Assert.assertTrue(vault.remove("userId"));
+        Assert.assertEquals(authenticator.getCode(secret), authenticator.getCode(second));
+
+        vault.releaseSecret(first);
+        Assert.assertFalse(second.isDestroyed());
+        vault.releaseSecret(second);
+        Assert.assertTrue(second.isDestroyed());
+
+        // a secret that does not fit in the cache is destroyed as soon as it is released
+        SecretVault uncached = new SecretVault(createKey(), 0);
+        uncached.put("userId", secret);
+        PreparedSecret decrypted = uncached.getSecret("userId");
+        Assert.assertEquals(authenticator.getCode(secret), authenticator.getCode(decrypted));
+        uncached.releaseSecret(decrypted);
+        Assert.assertTrue(decrypted.isDestroyed());
+    }
+
+    @Test
+    public void encryptedSecretTest() throws GeneralSecurityException {
+        SecretKey key = createKey();
+        SecretVault vault = new SecretVault(key, 0);
+        String secret = Authenticator.generateKey();
+        vault.put("userId", secret);
+        byte[] encrypted = vault.getEncryptedSecret("userId");
+
+        SecretVault restored = new SecretVault(key);
+        restored.putEncryptedSecret("userId", encrypted);
+        Assert.assertEquals(new PreparedSecret(secret), restored.getSecret("userId"));
+
+        // the secret is bound to its user
+        restored.putEncryptedSecret("otherUser", encrypted);
+        try {
+            restored.getSecret("otherUser");
+            Assert.fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+
+        encrypted[encrypted.length - 1] ^= 1;
+        restored.putEncryptedSecret("userId", encrypted);
+        try {
+            restored.getSecret("userId");
+            Assert.fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+        Assert.assertEquals(0, vault.getCachedCount());
+    }
+
+    @Test
+    public void checkCodeTest() throws GeneralSecurityException, AuthenticatorException {
+        SecretVault vault = new SecretVault(createKey());
+        String secret = Authenticator.generateKey();
+        vault.put("userId", secret);
+
+        TimeAuthenticator authenticator = new TimeAuthenticator(new InMemoryUsedCodesManager());
+        String code = authenticator.getCode(secret);
+        Assert.assertTrue(authenticator.checkCode(vault, code, "userId"));
+        Assert.assertFalse(authenticator.checkCode(vault, code, "userId"));
+    }
+
+    @Test
+    public void destroyedSecretTest() throws AuthenticatorException, InvalidKeyException {
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        new TimeAuthenticator().getCode(secret);
+        secret.destroy();
+        try {
+            secret.getKeyBytes();
+            Assert.fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            new TimeAuthenticator().getCode(secret);
+            Assert.fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void destroyedSecretInWindowCacheTest() throws AuthenticatorException, InvalidKeyException {
+        String key = Authenticator.generateKey();
+        PreparedSecret secret = new PreparedSecret(key);
+        int hashCode = secret.hashCode();
+        TimeAuthenticator authenticator = TimeAuthenticator.builder().withWindowCodeCache(16).build();
+        String code = authenticator.getCode(key);
+        Assert.assertTrue(authenticator.checkCode(secret, code, "userId"));
+
+        secret.destroy();
+        Assert.assertEquals(hashCode, secret.hashCode());
+        Assert.assertFalse(secret.equals(new PreparedSecret(key)));
+        try {
+            authenticator.checkCode(secret, code, "userId");
+            Assert.fail("no exception thrown");
+        } catch (IllegalStateException e) {
+        }
+        // the codes cached for the destroyed secret are dropped and computed again for a new instance of the same key
+        Assert.assertTrue(authenticator.checkCode(new PreparedSecret(key), code, "userId"));
+    }
+}
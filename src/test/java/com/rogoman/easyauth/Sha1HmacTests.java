@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class Sha1HmacTests {
+
+    @Test
+    public void fullDigestMatchesJcaTest() throws Exception {
+        Random random = new Random(42);
+        int[] keyLengths = {1, 10, 20, 63, 64, 65, 100, 200};
+        for (int keyLength : keyLengths) {
+            byte[] key = new byte[keyLength];
+            random.nextBytes(key);
+            int[] padStates = Sha1Hmac.padStates(key);
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+            for (int i = 0; i < 1000; i++) {
+                long counter = i < 500 ? i : random.nextLong();
+                byte[] expected = mac.doFinal(ByteBuffer.allocate(8).putLong(counter).array());
+                Assert.assertArrayEquals(expected, HMAC.hmacSha1Digest(counter, padStates));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedDigestMatchesRfcTest() throws Exception {
+        // test vectors from RFC 4226, appendix D
+        int[] expected = {1284755224, 1094287082, 137359152, 1726969429, 1640338314, 868254676, 1918287922, 82162583, 673399871,
+            645520489};
+        int[] padStates = Sha1Hmac.padStates("12345678901234567890".getBytes("US-ASCII"));
+        for (int counter = 0; counter < expected.length; counter++) {
+            Assert.assertEquals(expected[counter], HMAC.truncatedHmacSha1Digest(counter, padStates));
+        }
+    }
+
+    @Test
+    public void internalEngineCodesTest() throws Exception {
+        TimeAuthenticator jca = new TimeAuthenticator();
+        TimeAuthenticator internal = TimeAuthenticator.builder().withHmacEngine(HmacEngine.INTERNAL).build();
+        for (int i = 0; i < 20; i++) {
+            PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+            for (long interval = 0; interval < 100; interval++) {
+                Assert.assertEquals(jca.getCodeInternal(secret, interval), internal.getCodeInternal(secret, interval));
+            }
+        }
+    }
+
+    @Test
+    public void argumentValidationTest() {
+        try {
+            TimeAuthenticator.builder().withHmacEngine(null).build();
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            HMAC.hmacSha1Digest(0, new int[3]);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
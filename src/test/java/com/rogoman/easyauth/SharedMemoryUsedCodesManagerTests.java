@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedMemoryUsedCodesManagerTests {
+    private static long currentInterval() {
+        return System.currentTimeMillis() / 1000 / 30;
+    }
+
+    @Test
+    public void sharedCodesTest() throws IOException {
+        Path file = Files.createTempFile("used-codes", ".table");
+        SharedMemoryUsedCodesManager first = new SharedMemoryUsedCodesManager(file, 1000);
+        SharedMemoryUsedCodesManager second = new SharedMemoryUsedCodesManager(file, 1000);
+        try {
+            Assert.assertTrue(first.markIfUnused(currentInterval(), "012345", "userId"));
+            Assert.assertTrue(second.isCodeUsed(currentInterval(), "012345", "userId"));
+            Assert.assertFalse(second.markIfUnused(currentInterval(), "012345", "userId"));
+            Assert.assertFalse(second.isCodeUsed(currentInterval(), "012345", "anotherUserId"));
+        } finally {
+            first.close();
+            second.close();
+        }
+
+        SharedMemoryUsedCodesManager reopened = new SharedMemoryUsedCodesManager(file, 1000);
+        try {
+            Assert.assertTrue(reopened.isCodeUsed(currentInterval(), "012345", "userId"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void concurrentMarkIfUnusedTest() throws IOException, InterruptedException {
+        Path file = Files.createTempFile("used-codes", ".table");
+        final SharedMemoryUsedCodesManager[] managers = new SharedMemoryUsedCodesManager[4];
+        final AtomicInteger marked = new AtomicInteger();
+        final long interval = currentInterval();
+        Thread[] threads = new Thread[managers.length];
+        for (int t = 0; t < threads.length; t++) {
+            final SharedMemoryUsedCodesManager manager = new SharedMemoryUsedCodesManager(file, 10000);
+            managers[t] = manager;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (manager.markIfUnused(interval, String.format("%06d", i), "userId")) {
+                            marked.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (SharedMemoryUsedCodesManager manager : managers) {
+            manager.close();
+        }
+
+        Assert.assertEquals(1000, marked.get());
+    }
+
+    @Test
+    public void cleanupTest() throws IOException {
+        Path file = Files.createTempFile("used-codes", ".table");
+        SharedMemoryUsedCodesManager target = new SharedMemoryUsedCodesManager(file, 1000, 60, 30);
+        try {
+            target.addCode(currentInterval() - 10, "123456", "userId");
+            target.addCode(currentInterval(), "123456", "userId");
+
+            target.cleanup();
+
+            Assert.assertFalse(target.isCodeUsed(currentInterval() - 10, "123456", "userId"));
+            Assert.assertTrue(target.isCodeUsed(currentInterval(), "123456", "userId"));
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void lockOfExitedProcessIsTakenOverTest() throws IOException, InterruptedException {
+        MappedByteBuffer buffer = mapLocks(4);
+        Process exited = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-version").start();
+        exited.waitFor();
+        SharedStripeLocks crashed = new SharedStripeLocks(buffer, 0, 4, exited.pid() << Integer.SIZE);
+        long now = SharedStripeLocks.ownerOf(ProcessHandle.current());
+        // a running process that reused the process id of the holder
+        SharedStripeLocks restarted = new SharedStripeLocks(buffer, 0, 4, now - 100);
+        SharedStripeLocks survivor = new SharedStripeLocks(buffer, 0, 4);
+
+        crashed.lock(1);
+        survivor.lock(1);
+        Assert.assertEquals(now, buffer.getLong(SharedStripeLocks.LOCK_SIZE));
+        survivor.unlock(1);
+
+        restarted.lock(2);
+        survivor.lock(2);
+        Assert.assertEquals(now, buffer.getLong(2 * SharedStripeLocks.LOCK_SIZE));
+        survivor.unlock(2);
+        Assert.assertEquals(0, buffer.getLong(2 * SharedStripeLocks.LOCK_SIZE));
+    }
+
+    @Test
+    public void lockOfRunningProcessIsNotTakenOverTest() throws IOException, InterruptedException {
+        MappedByteBuffer buffer = mapLocks(4);
+        SharedStripeLocks holder = new SharedStripeLocks(buffer, 0, 4);
+        final SharedStripeLocks waiter = new SharedStripeLocks(buffer, 0, 4);
+        final AtomicInteger acquired = new AtomicInteger();
+
+        holder.lock(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                waiter.lock(1);
+                acquired.incrementAndGet();
+                waiter.unlock(1);
+            }
+        });
+        thread.start();
+        thread.join(TimeUnit.SECONDS.toMillis(1));
+        Assert.assertEquals(0, acquired.get());
+
+        holder.unlock(1);
+        thread.join();
+        Assert.assertEquals(1, acquired.get());
+    }
+
+    @Test
+    public void otherFileTypeTest() throws IOException {
+        Path secrets = Files.createTempFile("secrets", ".store");
+        new MappedSecretStore(secrets, 1000).close();
+        try {
+            new SharedMemoryUsedCodesManager(secrets, 1000);
+            Assert.fail("no exception thrown");
+        } catch (IOException e) {
+        }
+
+        Path codes = Files.createTempFile("used-codes", ".table");
+        new SharedMemoryUsedCodesManager(codes, 1000).close();
+        try {
+            new MappedSecretStore(codes, 1000);
+            Assert.fail("no exception thrown");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void differentCapacityTest() throws IOException {
+        Path file = Files.createTempFile("used-codes", ".table");
+        new SharedMemoryUsedCodesManager(file, 1000).close();
+        try {
+            new SharedMemoryUsedCodesManager(file, 100000);
+            Assert.fail("no exception thrown");
+        } catch (IOException e) {
+        }
+    }
+
+    private static MappedByteBuffer mapLocks(final int stripeCount) throws IOException {
+        Path file = Files.createTempFile("stripe-locks", ".table");
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SharedStripeLocks.requiredBytes(stripeCount));
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+}
@@ -20,6 +20,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.security.InvalidKeyException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TimeAuthenticatorTests {
 
@@ -183,4 +184,189 @@ public class TimeAuthenticatorTests {
         String code = target.getCode(secret, 1415618880L);
         Assert.assertEquals("898106", code);
     }
+
+    @Test
+    public void preparedSecretAdHocTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = new TimeAuthenticator(new UsedCodesManagerImpl(), INTERVAL_WINDOW_IN_SECONDS);
+        PreparedSecret secret = new PreparedSecret("AAAAAAAAAAAAAAAA");
+
+        String code = target.getCode(secret, 1415618880L);
+        Assert.assertEquals("898106", code);
+    }
+
+    @Test
+    public void getCodeAndVerifyPreparedSecretTest() throws AuthenticatorException, InvalidKeyException {
+        UsedCodesManagerImpl manager = new UsedCodesManagerImpl();
+        TimeAuthenticator target = new TimeAuthenticator(manager, INTERVAL_WINDOW_IN_SECONDS);
+        String secret = Authenticator.generateKey();
+        PreparedSecret preparedSecret = new PreparedSecret(secret);
+
+        String code = target.getCode(secret);
+        Assert.assertEquals(code, target.getCode(preparedSecret));
+
+        boolean result = target.checkCode(preparedSecret, code, "userIdentifier");
+        Assert.assertTrue(result);
+        Assert.assertTrue(manager.isCodeUsed(0, null, null));
+    }
+
+    @Test
+    public void preparedSecretFromInvalidSecretTest() {
+        try {
+            new PreparedSecret("BAD SECRET");
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            new PreparedSecret((String) null);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void getCodeValueAdHocTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = new TimeAuthenticator(new UsedCodesManagerImpl(), INTERVAL_WINDOW_IN_SECONDS);
+        PreparedSecret secret = new PreparedSecret("AAAAAAAAAAAAAAAA");
+
+        int code = target.getCodeValue(secret, 1415618880L);
+        Assert.assertEquals(898106, code);
+    }
+
+    @Test
+    public void getCodeValueAndVerifyTest() throws AuthenticatorException, InvalidKeyException {
+        UsedCodesManagerImpl manager = new UsedCodesManagerImpl();
+        TimeAuthenticator target = new TimeAuthenticator(manager, INTERVAL_WINDOW_IN_SECONDS);
+        String secret = Authenticator.generateKey();
+
+        int code = target.getCodeValue(new PreparedSecret(secret));
+
+        boolean result = target.checkCode(secret, code, "userIdentifier");
+        Assert.assertTrue(result);
+        Assert.assertTrue(manager.isCodeUsed(0, null, null));
+    }
+
+    @Test
+    public void checkMalformedCodeTest() {
+        UsedCodesManagerImpl manager = new UsedCodesManagerImpl();
+        TimeAuthenticator target = new TimeAuthenticator(manager, INTERVAL_WINDOW_IN_SECONDS);
+        String secret = Authenticator.generateKey();
+
+        Assert.assertFalse(target.checkCode(secret, "12345", "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, "1234567", "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, "12a456", "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, -1, "userIdentifier"));
+        Assert.assertFalse(target.checkCode(secret, 1000000, "userIdentifier"));
+        Assert.assertFalse(manager.isCodeUsed(0, null, null));
+    }
+
+    @Test
+    public void customWindowTest() throws AuthenticatorException, InvalidKeyException {
+        UsedCodesManagerImpl manager = new UsedCodesManagerImpl();
+        TimeAuthenticator target = new TimeAuthenticator(manager, INTERVAL_WINDOW_IN_SECONDS, 1, 1);
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        long now = 1415618880L;
+
+        int previousCode = target.getCodeValue(secret, now - INTERVAL_WINDOW_IN_SECONDS);
+        int nextCode = target.getCodeValue(secret, now + INTERVAL_WINDOW_IN_SECONDS);
+        int tooOldCode = target.getCodeValue(secret, now - 2 * INTERVAL_WINDOW_IN_SECONDS);
+        int tooNewCode = target.getCodeValue(secret, now + 2 * INTERVAL_WINDOW_IN_SECONDS);
+
+        Assert.assertTrue(target.checkCode(secret, previousCode, "userIdentifier", now));
+        manager.setCodeUsedResult(false);
+        Assert.assertTrue(target.checkCode(secret, nextCode, "userIdentifier", now));
+        manager.setCodeUsedResult(false);
+        Assert.assertFalse(target.checkCode(secret, tooOldCode, "userIdentifier", now));
+        Assert.assertFalse(target.checkCode(secret, tooNewCode, "userIdentifier", now));
+        Assert.assertFalse(manager.isCodeUsed(0, null, null));
+    }
+
+    @Test
+    public void concurrentReplayTest() throws AuthenticatorException, InvalidKeyException, InterruptedException {
+        final InMemoryUsedCodesManager manager = new InMemoryUsedCodesManager();
+        final TimeAuthenticator target = new TimeAuthenticator(manager, INTERVAL_WINDOW_IN_SECONDS);
+        final PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        final AtomicInteger accepted = new AtomicInteger();
+        try {
+            final String code = target.getCode(secret);
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (target.checkCode(secret, code, "userIdentifier")) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Assert.assertEquals(1, accepted.get());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void rfc6238TestVectorsTest() throws Exception {
+        long[] times = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+        String[][] codes = {
+            {"94287082", "07081804", "14050471", "89005924", "69279037", "65353130"},
+            {"46119246", "68084774", "67062674", "91819424", "90698825", "77737706"},
+            {"90693936", "25091201", "99943326", "93441116", "38618901", "47863826"},
+        };
+        String[] seeds = {"12345678901234567890", "12345678901234567890123456789012",
+            "1234567890123456789012345678901234567890123456789012345678901234"};
+        HmacAlgorithm[] algorithms = {HmacAlgorithm.SHA1, HmacAlgorithm.SHA256, HmacAlgorithm.SHA512};
+
+        for (int a = 0; a < algorithms.length; a++) {
+            try (InMemoryUsedCodesManager manager = new InMemoryUsedCodesManager()) {
+                TimeAuthenticator target = TimeAuthenticator.builder()
+                        .withUsedCodesManager(manager)
+                        .withHmacAlgorithm(algorithms[a])
+                        .withCodeDigits(8)
+                        .build();
+                PreparedSecret secret = new PreparedSecret(seeds[a].getBytes("US-ASCII"));
+                for (int t = 0; t < times.length; t++) {
+                    Assert.assertEquals(codes[a][t], target.getCode(secret, times[t]));
+                    Assert.assertTrue(target.checkCode(secret, Integer.parseInt(codes[a][t]), "userIdentifier", times[t]));
+                }
+                Assert.assertFalse(target.checkCode(secret, codes[a][0].substring(2), "userIdentifier"));
+                Assert.assertSame(secret.getKeySpec(algorithms[a]), secret.getKeySpec(algorithms[a]));
+            }
+        }
+    }
+
+    @Test
+    public void invalidCodeDigitsTest() {
+        try {
+            TimeAuthenticator.builder().withCodeDigits(9).build();
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            TimeAuthenticator.builder().withHmacAlgorithm(null).build();
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void invalidWindowTest() {
+        try {
+            new TimeAuthenticator(new UsedCodesManagerImpl(), INTERVAL_WINDOW_IN_SECONDS, -1, 1);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            new TimeAuthenticator(new UsedCodesManagerImpl(), INTERVAL_WINDOW_IN_SECONDS, 1, -1);
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Tomasz Rogozik
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.rogoman.easyauth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+
+public class WindowCodeCacheTests {
+
+    private static final long NOW = 1415618880L;
+
+    @Test
+    public void getPutTest() {
+        WindowCodeCache target = new WindowCodeCache(16);
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        int[] codes = {1, 2, 3};
+
+        Assert.assertNull(target.get(secret, 100));
+        target.put(secret, 100, codes);
+        Assert.assertSame(codes, target.get(secret, 100));
+        Assert.assertSame(codes, target.get(new PreparedSecret(secret.getKeyBytes()), 100));
+        Assert.assertNull(target.get(secret, 101));
+    }
+
+    @Test
+    public void repeatedChecksSkipHmacTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator target = TimeAuthenticator.builder()
+                .withUsedCodesManager(new InMemoryUsedCodesManager())
+                .withWindowCodeCache(1000)
+                .build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+        int code = target.getCodeValue(secret, NOW);
+        int wrongCode = (code + 1) % 1000000;
+
+        Assert.assertFalse(target.checkCode(secret, wrongCode, "userIdentifier", NOW));
+        long computations = MacPool.getHitCount() + MacPool.getMissCount();
+        Assert.assertFalse(target.checkCode(secret, wrongCode, "userIdentifier", NOW));
+        Assert.assertTrue(target.checkCode(secret, code, "userIdentifier", NOW));
+        Assert.assertFalse(target.checkCode(secret, code, "userIdentifier", NOW));
+        Assert.assertEquals(computations, MacPool.getHitCount() + MacPool.getMissCount());
+
+        // the window moves on in the next interval
+        int nextCode = target.getCodeValue(secret, NOW + 6 * TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+        Assert.assertTrue(target.checkCode(secret, nextCode, "userIdentifier", NOW + TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS));
+    }
+
+    @Test
+    public void cachedWindowMatchesComputedTest() throws AuthenticatorException, InvalidKeyException {
+        TimeAuthenticator cached = TimeAuthenticator.builder().withCheckBackIntervals(2).withCheckForwardIntervals(1)
+                .withWindowCodeCache(1).build();
+        TimeAuthenticator computed = TimeAuthenticator.builder().withCheckBackIntervals(2).withCheckForwardIntervals(1).build();
+        PreparedSecret secret = new PreparedSecret(Authenticator.generateKey());
+
+        for (int offset = -4; offset <= 4; offset++) {
+            int code = computed.getCodeValue(secret, NOW + offset * TimeAuthenticator.DEFAULT_INTERVAL_IN_SECONDS);
+            Assert.assertEquals(computed.checkCode(secret, code, "userIdentifier", NOW), cached.checkCode(secret, code, "userIdentifier", NOW));
+        }
+    }
+
+    @Test
+    public void argumentValidationTest() {
+        try {
+            TimeAuthenticator.builder().withWindowCodeCache(-1).build();
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            TimeAuthenticator.builder().withUsedCodesManager(null).build();
+            Assert.fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}